@@ -10,6 +10,7 @@ import org.xml.sax.SAXException;
 
 import com.sysbuddy.backup.BackupSchedule;
 import com.sysbuddy.backup.BackupScheduleLoader;
+import com.sysbuddy.backup.restore.RestoreCommand;
 import com.sysbuddy.io.NodeParser;
 import com.sysbuddy.io.XmlParser;
 
@@ -24,16 +25,6 @@ public class Launcher {
 	 */
 	private final static Logger logger = Logger.getLogger(Launcher.class.getName());
 
-	/**
-	 * The amount of time between each tick.
-	 */
-	private final static long TICK_DELAY = 1000;
-	
-	/**
-	 * If the program is running.
-	 */
-	private static boolean RUNNING = true;
-	
 	/**
 	 * File directory for backup configuration file.
 	 * TODO: Separate configuration class
@@ -46,6 +37,10 @@ public class Launcher {
 	 * @param args Execution arguments
 	 */
 	public static void main(String[] args) {
+		if (RestoreCommand.handles(args)) {
+			System.exit(RestoreCommand.run(args, System.out));
+		}
+		
 		logger.info("Loading configuration files..");
 		
 		File file = new File(BACKUP_DIRECTORY);
@@ -58,23 +53,19 @@ public class Launcher {
 		}
 		
 		BackupScheduleLoader backupScheduleLoader = new BackupScheduleLoader(parser);
-		BackupSchedule backupSchedule = backupScheduleLoader.load();
+		final BackupSchedule backupSchedule = backupScheduleLoader.load();
 		
 		logger.info("Loaded " + backupSchedule.getTasks().size() + " backup schedule task(s)!");
 		
-		while(RUNNING) {
-			long start = System.currentTimeMillis();
-			backupSchedule.run();
-			
-			long delay = TICK_DELAY - (System.currentTimeMillis() - start);
-			
-			if (delay > 0) {
-				try {
-					Thread.sleep(delay);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		// On SIGTERM or Ctrl-C, let running tasks finish or checkpoint before the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down..");
+				backupSchedule.shutdown();
 			}
-		}
+		}, "shutdown"));
+		
+		backupSchedule.run();
 	}
 }
@@ -1,23 +1,66 @@
 package com.sysbuddy.backup;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.logging.Logger;
 
+import com.sysbuddy.backup.remote.SessionPool;
 import com.sysbuddy.backup.task.BackupTask;
 import com.sysbuddy.backup.task.BackupTaskWorker;
+import com.sysbuddy.config.GlobalConfiguration;
 
 /**
- * Contains an array list of backup schedule tasks.
+ * Contains an array list of backup schedule tasks, and runs each of them when it is due.
+ * Tasks wait in a delay queue ordered by their next fire time, so the scheduler sleeps until the
+ * earliest task is due and does logarithmic work per run, however many tasks there are.
+ * Due tasks are handed to a {@link TaskExecutor}, which bounds how many run at once, and a task is
+ * queued again once its run finished.
  * @author darius
  */
 public class BackupSchedule {
 	
+	/**
+	 * The logger of the backup schedule.
+	 */
+	private final static Logger logger = Logger.getLogger(BackupSchedule.class.getName());
+	
 	/**
 	 * The list of backup schedule tasks to be executed.
 	 */
 	private List<BackupTask> tasks;
 	
+	/**
+	 * The tasks waiting for their next run, earliest first.
+	 */
+	private final DelayQueue<ScheduledTask> queue = new DelayQueue<ScheduledTask>();
+	
+	/**
+	 * The executor running due tasks.
+	 */
+	private final TaskExecutor executor = new TaskExecutor(GlobalConfiguration.MAX_TASKS, GlobalConfiguration.TASKS_PER_RESOURCE);
+	
+	/**
+	 * The journal finished runs are recorded in, {@code null} if runs are not recorded.
+	 */
+	private SchedulerJournal journal;
+	
+	/**
+	 * If the schedule keeps running tasks.
+	 */
+	private volatile boolean running = true;
+	
+	/**
+	 * The time (milliseconds) running tasks get to finish when the schedule shuts down, before they are cancelled.
+	 */
+	private long shutdownGrace = GlobalConfiguration.SHUTDOWN_GRACE;
+	
+	/**
+	 * If the schedule was shut down.
+	 */
+	private boolean shutDown;
+	
 	/**
 	 * Creates a backup schedule
 	 */
@@ -26,21 +69,143 @@ public class BackupSchedule {
 	}
 	
 	/**
-	 * Iterates through the task list and executes those pending execution.
+	 * Queues every task and runs each one when it is due, until the schedule is stopped or the thread interrupted.
+	 * Tasks found in the journal resume their schedule from their latest successful run, and tasks whose
+	 * latest run failed or was cancelled are due at once.
 	 */
 	public void run() {
-		BackupTask task;
+		for (BackupTask task : tasks) {
+			task.recover();
+			if (journal != null) {
+				SchedulerJournal.Entry entry = journal.get(task.getName());
+				if (entry != null) {
+					SchedulerJournal.Entry success = journal.getLastSuccess(task.getName());
+					task.restore(success != null ? success.getFinish() : -1, !entry.isSuccess());
+					logger.info("Resuming " + task.getName() + ": last run " + entry + ", next run at " + new Date(task.getNextRun()));
+				}
+			}
+			schedule(task);
+		}
+		
+		while (running) {
+			ScheduledTask next;
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			
+			if (!running)
+				break;
+			
+			if (next.getTask().queue()) {
+				// The shutdown hook may have stopped the executor since the check above
+				if (!executor.submit(next.getTask(), new BackupTaskWorker(next.getTask(), this)))
+					break;
+			} else {
+				logger.fine("Skipping \"" + next.getTask().getName() + "\", it is " + next.getTask().getState());
+			}
+		}
+		
+		shutdown();
+	}
+	
+	/**
+	 * Shuts the schedule down: no task is launched anymore, and tasks waiting for a slot are dropped. Running
+	 * tasks get the grace period to finish; those still running then are cancelled, which stops their archives
+	 * and transfers and removes their partial output, and get a little longer to wind down. Finally the journal
+	 * is flushed, so the next start resumes every task on schedule. Later calls return once the first finished.
+	 */
+	public synchronized void shutdown() {
+		if (shutDown)
+			return;
+		shutDown = true;
+		stop();
+		executor.shutdown();
 		
-		for (Iterator<BackupTask> it = tasks.iterator(); it.hasNext();) {
-			task = it.next();
-			if (task.ready()) {
-				BackupTaskWorker worker = new BackupTaskWorker(task);
-				Thread thread = new Thread(worker);
-				thread.start();
+		try {
+			if (!executor.awaitTermination(shutdownGrace)) {
+				for (BackupTask task : tasks) {
+					if (task.cancel("shutting down"))
+						logger.info("Cancelled \"" + task.getName() + "\" after the shutdown grace period of " + shutdownGrace + " ms");
+				}
+				if (!executor.awaitTermination(GlobalConfiguration.SHUTDOWN_CANCEL_WAIT))
+					logger.warning(executor.getRunning() + " task(s) still running at shutdown");
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (journal != null)
+			journal.close();
+		SessionPool.getDefault().close();
+		logger.info("Backup schedule stopped.");
+	}
+	
+	/**
+	 * Records a finished run in the journal and queues the task for its next run.
+	 * @param task The task.
+	 * @param start The time (milliseconds) the run started.
+	 * @param finish The time (milliseconds) the run finished.
+	 * @param success If the run succeeded.
+	 */
+	public void finished(BackupTask task, long start, long finish, boolean success) {
+		if (journal != null)
+			journal.record(task.getName(), start, finish, success);
+		schedule(task);
+	}
+	
+	/**
+	 * Queues a task for its next run.
+	 * @param task The task.
+	 */
+	public void schedule(BackupTask task) {
+		if (running) {
+			queue.add(new ScheduledTask(task, task.getNextRun()));
 		}
 	}
 	
+	/**
+	 * Stops running tasks. Runs in progress are not interrupted.
+	 */
+	public void stop() {
+		running = false;
+		queue.add(new ScheduledTask(null, 0));
+	}
+	
+	/**
+	 * Sets the time running tasks get to finish when the schedule shuts down.
+	 * @param shutdownGrace The time (milliseconds).
+	 */
+	public void setShutdownGrace(long shutdownGrace) {
+		this.shutdownGrace = shutdownGrace;
+	}
+	
+	/**
+	 * Sets the journal finished runs are recorded in.
+	 * @param journal The journal, {@code null} to not record runs.
+	 */
+	public void setJournal(SchedulerJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Gets the journal finished runs are recorded in.
+	 * @return The journal, {@code null} if runs are not recorded.
+	 */
+	public SchedulerJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Gets the executor running due tasks.
+	 * @return The task executor.
+	 */
+	public TaskExecutor getExecutor() {
+		return executor;
+	}
+	
 	/**
 	 * Gets the backup schedule tasks.
 	 * @return The tasks.
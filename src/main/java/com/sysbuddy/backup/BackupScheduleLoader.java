@@ -2,10 +2,13 @@ package com.sysbuddy.backup;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.nio.file.Paths;
+import java.time.ZoneId;
 
 import com.sysbuddy.backup.task.BackupTask;
 import com.sysbuddy.backup.task.BackupTaskLoader;
 import com.sysbuddy.backup.task.BackupTaskType;
+import com.sysbuddy.config.GlobalConfiguration;
 import com.sysbuddy.io.Node;
 import com.sysbuddy.io.NodeParser;
 
@@ -20,6 +23,11 @@ public class BackupScheduleLoader {
 	 */
 	private final NodeParser parser;
 	
+	/**
+	 * The path of the scheduler journal, empty to not keep one.
+	 */
+	private String journal = GlobalConfiguration.SCHEDULER_JOURNAL;
+	
 	/**
 	 * Creates a backup schedule loader.
 	 * @param parser The configuration parser.
@@ -38,7 +46,9 @@ public class BackupScheduleLoader {
 			Node root = parser.parse();
 			
 			for (Node child : root.getChildren()) {
-				if (child.getName().equalsIgnoreCase("task")) {
+				if (child.getName().equalsIgnoreCase("scheduler")) {
+					loadScheduler(child, schedule);
+				} else if (child.getName().equalsIgnoreCase("task")) {
 					Node type = child.getChild("type");
 					if (type != null) {
 						BackupTaskType candidate = BackupTaskType.get(type.getValue());
@@ -49,6 +59,31 @@ public class BackupScheduleLoader {
 								BackupTaskLoader loader = (BackupTaskLoader) constructor.newInstance(child);
 								BackupTask task = loader.load();
 								
+								if (child.getChild("cron") != null) {
+									ZoneId zone = ZoneId.systemDefault();
+									if (child.getChild("timezone") != null) {
+										zone = ZoneId.of(child.getChild("timezone").getValue());
+									}
+									task.setCron(CronExpression.parse(child.getChild("cron").getValue(), zone));
+								} else if (child.getChild("delay") == null) {
+									throw new IllegalArgumentException("Task " + task.getName() + " needs a <delay> or a <cron>");
+								}
+								
+								boolean stagger = GlobalConfiguration.STAGGER_TASKS;
+								long jitter = GlobalConfiguration.TASK_JITTER;
+								if (child.getChild("stagger") != null) {
+									stagger = Boolean.parseBoolean(child.getChild("stagger").getValue());
+								}
+								if (child.getChild("jitter") != null) {
+									jitter = Long.parseLong(child.getChild("jitter").getValue());
+								}
+								task.setStagger(stagger, jitter);
+								
+								task.setTimeout(GlobalConfiguration.TASK_TIMEOUT);
+								if (child.getChild("timeout") != null) {
+									task.setTimeout(Long.parseLong(child.getChild("timeout").getValue()));
+								}
+								
 								Node formatter = child.getChild("formatter");
 								
 								if (formatter != null) {
@@ -78,6 +113,43 @@ public class BackupScheduleLoader {
 			e.printStackTrace();
 		}
 		
+		if (!journal.isEmpty()) {
+			try {
+				schedule.setJournal(SchedulerJournal.open(Paths.get(journal)));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
 		return schedule;
 	}
+	
+	/**
+	 * Configures the limits on running tasks, the shutdown grace period and the scheduler journal.
+	 * @param node The scheduler node.
+	 * @param schedule The schedule.
+	 */
+	private void loadScheduler(Node node, BackupSchedule schedule) {
+		TaskExecutor executor = schedule.getExecutor();
+		
+		if (node.getChild("max_tasks") != null) {
+			executor.setMaxTasks(Integer.parseInt(node.getChild("max_tasks").getValue()));
+		}
+		
+		if (node.getChild("tasks_per_resource") != null) {
+			executor.setTasksPerResource(Integer.parseInt(node.getChild("tasks_per_resource").getValue()));
+		}
+		
+		for (Node limit : node.getChildren("resource_limit")) {
+			executor.setLimit(limit.getAttribute("name"), Integer.parseInt(limit.getValue()));
+		}
+		
+		if (node.getChild("shutdown_grace") != null) {
+			schedule.setShutdownGrace(Long.parseLong(node.getChild("shutdown_grace").getValue()));
+		}
+		
+		if (node.getChild("journal") != null) {
+			journal = node.getChild("journal").getValue().trim();
+		}
+	}
 }
@@ -0,0 +1,322 @@
+package com.sysbuddy.backup;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+
+/**
+ * A cron expression ({@code minute hour day-of-month month day-of-week}) in a time zone, compiled into
+ * one bit set per field. The next fire time is found by scanning the bit sets for the next set bit, so
+ * it costs a few instructions per field rather than a walk over every minute.
+ * <p>
+ * Fields accept {@code *}, values, ranges, lists and steps ({@code 1-5}, {@code 0,30}, {@code *&#47;15}),
+ * and the names {@code JAN}-{@code DEC} and {@code SUN}-{@code SAT}; day-of-week {@code 7} is Sunday.
+ * As in classic cron, a day matches if either day field matches when both are restricted. The macros
+ * {@code @yearly}, {@code @monthly}, {@code @weekly}, {@code @daily} and {@code @hourly} are supported.
+ * <p>
+ * Times are wall-clock times of the zone. A time skipped by a daylight saving transition fires right after
+ * the transition, and a time that occurs twice fires only once.
+ * @author darius
+ */
+public class CronExpression {
+
+	/**
+	 * The names of the months, starting at {@code 1}.
+	 */
+	private final static String[] MONTHS = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+
+	/**
+	 * The names of the days of the week, starting at {@code 0}.
+	 */
+	private final static String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+	/**
+	 * The number of years searched for a matching day before the expression is taken to never fire.
+	 */
+	private final static int MAX_YEARS = 8;
+
+	/**
+	 * The expression as written.
+	 */
+	private final String expression;
+
+	/**
+	 * The time zone the expression is evaluated in.
+	 */
+	private final ZoneId zone;
+
+	/**
+	 * The minutes (bits 0-59).
+	 */
+	private final long minutes;
+
+	/**
+	 * The hours (bits 0-23).
+	 */
+	private final long hours;
+
+	/**
+	 * The days of the month (bits 1-31).
+	 */
+	private final long daysOfMonth;
+
+	/**
+	 * The months (bits 1-12).
+	 */
+	private final long months;
+
+	/**
+	 * The days of the week (bits 0-6, Sunday first).
+	 */
+	private final long daysOfWeek;
+
+	/**
+	 * If the day of the month is restricted.
+	 */
+	private final boolean anyDayOfMonth;
+
+	/**
+	 * If the day of the week is restricted.
+	 */
+	private final boolean anyDayOfWeek;
+
+	private CronExpression(String expression, ZoneId zone, String[] fields) {
+		this.expression = expression;
+		this.zone = zone;
+		this.minutes = parseField(fields[0], 0, 59, null);
+		this.hours = parseField(fields[1], 0, 23, null);
+		this.daysOfMonth = parseField(fields[2], 1, 31, null);
+		this.months = parseField(fields[3], 1, 12, MONTHS);
+
+		long days = parseField(fields[4], 0, 7, DAYS);
+		if ((days & (1L << 7)) != 0)
+			days = (days | 1L) & ~(1L << 7);
+		this.daysOfWeek = days;
+
+		this.anyDayOfMonth = fields[2].startsWith("*");
+		this.anyDayOfWeek = fields[4].startsWith("*");
+	}
+
+	/**
+	 * Compiles a cron expression.
+	 * @param expression The expression, five fields or a macro.
+	 * @param zone The time zone it is evaluated in.
+	 * @return The compiled expression.
+	 * @throws IllegalArgumentException If the expression is malformed.
+	 */
+	public static CronExpression parse(String expression, ZoneId zone) {
+		String trimmed = expression.trim();
+		String expanded;
+		switch (trimmed.toLowerCase(Locale.ROOT)) {
+		case "@yearly":
+		case "@annually":
+			expanded = "0 0 1 1 *";
+			break;
+		case "@monthly":
+			expanded = "0 0 1 * *";
+			break;
+		case "@weekly":
+			expanded = "0 0 * * 0";
+			break;
+		case "@daily":
+		case "@midnight":
+			expanded = "0 0 * * *";
+			break;
+		case "@hourly":
+			expanded = "0 * * * *";
+			break;
+		default:
+			expanded = trimmed;
+		}
+
+		String[] fields = expanded.split("\\s+");
+		if (fields.length != 5)
+			throw new IllegalArgumentException("Cron expression needs 5 fields: " + expression);
+
+		CronExpression cron = new CronExpression(trimmed, zone, fields);
+		if (cron.next(System.currentTimeMillis()) < 0)
+			throw new IllegalArgumentException("Cron expression never fires: " + expression);
+		return cron;
+	}
+
+	/**
+	 * Computes the next fire time.
+	 * @param after The time (milliseconds) after which the expression should fire.
+	 * @return The time (milliseconds) of the next fire, strictly after {@code after}; {@code -1} if it never fires.
+	 */
+	public long next(long after) {
+		LocalDateTime local = Instant.ofEpochMilli(after).atZone(zone).toLocalDateTime().withSecond(0).withNano(0).plusMinutes(1);
+		LocalDate date = local.toLocalDate();
+		int minute = local.getMinute();
+		int hour = local.getHour();
+		LocalDate last = date.plusYears(MAX_YEARS);
+
+		while (!date.isAfter(last)) {
+			LocalDate day = nextDate(date, last);
+			if (day == null)
+				return -1;
+			if (!day.equals(date)) {
+				date = day;
+				hour = 0;
+				minute = 0;
+			}
+
+			int h = nextBit(hours, hour);
+			while (h >= 0) {
+				int m = nextBit(minutes, h == hour ? minute : 0);
+				if (m >= 0) {
+					long time = toEpochMilli(date.atTime(h, m));
+					if (time > after)
+						return time;
+
+					minute = m + 1;
+					hour = h;
+					if (minute < 60)
+						continue;
+				}
+				h = nextBit(hours, h + 1);
+				minute = 0;
+				hour = h;
+			}
+
+			date = date.plusDays(1);
+			hour = 0;
+			minute = 0;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Converts a wall-clock time of the zone into an instant. A time in a gap fires at the transition,
+	 * and a time in an overlap always takes the earlier offset, so the later occurrence lies before
+	 * {@code after} when the earlier one has already fired and is skipped.
+	 * @param time The wall-clock time.
+	 * @return The time (milliseconds).
+	 */
+	private long toEpochMilli(LocalDateTime time) {
+		ZoneRules rules = zone.getRules();
+		if (rules.getValidOffsets(time).isEmpty())
+			return rules.getTransition(time).getInstant().toEpochMilli();
+		return ZonedDateTime.ofLocal(time, zone, null).withEarlierOffsetAtOverlap().toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Finds the first matching day on or after a date.
+	 * @param date The date.
+	 * @param last The last date searched.
+	 * @return The matching day, {@code null} if there is none up to the last date.
+	 */
+	private LocalDate nextDate(LocalDate date, LocalDate last) {
+		while (!date.isAfter(last)) {
+			int month = nextBit(months, date.getMonthValue());
+			if (month < 0) {
+				date = LocalDate.of(date.getYear() + 1, 1, 1);
+				continue;
+			}
+			if (month != date.getMonthValue())
+				date = LocalDate.of(date.getYear(), month, 1);
+
+			if (matchesDay(date))
+				return date;
+			date = date.plusDays(1);
+		}
+		return null;
+	}
+
+	private boolean matchesDay(LocalDate date) {
+		boolean dayOfMonth = (daysOfMonth & (1L << date.getDayOfMonth())) != 0;
+		boolean dayOfWeek = (daysOfWeek & (1L << (date.getDayOfWeek().getValue() % 7))) != 0;
+		if (anyDayOfMonth || anyDayOfWeek)
+			return dayOfMonth && dayOfWeek;
+		return dayOfMonth || dayOfWeek;
+	}
+
+	/**
+	 * Finds the next set bit.
+	 * @param bits The bit set.
+	 * @param from The first bit looked at.
+	 * @return The index of the bit, {@code -1} if none is set from there.
+	 */
+	private static int nextBit(long bits, int from) {
+		if (from >= 64)
+			return -1;
+		long remaining = bits & (-1L << from);
+		return remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+	}
+
+	/**
+	 * Parses one field into a bit set.
+	 * @param field The field.
+	 * @param min The smallest value.
+	 * @param max The largest value.
+	 * @param names The names of the values from {@code min} on, {@code null} if the field has none.
+	 * @return The bit set.
+	 */
+	private static long parseField(String field, int min, int max, String[] names) {
+		long bits = 0;
+		for (String part : field.split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if (slash >= 0) {
+				step = Integer.parseInt(part.substring(slash + 1));
+				part = part.substring(0, slash);
+				if (step <= 0)
+					throw new IllegalArgumentException("Invalid step in cron field: " + field);
+			}
+
+			int from;
+			int to;
+			if (part.equals("*")) {
+				from = min;
+				to = max;
+			} else {
+				int dash = part.indexOf('-');
+				from = parseValue(dash >= 0 ? part.substring(0, dash) : part, min, max, names, field);
+				to = dash >= 0 ? parseValue(part.substring(dash + 1), min, max, names, field) : (slash >= 0 ? max : from);
+			}
+			if (from > to)
+				throw new IllegalArgumentException("Invalid range in cron field: " + field);
+
+			for (int value = from; value <= to; value += step)
+				bits |= 1L << value;
+		}
+		return bits;
+	}
+
+	private static int parseValue(String value, int min, int max, String[] names, String field) {
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equalsIgnoreCase(value))
+					return min + i;
+			}
+		}
+
+		int number;
+		try {
+			number = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value \"" + value + "\" in cron field: " + field);
+		}
+		if (number < min || number > max)
+			throw new IllegalArgumentException("Value " + number + " out of range in cron field: " + field);
+		return number;
+	}
+
+	/**
+	 * Gets the time zone the expression is evaluated in.
+	 * @return The zone.
+	 */
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	@Override
+	public String toString() {
+		return expression + " (" + zone + ")";
+	}
+}
@@ -0,0 +1,77 @@
+package com.sysbuddy.backup;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sysbuddy.backup.task.BackupTask;
+
+/**
+ * A backup task waiting in the {@link BackupSchedule} for its next run. Ordered by fire time, and by
+ * the order of scheduling for equal fire times.
+ * @author darius
+ */
+public class ScheduledTask implements Delayed {
+
+	/**
+	 * The order in which tasks were scheduled.
+	 */
+	private final static AtomicLong SEQUENCE = new AtomicLong();
+
+	/**
+	 * The task.
+	 */
+	private final BackupTask task;
+
+	/**
+	 * The time (milliseconds) the task is due.
+	 */
+	private final long time;
+
+	/**
+	 * The position of the task in the scheduling order.
+	 */
+	private final long sequence;
+
+	/**
+	 * Creates a scheduled task.
+	 * @param task The task.
+	 * @param time The time (milliseconds) the task is due.
+	 */
+	public ScheduledTask(BackupTask task, long time) {
+		this.task = task;
+		this.time = time;
+		this.sequence = SEQUENCE.getAndIncrement();
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+		return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed other) {
+		if (other instanceof ScheduledTask) {
+			ScheduledTask scheduled = (ScheduledTask) other;
+			int order = Long.compare(time, scheduled.time);
+			return order != 0 ? order : Long.compare(sequence, scheduled.sequence);
+		}
+		return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Gets the task.
+	 * @return The task.
+	 */
+	public BackupTask getTask() {
+		return task;
+	}
+
+	/**
+	 * Gets the time the task is due.
+	 * @return The time (milliseconds).
+	 */
+	public long getTime() {
+		return time;
+	}
+}
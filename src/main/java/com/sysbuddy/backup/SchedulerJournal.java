@@ -0,0 +1,499 @@
+package com.sysbuddy.backup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.sysbuddy.util.Threads;
+
+/**
+ * An append-only journal of finished task runs: when each run started and finished and if it succeeded.
+ * It is replayed at startup so tasks resume their schedule instead of all running at once.
+ * <p>
+ * Runs are handed to a writer thread, so recording never blocks a task. The writer appends whatever
+ * accumulated since its last write and syncs the file once per batch. Every record carries a CRC-32, so a
+ * record torn by a crash is detected and cut off at replay. Once the journal holds many times more
+ * records than tasks, it is rewritten with the latest run and the latest successful run of every task.
+ * The schedule resumes from the latest successful run, and a task whose latest run failed is retried.
+ * @author darius
+ */
+public class SchedulerJournal implements Closeable {
+
+	/**
+	 * The logger of the scheduler journal.
+	 */
+	private final static Logger logger = Logger.getLogger(SchedulerJournal.class.getName());
+
+	/**
+	 * The magic number at the start of a journal file ("SBJL").
+	 */
+	private final static int MAGIC = 0x53424a4c;
+
+	/**
+	 * The version of the on-disk format.
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * The size of the file header.
+	 */
+	private final static int HEADER_SIZE = 8;
+
+	/**
+	 * The size of the length and checksum before every record.
+	 */
+	private final static int RECORD_HEADER_SIZE = 8;
+
+	/**
+	 * The journal is compacted once it holds this many records and this many times more records than tasks.
+	 */
+	private final static int COMPACT_RECORDS = 1024;
+
+	/**
+	 * The marker that stops the writer.
+	 */
+	private final static Entry CLOSE = new Entry("", 0, 0, false);
+
+	/**
+	 * The journal file.
+	 */
+	private final Path path;
+
+	/**
+	 * The journal, open for appending.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * The latest run of every task, keyed by task name.
+	 */
+	private final Map<String, Entry> latest;
+
+	/**
+	 * The latest successful run of every task, keyed by task name. Guarded by {@link #latest}.
+	 */
+	private final Map<String, Entry> succeeded;
+
+	/**
+	 * The runs waiting to be written.
+	 */
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+	/**
+	 * The number of records in the file.
+	 */
+	private long records;
+
+	/**
+	 * The thread writing the runs.
+	 */
+	private Thread writer;
+
+	/**
+	 * If runs are still accepted.
+	 */
+	private volatile boolean open = true;
+
+	private SchedulerJournal(Path path, FileChannel channel, Map<String, Entry> latest, Map<String, Entry> succeeded, long records) {
+		this.path = path;
+		this.channel = channel;
+		this.latest = latest;
+		this.succeeded = succeeded;
+		this.records = records;
+	}
+
+	/**
+	 * Opens a journal, replaying the runs it holds, and starts its writer. A journal that does not exist
+	 * is created, and a torn record at its end is cut off.
+	 * @param path The journal file.
+	 * @return The journal.
+	 * @throws IOException If the journal could not be read or created, or is not a journal.
+	 */
+	public static SchedulerJournal open(Path path) throws IOException {
+		Map<String, Entry> latest = new HashMap<String, Entry>();
+		Map<String, Entry> succeeded = new HashMap<String, Entry>();
+		long records = 0;
+		long valid = HEADER_SIZE;
+
+		ByteBuffer buffer = null;
+		try {
+			buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		} catch (NoSuchFileException e) {
+		}
+
+		if (buffer != null && buffer.remaining() >= HEADER_SIZE) {
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a scheduler journal: " + path);
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported scheduler journal version " + version + ": " + path);
+
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining())
+					break;
+
+				crc.reset();
+				crc.update(buffer.array(), buffer.position(), length);
+				if ((int) crc.getValue() != checksum)
+					break;
+
+				Entry entry = Entry.read(buffer);
+				latest.put(entry.getTask(), entry);
+				if (entry.isSuccess())
+					succeeded.put(entry.getTask(), entry);
+				records++;
+				valid = buffer.position();
+			}
+		}
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (buffer == null || buffer.limit() < HEADER_SIZE) {
+				channel.truncate(0);
+				writeFully(channel, header(), 0);
+				channel.force(true);
+			} else if (valid < channel.size()) {
+				logger.warning("Cut off " + (channel.size() - valid) + " torn bytes at the end of " + path);
+				channel.truncate(valid);
+				channel.force(true);
+			}
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		final SchedulerJournal journal = new SchedulerJournal(path, channel, latest, succeeded, records);
+		journal.writer = Threads.start("scheduler-journal", new Runnable() {
+			@Override
+			public void run() {
+				journal.write();
+			}
+		});
+		return journal;
+	}
+
+	/**
+	 * Records a finished run. Returns at once; the run is written by the writer thread.
+	 * @param task The name of the task.
+	 * @param start The time (milliseconds) the run started.
+	 * @param finish The time (milliseconds) the run finished.
+	 * @param success If the run succeeded.
+	 */
+	public void record(String task, long start, long finish, boolean success) {
+		if (open)
+			queue.add(new Entry(task, start, finish, success));
+	}
+
+	/**
+	 * Gets the latest run of a task, as replayed at startup or recorded since.
+	 * @param task The name of the task.
+	 * @return The run, {@code null} if the task never ran.
+	 */
+	public Entry get(String task) {
+		synchronized (latest) {
+			return latest.get(task);
+		}
+	}
+
+	/**
+	 * Gets the latest successful run of a task, as replayed at startup or recorded since.
+	 * @param task The name of the task.
+	 * @return The run, {@code null} if the task never succeeded.
+	 */
+	public Entry getLastSuccess(String task) {
+		synchronized (latest) {
+			return succeeded.get(task);
+		}
+	}
+
+	/**
+	 * Writes the runs still waiting, syncs the journal and stops the writer.
+	 */
+	@Override
+	public void close() {
+		if (!open)
+			return;
+		open = false;
+		queue.add(CLOSE);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		List<Entry> batch = new ArrayList<Entry>();
+		boolean closing = false;
+		try {
+			while (!closing) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				closing = batch.remove(CLOSE);
+
+				try {
+					append(batch);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not write the scheduler journal " + path, e);
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not close the scheduler journal " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * Appends a batch of runs and syncs the journal, compacting it if it grew too large.
+	 * @param batch The runs.
+	 * @throws IOException If the journal could not be written.
+	 */
+	private void append(List<Entry> batch) throws IOException {
+		if (batch.isEmpty())
+			return;
+
+		ByteBuffer buffer = encode(batch);
+		long end = channel.size();
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} catch (IOException e) {
+			// Cut off the partial batch, so that later records are not hidden behind a torn one
+			try {
+				channel.truncate(end);
+			} catch (IOException ignored) {
+			}
+			throw e;
+		}
+		records += batch.size();
+
+		int tasks;
+		synchronized (latest) {
+			for (Entry entry : batch) {
+				latest.put(entry.getTask(), entry);
+				if (entry.isSuccess())
+					succeeded.put(entry.getTask(), entry);
+			}
+			tasks = latest.size();
+		}
+
+		if (records >= COMPACT_RECORDS && records >= (long) tasks * 16)
+			compact();
+	}
+
+	/**
+	 * Rewrites the journal with the latest successful run of every task, followed by the latest run of
+	 * the tasks whose latest run failed, so replaying it yields both.
+	 * @throws IOException If the journal could not be rewritten.
+	 */
+	private void compact() throws IOException {
+		List<Entry> entries;
+		synchronized (latest) {
+			entries = new ArrayList<Entry>(succeeded.values());
+			for (Entry entry : latest.values()) {
+				if (!entry.isSuccess())
+					entries.add(entry);
+			}
+		}
+
+		// The rewritten journal is kept open for appending, so the journal is never left without an open file
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(out, header(), 0);
+			writeFully(out, encode(entries), HEADER_SIZE);
+			out.force(true);
+			out.position(out.size());
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			out.close();
+			Files.deleteIfExists(temporary);
+			// Retry once as many records accumulated again rather than after every batch
+			records = entries.size();
+			throw e;
+		}
+
+		FileChannel previous = channel;
+		channel = out;
+		records = entries.size();
+		syncDirectory(path.toAbsolutePath().getParent());
+		try {
+			previous.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close the replaced scheduler journal " + path, e);
+		}
+	}
+
+	/**
+	 * Syncs a directory, so that a file moved into it survives a crash. File systems and platforms that
+	 * cannot sync directories are skipped.
+	 * @param directory The directory.
+	 */
+	private static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Could not sync the directory " + directory, e);
+		}
+	}
+
+	private static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		return header;
+	}
+
+	private static ByteBuffer encode(List<Entry> entries) {
+		int size = 0;
+		List<byte[]> names = new ArrayList<byte[]>(entries.size());
+		for (Entry entry : entries) {
+			byte[] name = entry.getTask().getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			size += RECORD_HEADER_SIZE + Entry.size(name);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < entries.size(); i++) {
+			byte[] name = names.get(i);
+			int length = Entry.size(name);
+			int start = buffer.position() + RECORD_HEADER_SIZE;
+			buffer.position(start);
+			entries.get(i).write(buffer, name);
+
+			crc.reset();
+			crc.update(buffer.array(), start, length);
+			buffer.putInt(start - RECORD_HEADER_SIZE, length);
+			buffer.putInt(start - RECORD_HEADER_SIZE + 4, (int) crc.getValue());
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * A finished run of a task.
+	 */
+	public static class Entry {
+
+		/**
+		 * The name of the task.
+		 */
+		private final String task;
+
+		/**
+		 * The time (milliseconds) the run started.
+		 */
+		private final long start;
+
+		/**
+		 * The time (milliseconds) the run finished.
+		 */
+		private final long finish;
+
+		/**
+		 * If the run succeeded.
+		 */
+		private final boolean success;
+
+		Entry(String task, long start, long finish, boolean success) {
+			this.task = task;
+			this.start = start;
+			this.finish = finish;
+			this.success = success;
+		}
+
+		private static int size(byte[] name) {
+			return 2 + name.length + 8 + 8 + 1;
+		}
+
+		private void write(ByteBuffer buffer, byte[] name) {
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+			buffer.putLong(start);
+			buffer.putLong(finish);
+			buffer.put((byte) (success ? 1 : 0));
+		}
+
+		private static Entry read(ByteBuffer buffer) {
+			byte[] name = new byte[buffer.getShort() & 0xffff];
+			buffer.get(name);
+			return new Entry(new String(name, StandardCharsets.UTF_8), buffer.getLong(), buffer.getLong(), buffer.get() != 0);
+		}
+
+		/**
+		 * Gets the name of the task.
+		 * @return The name.
+		 */
+		public String getTask() {
+			return task;
+		}
+
+		/**
+		 * Gets the time the run started.
+		 * @return The time (milliseconds).
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * Gets the time the run finished.
+		 * @return The time (milliseconds).
+		 */
+		public long getFinish() {
+			return finish;
+		}
+
+		/**
+		 * Gets the duration of the run.
+		 * @return The duration (milliseconds).
+		 */
+		public long getDuration() {
+			return finish - start;
+		}
+
+		/**
+		 * Checks if the run succeeded.
+		 * @return {@code true} if it succeeded.
+		 */
+		public boolean isSuccess() {
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return task + " " + (success ? "succeeded" : "failed") + " in " + getDuration() + " ms";
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.sysbuddy.backup;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.task.BackupTask;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Runs due backup tasks on a managed pool of threads, with a cap on the number of tasks running at once
+ * and a cap on the number of running tasks sharing a resource, such as a source volume or an SFTP server.
+ * A task that cannot start yet waits in a queue and is started, in order, as soon as a slot frees up.
+ * Waiting tasks never hold a thread, and a task blocked by a busy resource does not hold back tasks behind it.
+ * @author darius
+ */
+public class TaskExecutor {
+
+	/**
+	 * The logger of the task executor.
+	 */
+	private final static Logger logger = Logger.getLogger(TaskExecutor.class.getName());
+
+	/**
+	 * The threads running the tasks.
+	 */
+	private final ExecutorService pool = Executors.newCachedThreadPool(Threads.factory("task"));
+
+	/**
+	 * The threads running tasks that mostly block on SSH channels.
+	 */
+	private final ExecutorService sshPool = Executors.newCachedThreadPool(Threads.sshFactory("task"));
+
+	/**
+	 * The tasks waiting for a slot, in the order they became due.
+	 */
+	private final List<Pending> pending = new LinkedList<Pending>();
+
+	/**
+	 * The number of running tasks using each resource.
+	 */
+	private final Map<String, Integer> busy = new HashMap<String, Integer>();
+
+	/**
+	 * The limits of resources that differ from the default.
+	 */
+	private final Map<String, Integer> limits = new HashMap<String, Integer>();
+
+	/**
+	 * The maximum number of tasks running at once.
+	 */
+	private int maxTasks;
+
+	/**
+	 * The default maximum number of running tasks sharing a resource.
+	 */
+	private int tasksPerResource;
+
+	/**
+	 * The number of running tasks.
+	 */
+	private int running;
+
+	/**
+	 * If the executor was stopped.
+	 */
+	private boolean shutDown;
+
+	/**
+	 * Creates a task executor.
+	 * @param maxTasks The maximum number of tasks running at once.
+	 * @param tasksPerResource The default maximum number of running tasks sharing a resource.
+	 */
+	public TaskExecutor(int maxTasks, int tasksPerResource) {
+		this.maxTasks = Math.max(1, maxTasks);
+		this.tasksPerResource = Math.max(1, tasksPerResource);
+	}
+
+	/**
+	 * Runs a task as soon as the limits allow. A task submitted after the executor was stopped is returned to idle.
+	 * @param task The queued task, whose resources are looked up now.
+	 * @param runnable The run of the task.
+	 * @return {@code true} if the task was accepted, {@code false} if the executor was stopped.
+	 */
+	public synchronized boolean submit(BackupTask task, Runnable runnable) {
+		if (shutDown) {
+			task.dequeue();
+			logger.fine("Not running \"" + task.getName() + "\", the executor was stopped");
+			return false;
+		}
+		pending.add(new Pending(task, task.getResources(), runnable));
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Starts every waiting task the limits allow, in order.
+	 */
+	private synchronized void dispatch() {
+		for (Iterator<Pending> it = pending.iterator(); it.hasNext() && running < maxTasks;) {
+			final Pending next = it.next();
+			if (!available(next.resources))
+				continue;
+
+			it.remove();
+			running++;
+			for (String resource : next.resources) {
+				Integer count = busy.get(resource);
+				busy.put(resource, count == null ? 1 : count + 1);
+			}
+
+			try {
+				(next.task.usesSsh() ? sshPool : pool).execute(new Runnable() {
+					@Override
+					public void run() {
+						Thread.currentThread().setName("task-" + next.task.getName());
+						try {
+							next.runnable.run();
+						} finally {
+							release(next);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The pools only reject once stopped, so the run never starts
+				unreserve(next);
+				next.task.dequeue();
+				logger.warning("Could not start \"" + next.task.getName() + "\": " + e);
+			}
+		}
+
+		if (!pending.isEmpty())
+			logger.fine(pending.size() + " task(s) waiting for a free slot, " + running + " running");
+	}
+
+	private boolean available(Set<String> resources) {
+		for (String resource : resources) {
+			Integer count = busy.get(resource);
+			if (count != null && count >= getLimit(resource))
+				return false;
+		}
+		return true;
+	}
+
+	private synchronized void release(Pending done) {
+		unreserve(done);
+		dispatch();
+	}
+
+	private void unreserve(Pending done) {
+		running--;
+		for (String resource : done.resources) {
+			Integer count = busy.get(resource);
+			if (count == null || count <= 1)
+				busy.remove(resource);
+			else
+				busy.put(resource, count - 1);
+		}
+	}
+
+	/**
+	 * Stops the executor. Running tasks finish, waiting tasks are dropped and returned to idle, and tasks
+	 * submitted later are not run.
+	 */
+	public synchronized void shutdown() {
+		shutDown = true;
+		for (Pending dropped : pending)
+			dropped.task.dequeue();
+		pending.clear();
+		pool.shutdown();
+		sshPool.shutdown();
+	}
+
+	/**
+	 * Waits for the running tasks to finish after the executor was stopped.
+	 * @param timeout The longest time (milliseconds) to wait.
+	 * @return {@code true} if every task finished, {@code false} if the time ran out.
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+			return false;
+		return sshPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the maximum number of tasks running at once.
+	 * @param maxTasks The number of tasks.
+	 */
+	public synchronized void setMaxTasks(int maxTasks) {
+		this.maxTasks = Math.max(1, maxTasks);
+		dispatch();
+	}
+
+	/**
+	 * Sets the default maximum number of running tasks sharing a resource.
+	 * @param tasksPerResource The number of tasks.
+	 */
+	public synchronized void setTasksPerResource(int tasksPerResource) {
+		this.tasksPerResource = Math.max(1, tasksPerResource);
+		dispatch();
+	}
+
+	/**
+	 * Sets the maximum number of running tasks sharing one resource.
+	 * @param resource The name of the resource, such as {@code sftp:host:22}.
+	 * @param limit The number of tasks.
+	 */
+	public synchronized void setLimit(String resource, int limit) {
+		limits.put(resource, Math.max(1, limit));
+		dispatch();
+	}
+
+	/**
+	 * Gets the maximum number of running tasks sharing a resource.
+	 * @param resource The name of the resource.
+	 * @return The number of tasks.
+	 */
+	public synchronized int getLimit(String resource) {
+		Integer limit = limits.get(resource);
+		return limit != null ? limit : tasksPerResource;
+	}
+
+	/**
+	 * Gets the number of running tasks.
+	 * @return The number of tasks.
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * Gets the number of tasks waiting for a slot.
+	 * @return The number of tasks.
+	 */
+	public synchronized int getWaiting() {
+		return pending.size();
+	}
+
+	/**
+	 * A due task waiting for a slot.
+	 */
+	private static final class Pending {
+
+		private final BackupTask task;
+		private final Set<String> resources;
+		private final Runnable runnable;
+
+		Pending(BackupTask task, Set<String> resources, Runnable runnable) {
+			this.task = task;
+			this.resources = resources;
+			this.runnable = runnable;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Decides which files go into an archive, and may add entries of its own once all files were visited.
+ * A filter is used for a single archive run and is called from the thread walking the directories.
+ * @author darius
+ */
+public interface ArchiveFilter {
+
+	/**
+	 * Checks if a file should be archived.
+	 * @param entry The name of the entry in the archive.
+	 * @param file The file.
+	 * @param size The size of the file.
+	 * @param lastModified The modification time of the file (milliseconds).
+	 * @return {@code true} if the file should be archived.
+	 * @throws IOException If the file could not be inspected.
+	 */
+	public boolean accept(String entry, Path file, long size, long lastModified) throws IOException;
+
+	/**
+	 * Called after every file was visited, before the archive is closed.
+	 * @param writer The writer of the archive.
+	 * @throws IOException If the additional entries could not be written.
+	 */
+	public void finish(ArchiveWriter writer) throws IOException;
+}
@@ -0,0 +1,81 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import com.sysbuddy.io.BufferPool;
+
+/**
+ * The formats archives can be written in, selected per task with {@code <archive_format>}.
+ * @author darius
+ */
+public enum ArchiveFormat {
+
+	ZIP("zip", ".zip"),
+	ZIP64("zip64", ".zip"),
+	TAR_GZ("tar.gz", ".tar.gz");
+
+	/**
+	 * The key that matches with the given format.
+	 */
+	private final String key;
+
+	/**
+	 * The file extension of archives in this format.
+	 */
+	private final String extension;
+
+	/**
+	 * Creates an archive format.
+	 * @param key The key that matches with the given format.
+	 * @param extension The file extension of archives in this format.
+	 */
+	private ArchiveFormat(String key, String extension) {
+		this.key = key;
+		this.extension = extension;
+	}
+
+	/**
+	 * Gets the format based on the given key.
+	 * @param key The key.
+	 * @return The format, and {@code null} if no matches.
+	 */
+	public static ArchiveFormat get(String key) {
+		for (ArchiveFormat candidate : values()) {
+			if (candidate.key.equalsIgnoreCase(key)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a writer for an archive in this format.
+	 * @param out The output the archive is written to.
+	 * @param pool The pool that compresses the blocks.
+	 * @param window The maximum number of blocks in flight.
+	 * @param buffers The buffers blocks are read into and compressed into.
+	 * @param mappingThreshold Files at least this large are memory-mapped, where the format reads files in parallel.
+	 * @param level The deflate compression level.
+	 * @param statistics The counters the writer reports to.
+	 * @return The writer.
+	 */
+	public ArchiveWriter createWriter(OutputStream out, ExecutorService pool, int window, BufferPool buffers, long mappingThreshold, int level, ArchiveStatistics statistics) {
+		switch (this) {
+		case TAR_GZ:
+			return new ParallelTarGzWriter(out, pool, window, buffers, level, statistics);
+		default:
+			ParallelZipWriter writer = new ParallelZipWriter(out, pool, window, buffers, mappingThreshold, level, statistics);
+			writer.setForceZip64(this == ZIP64);
+			return writer;
+		}
+	}
+
+	/**
+	 * Gets the file extension of archives in this format.
+	 * @return The extension, with the leading dot.
+	 */
+	public String getExtension() {
+		return extension;
+	}
+}
@@ -0,0 +1,131 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The verification manifest written next to an archive: the SHA-256 hash and size of every entry and
+ * of the archive itself, computed while the archive was written. Entries are streamed to the file as
+ * they are completed, so memory use does not grow with the number of entries.
+ * Format, one record per line: a header line starting with {@code #}, then {@code F <sha256> <size> <name>}
+ * for every entry and finally {@code A <sha256> <size> <archive name>}. Backslashes and line breaks in
+ * names are escaped as {@code \\}, {@code \n} and {@code \r}.
+ * @author darius
+ */
+public class ArchiveManifest implements Closeable {
+
+	/**
+	 * The file extension of manifests, appended to the archive name.
+	 */
+	public final static String EXTENSION = ".manifest";
+
+	/**
+	 * The first line of every manifest.
+	 */
+	private final static String HEADER = "# sysbuddy archive manifest 1";
+
+	/**
+	 * The manifest file.
+	 */
+	private final Path path;
+
+	/**
+	 * The temporary file written until the manifest is committed.
+	 */
+	private final Path temporary;
+
+	/**
+	 * The name of the archive.
+	 */
+	private final String archiveName;
+
+	/**
+	 * The output.
+	 */
+	private final Writer out;
+
+	/**
+	 * If the manifest was committed.
+	 */
+	private boolean committed;
+
+	/**
+	 * Creates a manifest.
+	 * @param path The manifest file.
+	 * @param archiveName The name of the archive.
+	 * @throws IOException If the file could not be created.
+	 */
+	public ArchiveManifest(Path path, String archiveName) throws IOException {
+		this.path = path;
+		this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		this.archiveName = archiveName;
+		this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporary), StandardCharsets.UTF_8), 1 << 16);
+		out.write(HEADER);
+		out.write('\n');
+	}
+
+	/**
+	 * Records an entry.
+	 * @param name The name of the entry.
+	 * @param size The uncompressed size of the entry.
+	 * @param hash The SHA-256 hash of the uncompressed entry.
+	 * @throws IOException If the manifest could not be written.
+	 */
+	void addEntry(String name, long size, byte[] hash) throws IOException {
+		out.write("F " + toHex(hash) + " " + size + " " + escape(name) + "\n");
+	}
+
+	/**
+	 * Records the archive itself.
+	 * @param size The size of the archive.
+	 * @param hash The SHA-256 hash of the archive.
+	 * @throws IOException If the manifest could not be written.
+	 */
+	void finish(long size, String hash) throws IOException {
+		out.write("A " + hash + " " + size + " " + escape(archiveName) + "\n");
+	}
+
+	/**
+	 * Completes the manifest and moves it into place.
+	 * @throws IOException If the manifest could not be written.
+	 */
+	public void commit() throws IOException {
+		out.close();
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		committed = true;
+	}
+
+	/**
+	 * Gets the manifest file.
+	 * @return The path, which only exists once the manifest is committed.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (committed)
+			return;
+		out.close();
+		Files.deleteIfExists(temporary);
+	}
+
+	private static String escape(String name) {
+		return name.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return builder.toString();
+	}
+}
@@ -0,0 +1,145 @@
+package com.sysbuddy.backup.archive;
+
+/**
+ * Counters collected while an archive is written, reported in the run summary of a task.
+ * @author darius
+ */
+public class ArchiveStatistics {
+
+	/**
+	 * The number of entries written with the STORED method.
+	 */
+	private long storedEntries;
+
+	/**
+	 * The number of bytes written with the STORED method.
+	 */
+	private long storedBytes;
+
+	/**
+	 * The number of entries written with the DEFLATED method.
+	 */
+	private long deflatedEntries;
+
+	/**
+	 * The number of uncompressed bytes of deflated entries.
+	 */
+	private long deflatedBytes;
+
+	/**
+	 * The number of compressed bytes of deflated entries.
+	 */
+	private long compressedBytes;
+
+	/**
+	 * The size of the complete archive.
+	 */
+	private long archiveSize;
+
+	/**
+	 * The SHA-256 hash of the complete archive, {@code null} if it was not hashed.
+	 */
+	private String archiveHash;
+
+	/**
+	 * Records an entry written with the STORED method.
+	 * @param size The size of the entry.
+	 */
+	void addStored(long size) {
+		storedEntries++;
+		storedBytes += size;
+	}
+
+	/**
+	 * Records an entry written with the DEFLATED method.
+	 * @param size The uncompressed size of the entry.
+	 * @param compressedSize The compressed size of the entry.
+	 */
+	void addDeflated(long size, long compressedSize) {
+		deflatedEntries++;
+		deflatedBytes += size;
+		compressedBytes += compressedSize;
+	}
+
+	/**
+	 * Records compressed output that is not attributed to a single entry, such as a block of a compressed tar stream.
+	 * @param compressedSize The compressed size.
+	 */
+	void addCompressed(long compressedSize) {
+		compressedBytes += compressedSize;
+	}
+
+	/**
+	 * Records the complete archive.
+	 * @param size The size of the archive.
+	 * @param hash The SHA-256 hash of the archive, {@code null} if it was not hashed.
+	 */
+	void setArchive(long size, String hash) {
+		this.archiveSize = size;
+		this.archiveHash = hash;
+	}
+
+	/**
+	 * Gets the number of entries written with the STORED method.
+	 * @return The number of entries.
+	 */
+	public long getStoredEntries() {
+		return storedEntries;
+	}
+
+	/**
+	 * Gets the number of bytes written with the STORED method.
+	 * @return The number of bytes.
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Gets the number of entries written with the DEFLATED method.
+	 * @return The number of entries.
+	 */
+	public long getDeflatedEntries() {
+		return deflatedEntries;
+	}
+
+	/**
+	 * Gets the number of uncompressed bytes of deflated entries.
+	 * @return The number of bytes.
+	 */
+	public long getDeflatedBytes() {
+		return deflatedBytes;
+	}
+
+	/**
+	 * Gets the number of compressed bytes of deflated entries.
+	 * @return The number of bytes.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Gets the size of the complete archive.
+	 * @return The number of bytes.
+	 */
+	public long getArchiveSize() {
+		return archiveSize;
+	}
+
+	/**
+	 * Gets the SHA-256 hash of the complete archive.
+	 * @return The hash in hexadecimal, {@code null} if the archive was not hashed.
+	 */
+	public String getArchiveHash() {
+		return archiveHash;
+	}
+
+	@Override
+	public String toString() {
+		return (storedEntries + deflatedEntries) + " entries, " + storedBytes + " bytes stored ("
+				+ storedEntries + " entries), " + deflatedBytes + " bytes deflated to " + compressedBytes
+				+ " (" + deflatedEntries + " entries), archive " + archiveSize + " bytes"
+				+ (archiveHash == null ? "" : " sha256 " + archiveHash);
+	}
+}
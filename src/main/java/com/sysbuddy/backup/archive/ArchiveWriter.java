@@ -0,0 +1,75 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import com.sysbuddy.io.RateLimiter;
+
+/**
+ * Writes the entries of an archive in one of the {@link ArchiveFormat formats}.
+ * Entries are added from a single thread; implementations may compress them on a worker pool.
+ * @author darius
+ */
+public interface ArchiveWriter extends Closeable {
+
+	/**
+	 * Sets the extensions of files that are always stored rather than compressed.
+	 * Formats that compress the archive as a whole ignore them.
+	 * @param storedExtensions The extensions, without the leading dot.
+	 */
+	public void setStoredExtensions(Set<String> storedExtensions);
+
+	/**
+	 * Paces the reads of files added with {@link #putFile(String, Path, long, long)}.
+	 * @param limiter The limiter the bytes read are taken from, {@code null} for unlimited reads.
+	 */
+	public void setRateLimiter(RateLimiter limiter);
+
+	/**
+	 * Hashes every entry and the archive itself with SHA-256 as they are written, and records the hashes
+	 * in a manifest. Must be called before the first entry is added.
+	 * @param manifest The manifest.
+	 * @throws IOException If SHA-256 is not available.
+	 */
+	public void setManifest(ArchiveManifest manifest) throws IOException;
+
+	/**
+	 * Adds a file to the archive.
+	 * @param name The name of the entry.
+	 * @param file The file to archive.
+	 * @param size The size of the file.
+	 * @param lastModified The modification time of the file (milliseconds).
+	 * @throws IOException If the file or a previously added entry could not be written.
+	 */
+	public void putFile(String name, Path file, long size, long lastModified) throws IOException;
+
+	/**
+	 * Adds an entry whose contents are already in memory, such as generated metadata.
+	 * @param name The name of the entry.
+	 * @param data The contents of the entry.
+	 * @param lastModified The modification time of the entry (milliseconds).
+	 * @throws IOException If a previously added entry could not be written.
+	 */
+	public void putBytes(String name, byte[] data, long lastModified) throws IOException;
+
+	/**
+	 * Writes every pending entry and the end of the archive, without closing the output.
+	 * @throws IOException If the archive could not be written.
+	 */
+	public void finish() throws IOException;
+
+	/**
+	 * Discards the archive after a failure: waits for the pending blocks, releases their buffers and closes
+	 * the output without writing the end of the archive, so a partial archive never looks complete.
+	 * @throws IOException If the output could not be closed.
+	 */
+	public void abort() throws IOException;
+
+	/**
+	 * Gets the number of bytes written to the output so far.
+	 * @return The number of bytes.
+	 */
+	public long getWritten();
+}
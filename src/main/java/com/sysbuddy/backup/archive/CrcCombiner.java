@@ -0,0 +1,85 @@
+package com.sysbuddy.backup.archive;
+
+/**
+ * Combines the CRC-32 checksums of two consecutive byte ranges without re-reading them.
+ * Port of zlib's {@code crc32_combine}, used to join the checksums of blocks that were
+ * compressed independently.
+ * @author darius
+ */
+final class CrcCombiner {
+
+	/**
+	 * The dimension of the GF(2) matrices (the CRC's bit length).
+	 */
+	private final static int GF2_DIM = 32;
+
+	/**
+	 * The reversed CRC-32 polynomial.
+	 */
+	private final static long POLYNOMIAL = 0xedb88320L;
+
+	private CrcCombiner() {
+	}
+
+	/**
+	 * Combines two checksums.
+	 * @param crc1 The checksum of the first range.
+	 * @param crc2 The checksum of the second range.
+	 * @param length2 The length, in bytes, of the second range.
+	 * @return The checksum of both ranges concatenated.
+	 */
+	static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0)
+			return crc1;
+
+		long[] even = new long[GF2_DIM];
+		long[] odd = new long[GF2_DIM];
+
+		odd[0] = POLYNOMIAL;
+		long row = 1;
+		for (int n = 1; n < GF2_DIM; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		square(even, odd);
+		square(odd, even);
+
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0)
+				crc1 = times(even, crc1);
+			length2 >>= 1;
+
+			if (length2 == 0)
+				break;
+
+			square(odd, even);
+			if ((length2 & 1) != 0)
+				crc1 = times(odd, crc1);
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return (crc1 ^ crc2) & 0xffffffffL;
+	}
+
+	/**
+	 * Multiplies a vector by a GF(2) matrix.
+	 */
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Squares a GF(2) matrix into {@code square}.
+	 */
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < GF2_DIM; n++)
+			square[n] = times(matrix, matrix[n]);
+	}
+}
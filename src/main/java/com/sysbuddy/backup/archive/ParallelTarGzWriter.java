@@ -0,0 +1,706 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sysbuddy.io.BufferPool;
+import com.sysbuddy.io.RateLimiter;
+
+/**
+ * Writes streaming tar archives compressed with gzip on a worker pool.
+ * The tar stream is laid out in pooled blocks on the calling thread; every full block is compressed
+ * independently into its own gzip member and the members are written back in submission order.
+ * A gzip file may hold any number of members, so the result is read by {@code gzip} and {@code tar}
+ * like any other {@code .tar.gz}. Nothing is kept per entry once it is written, so memory use does
+ * not grow with the number of entries. Names longer than the ustar fields allow, non-ASCII names and
+ * files of 8 GiB or more are described by PAX extended headers.
+ * @author darius
+ */
+public class ParallelTarGzWriter implements ArchiveWriter {
+
+	/**
+	 * The size of a tar record.
+	 */
+	private final static int RECORD = 512;
+
+	/**
+	 * The longest name that fits the name field of a ustar header.
+	 */
+	private final static int NAME_LENGTH = 100;
+
+	/**
+	 * Files at least this large do not fit the size field of a ustar header.
+	 */
+	private final static long MAX_USTAR_SIZE = 077777777777L;
+
+	/**
+	 * Header type flags.
+	 */
+	private final static byte TYPE_FILE = '0';
+	private final static byte TYPE_PAX = 'x';
+
+	/**
+	 * The magic and version of a ustar header.
+	 */
+	private final static byte[] MAGIC = {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+
+	/**
+	 * The header of every gzip member: deflate, no flags, no time stamp, unknown operating system.
+	 */
+	private final static byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	/**
+	 * The output the archive is written to.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * The pool that compresses the blocks.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * The maximum number of blocks in flight. Bounds the memory held by pending blocks.
+	 */
+	private final int window;
+
+	/**
+	 * The buffers the tar stream is laid out in and compressed into.
+	 */
+	private final BufferPool buffers;
+
+	/**
+	 * The counters of the archive.
+	 */
+	private final ArchiveStatistics statistics;
+
+	/**
+	 * The deflate compression level.
+	 */
+	private final int level;
+
+	/**
+	 * Per worker deflaters, reset between blocks.
+	 */
+	private final ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * The blocks submitted to the pool, in archive order.
+	 */
+	private final Deque<PendingBlock> pending = new ArrayDeque<PendingBlock>();
+
+	/**
+	 * The header of the entry being written.
+	 */
+	private final byte[] header = new byte[RECORD];
+
+	/**
+	 * Buffer for copying direct buffers to the output.
+	 */
+	private final byte[] transfer = new byte[1 << 16];
+
+	/**
+	 * Scratch buffer for the gzip trailer.
+	 */
+	private final byte[] trailer = new byte[8];
+
+	/**
+	 * The limiter file reads are taken from, {@code null} for unlimited reads.
+	 */
+	private RateLimiter limiter;
+
+	/**
+	 * The block the tar stream is currently laid out in, {@code null} until the next byte is staged.
+	 */
+	private ByteBuffer staging;
+
+	/**
+	 * The buffer the staging block will be compressed into, taken from the pool together with it.
+	 */
+	private ByteBuffer stagingOutput;
+
+	/**
+	 * The number of bytes written to the output so far.
+	 */
+	private long written;
+
+	/**
+	 * If the end of the archive has been written.
+	 */
+	private boolean finished;
+
+	/**
+	 * If a block failed or the archive was aborted, leaving the archive unusable.
+	 */
+	private boolean failed;
+
+	/**
+	 * The manifest receiving the hash of every entry, {@code null} if entries are not hashed.
+	 */
+	private ArchiveManifest manifest;
+
+	/**
+	 * The digest of the entry being written.
+	 */
+	private MessageDigest entryDigest;
+
+	/**
+	 * The digest of the archive, {@code null} if entries are not hashed.
+	 */
+	private MessageDigest archiveDigest;
+
+	/**
+	 * Creates a parallel tar.gz writer.
+	 * @param out The output the archive is written to.
+	 * @param pool The pool that compresses the blocks.
+	 * @param window The maximum number of blocks in flight.
+	 * @param buffers The buffers the tar stream is laid out in and compressed into; their size is the block size.
+	 * @param level The deflate compression level.
+	 * @param statistics The counters the writer reports to.
+	 */
+	public ParallelTarGzWriter(OutputStream out, ExecutorService pool, int window, BufferPool buffers, final int level, ArchiveStatistics statistics) {
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		this.pool = pool;
+		this.window = Math.max(1, window);
+		this.buffers = buffers;
+		this.level = level;
+		this.statistics = statistics;
+		this.deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+	}
+
+	/**
+	 * Ignored: the archive is compressed as a whole, so single files cannot be stored.
+	 * @param storedExtensions The extensions, without the leading dot.
+	 */
+	@Override
+	public void setStoredExtensions(Set<String> storedExtensions) {
+	}
+
+	@Override
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void setManifest(ArchiveManifest manifest) throws IOException {
+		try {
+			this.entryDigest = MessageDigest.getInstance("SHA-256");
+			this.archiveDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Adds a file to the archive. The file is read on the calling thread and compressed asynchronously.
+	 * The size in the header is binding: a file that shrank since it was listed is padded with zeros,
+	 * one that grew is cut off.
+	 * @param name The name of the entry.
+	 * @param file The file to archive.
+	 * @param size The size of the file.
+	 * @param lastModified The modification time of the file (milliseconds).
+	 * @throws IOException If the file or a previously submitted block could not be written.
+	 */
+	@Override
+	public void putFile(String name, Path file, long size, long lastModified) throws IOException {
+		if (finished)
+			throw new IOException("Archive is already finished");
+
+		writeHeader(name, size, lastModified, Files.isExecutable(file) ? 0755 : 0644);
+		if (manifest != null)
+			entryDigest.reset();
+
+		long remaining = size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long position = 0;
+			while (remaining > 0) {
+				ByteBuffer block = staging();
+				int start = block.position();
+				block.limit((int) Math.min(block.capacity(), start + remaining));
+				int read = channel.read(block, position);
+				block.limit(block.capacity());
+				if (read < 0)
+					break;
+				if (limiter != null)
+					limiter.acquire(read);
+
+				hash(block, start);
+				position += read;
+				remaining -= read;
+			}
+		}
+
+		while (remaining > 0) {
+			ByteBuffer block = staging();
+			int start = block.position();
+			int length = (int) Math.min(block.remaining(), remaining);
+			block.put(new byte[length]);
+			hash(block, start);
+			remaining -= length;
+		}
+
+		pad(size);
+		finishEntry(name, size);
+	}
+
+	@Override
+	public void putBytes(String name, byte[] data, long lastModified) throws IOException {
+		if (finished)
+			throw new IOException("Archive is already finished");
+
+		writeHeader(name, data.length, lastModified, 0644);
+		if (manifest != null) {
+			entryDigest.reset();
+			entryDigest.update(data);
+		}
+		stage(data, 0, data.length);
+		pad(data.length);
+		finishEntry(name, data.length);
+	}
+
+	/**
+	 * Writes the header of an entry, preceded by a PAX extended header if the ustar fields cannot hold it.
+	 * @param name The name of the entry.
+	 * @param size The size of the entry.
+	 * @param lastModified The modification time of the entry (milliseconds).
+	 * @param mode The permission bits.
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	private void writeHeader(String name, long size, long lastModified, int mode) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		boolean longName = bytes.length > NAME_LENGTH || bytes.length != name.length();
+		boolean largeSize = size > MAX_USTAR_SIZE;
+		long mtime = Math.max(0, lastModified / 1000);
+
+		if (longName || largeSize) {
+			StringBuilder records = new StringBuilder();
+			if (longName)
+				records.append(paxRecord("path", name));
+			if (largeSize)
+				records.append(paxRecord("size", Long.toString(size)));
+			byte[] data = records.toString().getBytes(StandardCharsets.UTF_8);
+
+			fillHeader(ustarName("PaxHeaders/" + name), data.length, mtime, 0644, TYPE_PAX);
+			stage(header, 0, RECORD);
+			stage(data, 0, data.length);
+			pad(data.length);
+		}
+
+		fillHeader(longName ? ustarName(name) : bytes, largeSize ? 0 : size, mtime, mode, TYPE_FILE);
+		stage(header, 0, RECORD);
+	}
+
+	/**
+	 * Fills the ustar header buffer.
+	 * @param name The name field, at most 100 bytes.
+	 * @param size The size field.
+	 * @param mtime The modification time (seconds).
+	 * @param mode The permission bits.
+	 * @param type The type flag.
+	 */
+	private void fillHeader(byte[] name, long size, long mtime, int mode, byte type) {
+		Arrays.fill(header, (byte) 0);
+		System.arraycopy(name, 0, header, 0, name.length);
+		octal(mode, 100, 8);
+		octal(0, 108, 8);
+		octal(0, 116, 8);
+		octal(size, 124, 12);
+		octal(mtime, 136, 12);
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		header[156] = type;
+		System.arraycopy(MAGIC, 0, header, 257, MAGIC.length);
+
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		octal(checksum, 148, 7);
+	}
+
+	/**
+	 * Writes a zero-padded octal number followed by a NUL into the header buffer.
+	 * @param value The number.
+	 * @param offset The position of the field.
+	 * @param length The length of the field, including the NUL.
+	 */
+	private void octal(long value, int offset, int length) {
+		for (int i = offset + length - 2; i >= offset; i--) {
+			header[i] = (byte) ('0' + (value & 7));
+			value >>>= 3;
+		}
+		header[offset + length - 1] = 0;
+	}
+
+	/**
+	 * Shortens a name to the ASCII characters that fit the name field, for readers without PAX support.
+	 * @param name The name.
+	 * @return The name field.
+	 */
+	private static byte[] ustarName(String name) {
+		StringBuilder ascii = new StringBuilder();
+		for (int i = 0; i < name.length() && ascii.length() < NAME_LENGTH; i++) {
+			char c = name.charAt(i);
+			ascii.append(c < 0x80 ? c : '_');
+		}
+		return ascii.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Formats a PAX record, which starts with its own length in bytes.
+	 * @param key The keyword.
+	 * @param value The value.
+	 * @return The record.
+	 */
+	private static String paxRecord(String key, String value) {
+		int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+		int length = body + Integer.toString(body).length();
+		if (Integer.toString(length).length() > Integer.toString(body).length())
+			length++;
+		return length + " " + key + "=" + value + "\n";
+	}
+
+	/**
+	 * Pads an entry to a whole number of records.
+	 * @param size The size of the entry.
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	private void pad(long size) throws IOException {
+		int padding = (int) ((RECORD - size % RECORD) % RECORD);
+		stage(new byte[padding], 0, padding);
+	}
+
+	private void finishEntry(String name, long size) throws IOException {
+		if (manifest != null)
+			manifest.addEntry(name, size, entryDigest.digest());
+
+		if (level == 0)
+			statistics.addStored(size);
+		else
+			statistics.addDeflated(size, 0);
+	}
+
+	private void hash(ByteBuffer block, int start) {
+		if (manifest == null)
+			return;
+		ByteBuffer slice = block.duplicate();
+		slice.flip();
+		slice.position(start);
+		entryDigest.update(slice);
+	}
+
+	/**
+	 * Copies bytes into the staging blocks.
+	 * @param data The bytes.
+	 * @param offset The offset of the bytes.
+	 * @param length The number of bytes.
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	private void stage(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			ByteBuffer block = staging();
+			int count = Math.min(block.remaining(), length);
+			block.put(data, offset, count);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Gets the block to stage bytes in, submitting the current one first if it is full.
+	 * @return A block with space remaining.
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	private ByteBuffer staging() throws IOException {
+		if (staging != null && !staging.hasRemaining())
+			submit();
+		if (staging == null) {
+			ByteBuffer[] acquired = acquire(2);
+			staging = acquired[0];
+			stagingOutput = acquired[1];
+		}
+		return staging;
+	}
+
+	/**
+	 * Submits the staging block to the pool.
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	private void submit() throws IOException {
+		while (pending.size() >= window)
+			drain(pending.poll());
+
+		PendingBlock block = new PendingBlock(staging);
+		block.output = stagingOutput;
+		staging = null;
+		stagingOutput = null;
+
+		block.input.flip();
+		block.future = pool.submit(new CompressJob(block));
+		pending.add(block);
+	}
+
+	/**
+	 * Takes buffers from the pool at once. While the pool is exhausted, this writer's own pending blocks
+	 * are written out to free their buffers; only when it holds none does it wait for other writers.
+	 * A block's input and output are taken together, so a writer never waits while holding a buffer.
+	 * @param count The number of buffers.
+	 * @return The buffers.
+	 * @throws IOException If a pending block could not be written, or the thread was interrupted.
+	 */
+	private ByteBuffer[] acquire(int count) throws IOException {
+		ByteBuffer[] acquired;
+		while ((acquired = buffers.tryAcquire(count)) == null) {
+			if (pending.isEmpty())
+				return buffers.acquire(count);
+			drain(pending.poll());
+		}
+		return acquired;
+	}
+
+	/**
+	 * Writes the end of the archive and waits for all pending blocks, without closing the output.
+	 * @throws IOException If the archive could not be written.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (finished)
+			return;
+
+		stage(new byte[RECORD * 2], 0, RECORD * 2);
+		submit();
+		while (!pending.isEmpty())
+			drain(pending.poll());
+
+		out.flush();
+		finished = true;
+
+		String hash = archiveDigest == null ? null : ArchiveManifest.toHex(archiveDigest.digest());
+		statistics.setArchive(written, hash);
+		if (manifest != null)
+			manifest.finish(written, hash);
+	}
+
+	@Override
+	public void abort() throws IOException {
+		failed = true;
+		close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!failed)
+				finish();
+		} finally {
+			buffers.release(staging);
+			buffers.release(stagingOutput);
+			staging = null;
+			stagingOutput = null;
+			for (PendingBlock block : pending) {
+				if (!block.future.cancel(false))
+					settle(block.future);
+				block.release();
+			}
+			pending.clear();
+			out.close();
+		}
+	}
+
+	/**
+	 * Waits for a job to complete, ignoring its outcome and interrupts, so its buffers can be reused safely.
+	 * @param future The job.
+	 */
+	private static void settle(Future<Block> future) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				future.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException | CancellationException e) {
+				break;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Waits for a block and writes it as a gzip member.
+	 * @param pendingBlock The block.
+	 * @throws IOException If the block could not be compressed or written.
+	 */
+	private void drain(PendingBlock pendingBlock) throws IOException {
+		Block block;
+		try {
+			block = pendingBlock.future.get();
+		} catch (InterruptedException e) {
+			failed = true;
+			settle(pendingBlock.future);
+			pendingBlock.release();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing the archive", e);
+		} catch (ExecutionException e) {
+			failed = true;
+			pendingBlock.release();
+			throw new IOException("Could not compress the archive", e.getCause());
+		}
+
+		int compressed = GZIP_HEADER.length + block.data.remaining() + trailer.length;
+		try {
+			write(GZIP_HEADER, 0, GZIP_HEADER.length);
+			write(block.data);
+			for (int i = 0; i < 4; i++) {
+				trailer[i] = (byte) (block.crc >>> (i * 8));
+				trailer[i + 4] = (byte) (block.size >>> (i * 8));
+			}
+			write(trailer, 0, trailer.length);
+		} finally {
+			pendingBlock.release();
+		}
+
+		if (level != 0)
+			statistics.addCompressed(compressed);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+
+		while (buffer.hasRemaining()) {
+			int length = Math.min(transfer.length, buffer.remaining());
+			buffer.get(transfer, 0, length);
+			write(transfer, 0, length);
+		}
+	}
+
+	private void write(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		written += length;
+		if (archiveDigest != null)
+			archiveDigest.update(data, offset, length);
+	}
+
+	/**
+	 * Deflates one staged block into the body of a gzip member.
+	 */
+	private final class CompressJob implements Callable<Block> {
+
+		private final PendingBlock block;
+
+		CompressJob(PendingBlock block) {
+			this.block = block;
+		}
+
+		@Override
+		public Block call() {
+			ByteBuffer source = block.input;
+			int size = source.remaining();
+			CRC32 crc = new CRC32();
+			crc.update(source.duplicate());
+
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(source.duplicate());
+			deflater.finish();
+
+			ByteBuffer output = block.output;
+			output.clear();
+
+			try {
+				while (!deflater.finished()) {
+					if (!output.hasRemaining())
+						output = grow(output);
+					deflater.deflate(output);
+				}
+			} finally {
+				deflater.reset();
+			}
+
+			output.flip();
+			return new Block(output, crc.getValue(), size);
+		}
+
+		/**
+		 * Moves compressed output into a larger heap buffer, for the rare block that does not fit its pooled buffer.
+		 * @param output The full buffer.
+		 * @return The larger buffer, positioned after the copied data.
+		 */
+		private ByteBuffer grow(ByteBuffer output) {
+			ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+			output.flip();
+			larger.put(output);
+			return larger;
+		}
+	}
+
+	/**
+	 * A compressed block.
+	 */
+	private final static class Block {
+
+		final ByteBuffer data;
+		final long crc;
+		final long size;
+
+		Block(ByteBuffer data, long crc, long size) {
+			this.data = data;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * A block that has been submitted to the pool, with the pooled buffers it holds until written.
+	 */
+	private final class PendingBlock {
+
+		ByteBuffer input;
+		ByteBuffer output;
+		Future<Block> future;
+
+		PendingBlock(ByteBuffer input) {
+			this.input = input;
+		}
+
+		void release() {
+			buffers.release(input);
+			buffers.release(output);
+			input = null;
+			output = null;
+		}
+	}
+}
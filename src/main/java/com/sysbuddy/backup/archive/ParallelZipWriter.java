@@ -0,0 +1,1045 @@
+package com.sysbuddy.backup.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sysbuddy.io.BufferPool;
+import com.sysbuddy.io.RateLimiter;
+
+/**
+ * Writes ZIP archives whose entries are deflated on a worker pool.
+ * Files are cut into fixed-size blocks that are compressed independently and written back
+ * in submission order, so the layout of the archive does not depend on the number of workers.
+ * Blocks of the same entry are joined with sync flushes and their checksums are merged with
+ * {@link CrcCombiner}. ZIP64 records are written when sizes, offsets or the entry count require them,
+ * or for every entry when {@link #setForceZip64(boolean) forced}. Central directory records are spooled
+ * to a temporary file as entries complete, so memory use does not grow with the number of entries.
+ * @author darius
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+
+	/**
+	 * Record signatures.
+	 */
+	private final static int LOCAL_HEADER = 0x04034b50;
+	private final static int DATA_DESCRIPTOR = 0x08074b50;
+	private final static int CENTRAL_HEADER = 0x02014b50;
+	private final static int ZIP64_END = 0x06064b50;
+	private final static int ZIP64_LOCATOR = 0x07064b50;
+	private final static int END = 0x06054b50;
+
+	/**
+	 * The value written in place of a field that is stored in the ZIP64 extra field.
+	 */
+	private final static long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	/**
+	 * The value written in place of an entry count that is stored in the ZIP64 end record.
+	 */
+	private final static int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	/**
+	 * Entries at least this large are given ZIP64 headers up front, before their compressed size is known.
+	 */
+	private final static long ZIP64_THRESHOLD = 0xF0000000L;
+
+	/**
+	 * The header id of the ZIP64 extended information extra field.
+	 */
+	private final static int ZIP64_EXTRA = 0x0001;
+
+	/**
+	 * General purpose flag: the checksum and sizes follow the data in a descriptor.
+	 */
+	private final static int FLAG_DESCRIPTOR = 1 << 3;
+
+	/**
+	 * General purpose flag: the entry name is UTF-8 encoded.
+	 */
+	private final static int FLAG_UTF8 = 1 << 11;
+
+	/**
+	 * The ZIP compression method for entries written as is.
+	 */
+	private final static int METHOD_STORED = 0;
+
+	/**
+	 * The ZIP compression method for deflated entries.
+	 */
+	private final static int METHOD_DEFLATED = 8;
+
+	/**
+	 * The largest uncompressed block of a deflate stream.
+	 */
+	private final static int STORED_BLOCK = 0xFFFF;
+
+	/**
+	 * The number of bytes sampled from the start of a large file to estimate its entropy.
+	 */
+	private final static int ENTROPY_SAMPLE = 1 << 16;
+
+	/**
+	 * Files whose sample has more entropy than this (bits per byte) are stored rather than deflated.
+	 */
+	private final static double ENTROPY_THRESHOLD = 7.5;
+
+	/**
+	 * The output the archive is written to.
+	 */
+	private final OutputStream out;
+
+	/**
+	 * The pool that compresses the blocks.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * The maximum number of blocks in flight. Bounds the memory held by pending blocks.
+	 */
+	private final int window;
+
+	/**
+	 * The buffers blocks are read into and compressed into.
+	 */
+	private final BufferPool buffers;
+
+	/**
+	 * The size of the blocks large files are split into, equal to the size of the pooled buffers.
+	 */
+	private final int blockSize;
+
+	/**
+	 * Files at least this large are memory-mapped rather than read into pooled buffers.
+	 */
+	private final long mappingThreshold;
+
+	/**
+	 * The deflate compression level.
+	 */
+	private final int level;
+
+	/**
+	 * The lower-case extensions of files that are always stored rather than deflated.
+	 */
+	private Set<String> storedExtensions = Collections.emptySet();
+
+	/**
+	 * The counters of the archive.
+	 */
+	private final ArchiveStatistics statistics;
+
+	/**
+	 * Per worker deflaters, reset between blocks.
+	 */
+	private final ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * The blocks submitted to the pool, in archive order.
+	 */
+	private final Deque<PendingBlock> pending = new ArrayDeque<PendingBlock>();
+
+	/**
+	 * The temporary file the central directory is spooled to, {@code null} until the first entry completes.
+	 */
+	private Path directoryFile;
+
+	/**
+	 * The output of the spooled central directory.
+	 */
+	private OutputStream directory;
+
+	/**
+	 * The number of records in the spooled central directory.
+	 */
+	private long directoryCount;
+
+	/**
+	 * The limiter file reads are taken from, {@code null} for unlimited reads.
+	 */
+	private RateLimiter limiter;
+
+	/**
+	 * If every entry is given ZIP64 headers and the ZIP64 end records are always written.
+	 */
+	private boolean forceZip64;
+
+	/**
+	 * Scratch buffer for little-endian writes.
+	 */
+	private final byte[] scratch = new byte[8];
+
+	/**
+	 * Buffer for copying direct buffers to the output.
+	 */
+	private final byte[] transfer = new byte[1 << 16];
+
+	/**
+	 * Buffer for the entropy sample of large files.
+	 */
+	private final ByteBuffer sample = ByteBuffer.allocate(ENTROPY_SAMPLE);
+
+	/**
+	 * The number of bytes written to the output so far.
+	 */
+	private long written;
+
+	/**
+	 * If the central directory has been written.
+	 */
+	private boolean finished;
+	
+	/**
+	 * If a block failed or the archive was aborted, leaving the archive unusable.
+	 */
+	private boolean failed;
+
+	/**
+	 * The manifest receiving the hash of every entry, {@code null} if entries are not hashed.
+	 */
+	private ArchiveManifest manifest;
+
+	/**
+	 * The digest of the entry being written. Blocks are written in order, so one digest serves every entry.
+	 */
+	private MessageDigest entryDigest;
+
+	/**
+	 * The digest of the archive, {@code null} if entries are not hashed.
+	 */
+	private MessageDigest archiveDigest;
+
+	/**
+	 * Creates a parallel ZIP writer.
+	 * @param out The output the archive is written to.
+	 * @param pool The pool that compresses the blocks.
+	 * @param window The maximum number of blocks in flight.
+	 * @param buffers The buffers blocks are read into and compressed into; their size is the block size.
+	 * @param mappingThreshold Files at least this large are memory-mapped rather than read into pooled buffers.
+	 * @param level The deflate compression level, {@code 0} to leave every entry uncompressed.
+	 * @param statistics The counters the writer reports to.
+	 */
+	public ParallelZipWriter(OutputStream out, ExecutorService pool, int window, BufferPool buffers, long mappingThreshold, final int level, ArchiveStatistics statistics) {
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		this.pool = pool;
+		this.window = Math.max(1, window);
+		this.buffers = buffers;
+		this.blockSize = buffers.getBufferSize();
+		this.mappingThreshold = mappingThreshold;
+		this.level = level;
+		this.statistics = statistics;
+		this.deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+	}
+
+	/**
+	 * Sets the extensions of files that are always stored rather than deflated.
+	 * @param storedExtensions The extensions, without the leading dot.
+	 */
+	@Override
+	public void setStoredExtensions(Set<String> storedExtensions) {
+		Set<String> lower = new HashSet<String>();
+		for (String extension : storedExtensions)
+			lower.add(extension.toLowerCase(Locale.ROOT));
+		this.storedExtensions = lower;
+	}
+
+	@Override
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Gives every entry ZIP64 headers and always writes the ZIP64 end records, for readers that
+	 * expect an archive to be ZIP64 throughout. Must be called before the first entry is added.
+	 * @param forceZip64 {@code true} to force ZIP64.
+	 */
+	public void setForceZip64(boolean forceZip64) {
+		this.forceZip64 = forceZip64;
+	}
+
+	/**
+	 * Hashes every entry and the archive itself with SHA-256 as they are written, and records the hashes
+	 * in a manifest. Must be called before the first entry is added.
+	 * @param manifest The manifest.
+	 * @throws IOException If SHA-256 is not available.
+	 */
+	@Override
+	public void setManifest(ArchiveManifest manifest) throws IOException {
+		try {
+			this.entryDigest = MessageDigest.getInstance("SHA-256");
+			this.archiveDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Adds a file to the archive. The file is read and compressed asynchronously;
+	 * this method only blocks when the window of pending blocks is full.
+	 * Files are stored rather than deflated when their extension is listed, or when they span
+	 * several blocks and a sample of their start looks incompressible. Single-block files are
+	 * stored when deflating them does not make them smaller. A file spanning several blocks is
+	 * followed by a data descriptor, which readers only accept on deflated entries, so such a file
+	 * is written as uncompressed deflate blocks instead of being stored.
+	 * @param name The name of the entry.
+	 * @param file The file to archive.
+	 * @param size The size of the file.
+	 * @param lastModified The modification time of the file (milliseconds).
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	@Override
+	public void putFile(String name, Path file, long size, long lastModified) throws IOException {
+		if (finished)
+			throw new IOException("Archive is already finished");
+
+		Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), toDosTime(lastModified));
+		long blocks = Math.max(1, (size + blockSize - 1) / blockSize);
+		entry.descriptor = blocks > 1;
+		entry.zip64 = forceZip64 || size >= ZIP64_THRESHOLD;
+		boolean mapped = size >= mappingThreshold;
+		long submitted = 0;
+
+		try {
+			if (blocks > 1)
+				entry.channel = FileChannel.open(file, StandardOpenOption.READ);
+			entry.method = chooseMethod(name, entry.channel);
+			if (entry.method == METHOD_STORED && entry.descriptor) {
+				entry.method = METHOD_DEFLATED;
+				entry.framed = true;
+			}
+
+			for (; submitted < blocks; submitted++) {
+				long position = submitted * blockSize;
+				int length = (int) Math.min(blockSize, size - position);
+				boolean last = submitted == blocks - 1;
+
+				while (pending.size() >= window)
+					drain(pending.poll());
+
+				PendingBlock block = new PendingBlock(entry, submitted == 0, last);
+				boolean output = entry.method != METHOD_STORED && !entry.framed;
+				ByteBuffer[] acquired = acquire((mapped ? 0 : 1) + (output ? 1 : 0));
+				block.input = mapped ? null : acquired[0];
+				block.output = output ? acquired[acquired.length - 1] : null;
+
+				block.future = pool.submit(new DeflateJob(block, file, null, position, length, mapped, entry.framed ? METHOD_STORED : entry.method));
+				pending.add(block);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (submitted == 0)
+				entry.closeChannel();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds an entry whose contents are already in memory, such as generated metadata.
+	 * @param name The name of the entry.
+	 * @param data The contents of the entry.
+	 * @param lastModified The modification time of the entry (milliseconds).
+	 * @throws IOException If a previously submitted block could not be written.
+	 */
+	@Override
+	public void putBytes(String name, byte[] data, long lastModified) throws IOException {
+		if (finished)
+			throw new IOException("Archive is already finished");
+
+		Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), toDosTime(lastModified));
+		entry.method = level == 0 ? METHOD_STORED : METHOD_DEFLATED;
+		entry.zip64 = forceZip64;
+
+		while (pending.size() >= window)
+			drain(pending.poll());
+
+		PendingBlock block = new PendingBlock(entry, true, true);
+		block.output = entry.method == METHOD_STORED ? null : acquire(1)[0];
+		block.future = pool.submit(new DeflateJob(block, null, ByteBuffer.wrap(data), 0, data.length, false, entry.method));
+		pending.add(block);
+	}
+
+	/**
+	 * Takes all the buffers a block needs from the pool at once. While the pool is exhausted, this writer's
+	 * own pending blocks are written out to free their buffers; only when it holds none does it wait for
+	 * other writers. A writer never waits while holding a buffer, so writers sharing the pool cannot
+	 * deadlock each other.
+	 * @param count The number of buffers.
+	 * @return The buffers.
+	 * @throws IOException If a pending block could not be written, or the thread was interrupted.
+	 */
+	private ByteBuffer[] acquire(int count) throws IOException {
+		ByteBuffer[] acquired;
+		while ((acquired = buffers.tryAcquire(count)) == null) {
+			if (pending.isEmpty())
+				return buffers.acquire(count);
+			drain(pending.poll());
+		}
+		return acquired;
+	}
+
+	/**
+	 * Chooses the compression method of a file.
+	 * @param name The name of the entry.
+	 * @param channel The open file if it spans several blocks and should be sampled for its entropy, otherwise {@code null}.
+	 * @return The compression method.
+	 * @throws IOException If the file could not be sampled.
+	 */
+	private int chooseMethod(String name, FileChannel channel) throws IOException {
+		if (level == 0)
+			return METHOD_STORED;
+
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0 && dot > name.lastIndexOf('/') && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)))
+			return METHOD_STORED;
+
+		if (channel != null) {
+			sample.clear();
+			while (sample.hasRemaining() && channel.read(sample, sample.position()) >= 0);
+			if (entropy(sample.array(), sample.position()) > ENTROPY_THRESHOLD)
+				return METHOD_STORED;
+		}
+
+		return METHOD_DEFLATED;
+	}
+
+	/**
+	 * Estimates the Shannon entropy of a sample.
+	 * @param data The sample.
+	 * @param length The length of the sample.
+	 * @return The entropy in bits per byte, between {@code 0} and {@code 8}.
+	 */
+	private static double entropy(byte[] data, int length) {
+		if (length == 0)
+			return 0;
+
+		int[] counts = new int[256];
+		for (int i = 0; i < length; i++)
+			counts[data[i] & 0xff]++;
+
+		double entropy = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				double p = (double) count / length;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Waits for all pending blocks and writes the central directory, without closing the output.
+	 * @throws IOException If the archive could not be written.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (finished)
+			return;
+
+		while (!pending.isEmpty())
+			drain(pending.poll());
+
+		writeCentralDirectory();
+		out.flush();
+		finished = true;
+
+		String hash = archiveDigest == null ? null : ArchiveManifest.toHex(archiveDigest.digest());
+		statistics.setArchive(written, hash);
+		if (manifest != null)
+			manifest.finish(written, hash);
+	}
+
+	@Override
+	public void abort() throws IOException {
+		failed = true;
+		close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!failed)
+				finish();
+		} finally {
+			for (PendingBlock block : pending) {
+				if (!block.future.cancel(false))
+					settle(block.future);
+				block.release();
+				block.entry.closeChannel();
+			}
+			pending.clear();
+			try {
+				out.close();
+			} finally {
+				deleteDirectory();
+			}
+		}
+	}
+
+	/**
+	 * Closes and deletes the spooled central directory.
+	 * @throws IOException If the spool could not be closed or deleted.
+	 */
+	private void deleteDirectory() throws IOException {
+		if (directoryFile == null)
+			return;
+		try {
+			directory.close();
+		} finally {
+			Files.deleteIfExists(directoryFile);
+			directoryFile = null;
+		}
+	}
+
+	/**
+	 * Waits for a job to complete, ignoring its outcome and interrupts, so its buffers can be reused safely.
+	 * @param future The job.
+	 */
+	private static void settle(Future<Block> future) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				future.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException | CancellationException e) {
+				break;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Gets the number of bytes written to the output so far.
+	 * @return The number of bytes.
+	 */
+	@Override
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Waits for a block and writes it, along with its entry's header or descriptor.
+	 * @param pendingBlock The block.
+	 * @throws IOException If the block could not be read, compressed or written.
+	 */
+	private void drain(PendingBlock pendingBlock) throws IOException {
+		Block block;
+		try {
+			block = pendingBlock.future.get();
+		} catch (InterruptedException e) {
+			failed = true;
+			settle(pendingBlock.future);
+			pendingBlock.release();
+			pendingBlock.entry.closeChannel();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing " + pendingBlock.entry.nameString(), e);
+		} catch (ExecutionException e) {
+			failed = true;
+			pendingBlock.release();
+			pendingBlock.entry.closeChannel();
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Could not compress " + pendingBlock.entry.nameString(), cause);
+		}
+
+		Entry entry = pendingBlock.entry;
+		if (!entry.framed)
+			entry.method = block.method;
+		entry.crc = pendingBlock.first ? block.crc : CrcCombiner.combine(entry.crc, block.crc, block.size);
+		entry.size += block.size;
+		entry.compressedSize += entry.framed ? block.size + storedOverhead(block.size) : block.data.remaining();
+
+		if (manifest != null) {
+			if (pendingBlock.first)
+				entryDigest.reset();
+			entryDigest.update(block.source.duplicate());
+		}
+
+		try {
+			if (pendingBlock.first) {
+				entry.offset = written;
+				writeLocalHeader(entry);
+			}
+
+			if (entry.framed)
+				writeStoredBlocks(block.data, pendingBlock.last);
+			else
+				write(block.data);
+		} finally {
+			pendingBlock.release();
+			if (pendingBlock.last)
+				entry.closeChannel();
+		}
+
+		if (pendingBlock.last) {
+			if (entry.descriptor)
+				writeDataDescriptor(entry);
+			writeCentralRecord(entry);
+
+			if (manifest != null)
+				manifest.addEntry(entry.nameString(), entry.size, entryDigest.digest());
+
+			if (entry.method == METHOD_STORED || entry.framed)
+				statistics.addStored(entry.size);
+			else
+				statistics.addDeflated(entry.size, entry.compressedSize);
+		}
+	}
+
+	/**
+	 * Writes a block of an entry as uncompressed deflate blocks.
+	 * @param data The block.
+	 * @param last Whether the block ends the entry, in which case its final deflate block is marked as such.
+	 * @throws IOException If the block could not be written.
+	 */
+	private void writeStoredBlocks(ByteBuffer data, boolean last) throws IOException {
+		ByteBuffer remaining = data.duplicate();
+		do {
+			int length = Math.min(STORED_BLOCK, remaining.remaining());
+			scratch[0] = (byte) (last && length == remaining.remaining() ? 1 : 0);
+			write(scratch, 0, 1);
+			writeShort(length);
+			writeShort(~length & 0xFFFF);
+
+			ByteBuffer chunk = remaining.duplicate();
+			chunk.limit(chunk.position() + length);
+			write(chunk);
+			remaining.position(remaining.position() + length);
+		} while (remaining.hasRemaining());
+	}
+
+	/**
+	 * Gets the number of bytes {@link #writeStoredBlocks(ByteBuffer, boolean)} adds to a block.
+	 * @param size The size of the block.
+	 * @return The number of header bytes.
+	 */
+	private static long storedOverhead(long size) {
+		return 5 * Math.max(1, (size + STORED_BLOCK - 1) / STORED_BLOCK);
+	}
+
+	private void writeLocalHeader(Entry entry) throws IOException {
+		boolean zip64 = entry.zip64;
+		writeInt(LOCAL_HEADER);
+		writeShort(zip64 ? 45 : 20);
+		writeShort(entry.flags());
+		writeShort(entry.method);
+		writeInt(entry.time);
+
+		if (entry.descriptor) {
+			writeInt(0);
+			writeInt(zip64 ? ZIP64_MAGIC : 0);
+			writeInt(zip64 ? ZIP64_MAGIC : 0);
+		} else {
+			writeInt(entry.crc);
+			writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+			writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+		}
+
+		writeShort(entry.name.length);
+		writeShort(zip64 ? 20 : 0);
+		write(entry.name, 0, entry.name.length);
+
+		if (zip64) {
+			writeShort(ZIP64_EXTRA);
+			writeShort(16);
+			writeLong(entry.descriptor ? 0 : entry.size);
+			writeLong(entry.descriptor ? 0 : entry.compressedSize);
+		}
+	}
+
+	private void writeDataDescriptor(Entry entry) throws IOException {
+		writeInt(DATA_DESCRIPTOR);
+		writeInt(entry.crc);
+		if (entry.zip64) {
+			writeLong(entry.compressedSize);
+			writeLong(entry.size);
+		} else {
+			writeInt(entry.compressedSize);
+			writeInt(entry.size);
+		}
+	}
+
+	/**
+	 * Spools the central directory record of a finished entry.
+	 * @param entry The entry.
+	 * @throws IOException If the spool could not be written.
+	 */
+	private void writeCentralRecord(Entry entry) throws IOException {
+		if (directoryFile == null) {
+			directoryFile = Files.createTempFile("sysbuddy", ".directory");
+			directory = new BufferedOutputStream(Files.newOutputStream(directoryFile), 1 << 16);
+		}
+
+		boolean largeSize = forceZip64 || entry.size >= ZIP64_MAGIC;
+		boolean largeCompressed = forceZip64 || entry.compressedSize >= ZIP64_MAGIC;
+		boolean largeOffset = forceZip64 || entry.offset >= ZIP64_MAGIC;
+		int extra = (largeSize ? 8 : 0) + (largeCompressed ? 8 : 0) + (largeOffset ? 8 : 0);
+		int version = extra > 0 || entry.zip64 ? 45 : 20;
+
+		ByteBuffer record = ByteBuffer.allocate(46 + entry.name.length + 28).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(CENTRAL_HEADER);
+		record.putShort((short) version);
+		record.putShort((short) version);
+		record.putShort((short) entry.flags());
+		record.putShort((short) entry.method);
+		record.putInt((int) entry.time);
+		record.putInt((int) entry.crc);
+		record.putInt((int) (largeCompressed ? ZIP64_MAGIC : entry.compressedSize));
+		record.putInt((int) (largeSize ? ZIP64_MAGIC : entry.size));
+		record.putShort((short) entry.name.length);
+		record.putShort((short) (extra > 0 ? extra + 4 : 0));
+		record.putShort((short) 0);
+		record.putShort((short) 0);
+		record.putShort((short) 0);
+		record.putInt(0);
+		record.putInt((int) (largeOffset ? ZIP64_MAGIC : entry.offset));
+		record.put(entry.name);
+
+		if (extra > 0) {
+			record.putShort((short) ZIP64_EXTRA);
+			record.putShort((short) extra);
+			if (largeSize)
+				record.putLong(entry.size);
+			if (largeCompressed)
+				record.putLong(entry.compressedSize);
+			if (largeOffset)
+				record.putLong(entry.offset);
+		}
+
+		directory.write(record.array(), 0, record.position());
+		directoryCount++;
+	}
+
+	private void writeCentralDirectory() throws IOException {
+		long start = written;
+
+		if (directoryFile != null) {
+			directory.close();
+			try (InputStream in = Files.newInputStream(directoryFile)) {
+				int read;
+				while ((read = in.read(transfer)) >= 0)
+					write(transfer, 0, read);
+			}
+			deleteDirectory();
+		}
+
+		long end = written;
+		long size = end - start;
+		long count = directoryCount;
+
+		if (forceZip64 || count >= ZIP64_MAGIC_COUNT || size >= ZIP64_MAGIC || start >= ZIP64_MAGIC) {
+			writeInt(ZIP64_END);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(size);
+			writeLong(start);
+
+			writeInt(ZIP64_LOCATOR);
+			writeInt(0);
+			writeLong(end);
+			writeInt(1);
+		}
+
+		writeInt(END);
+		writeShort(0);
+		writeShort(0);
+		writeShort((int) Math.min(count, ZIP64_MAGIC_COUNT));
+		writeShort((int) Math.min(count, ZIP64_MAGIC_COUNT));
+		writeInt(Math.min(size, ZIP64_MAGIC));
+		writeInt(Math.min(start, ZIP64_MAGIC));
+		writeShort(0);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+
+		while (buffer.hasRemaining()) {
+			int length = Math.min(transfer.length, buffer.remaining());
+			buffer.get(transfer, 0, length);
+			write(transfer, 0, length);
+		}
+	}
+
+	private void write(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		written += length;
+		if (archiveDigest != null)
+			archiveDigest.update(data, offset, length);
+	}
+
+	private void writeShort(int value) throws IOException {
+		scratch[0] = (byte) value;
+		scratch[1] = (byte) (value >>> 8);
+		write(scratch, 0, 2);
+	}
+
+	private void writeInt(long value) throws IOException {
+		for (int i = 0; i < 4; i++)
+			scratch[i] = (byte) (value >>> (i * 8));
+		write(scratch, 0, 4);
+	}
+
+	private void writeLong(long value) throws IOException {
+		for (int i = 0; i < 8; i++)
+			scratch[i] = (byte) (value >>> (i * 8));
+		write(scratch, 0, 8);
+	}
+
+	/**
+	 * Converts a Java time stamp into the MS-DOS date/time format used by ZIP headers.
+	 * @param time The time (milliseconds).
+	 * @return The MS-DOS date and time.
+	 */
+	private static long toDosTime(long time) {
+		LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		int year = date.getYear();
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ((long) (year - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16
+				| date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1) & 0xffffffffL;
+	}
+
+	/**
+	 * Reads and deflates one block of a file, or deflates data already in memory.
+	 * Blocks are read into the pooled buffers of their {@link PendingBlock}, or mapped when the file is very large.
+	 */
+	private final class DeflateJob implements Callable<Block> {
+
+		private final PendingBlock block;
+		private final Path file;
+		private final ByteBuffer data;
+		private final long position;
+		private final int length;
+		private final boolean mapped;
+		private final int method;
+
+		DeflateJob(PendingBlock block, Path file, ByteBuffer data, long position, int length, boolean mapped, int method) {
+			this.block = block;
+			this.file = file;
+			this.data = data;
+			this.position = position;
+			this.length = length;
+			this.mapped = mapped;
+			this.method = method;
+		}
+
+		@Override
+		public Block call() throws IOException {
+			ByteBuffer source;
+
+			if (data == null && limiter != null)
+				limiter.acquire(length);
+
+			if (data != null) {
+				source = data.duplicate();
+			} else if (block.entry.channel != null) {
+				source = read(block.entry.channel);
+			} else {
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+					source = read(channel);
+				}
+			}
+
+			int size = source.remaining();
+			CRC32 crc = new CRC32();
+			crc.update(source.duplicate());
+
+			if (method == METHOD_STORED)
+				return new Block(source, source, crc.getValue(), size, METHOD_STORED);
+
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(source.duplicate());
+
+			ByteBuffer output = block.output;
+
+			try {
+				if (block.last) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						if (!output.hasRemaining())
+							output = grow(output);
+						deflater.deflate(output);
+					}
+				} else {
+					while (true) {
+						deflater.deflate(output, Deflater.SYNC_FLUSH);
+						if (output.hasRemaining())
+							break;
+						output = grow(output);
+					}
+				}
+			} finally {
+				deflater.reset();
+			}
+
+			output.flip();
+
+			if (block.last && position == 0 && output.remaining() >= size)
+				return new Block(source, source, crc.getValue(), size, METHOD_STORED);
+
+			return new Block(output, source, crc.getValue(), size, METHOD_DEFLATED);
+		}
+
+		/**
+		 * Reads the block from the file. A file that shrank since it was listed yields a shorter block.
+		 * @param channel The file.
+		 * @return The block, ready to be read.
+		 * @throws IOException If the file could not be read.
+		 */
+		private ByteBuffer read(FileChannel channel) throws IOException {
+			if (mapped) {
+				long available = Math.max(0, Math.min(length, channel.size() - position));
+				return channel.map(FileChannel.MapMode.READ_ONLY, position, available);
+			}
+
+			ByteBuffer input = block.input;
+			input.limit(length);
+			while (input.hasRemaining() && channel.read(input, position + input.position()) >= 0);
+			input.flip();
+			return input;
+		}
+
+		/**
+		 * Moves compressed output into a larger heap buffer, for the rare block that does not fit its pooled buffer.
+		 * @param output The full buffer.
+		 * @return The larger buffer, positioned after the copied data.
+		 */
+		private ByteBuffer grow(ByteBuffer output) {
+			ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+			output.flip();
+			larger.put(output);
+			return larger;
+		}
+	}
+
+	/**
+	 * A compressed block.
+	 */
+	private final static class Block {
+
+		final ByteBuffer data;
+		final ByteBuffer source;
+		final long crc;
+		final long size;
+		final int method;
+
+		Block(ByteBuffer data, ByteBuffer source, long crc, long size, int method) {
+			this.data = data;
+			this.source = source;
+			this.crc = crc;
+			this.size = size;
+			this.method = method;
+		}
+	}
+
+	/**
+	 * A block that has been submitted to the pool, with the pooled buffers it holds until written.
+	 */
+	private final class PendingBlock {
+
+		final Entry entry;
+		final boolean first;
+		final boolean last;
+		ByteBuffer input;
+		ByteBuffer output;
+		Future<Block> future;
+
+		PendingBlock(Entry entry, boolean first, boolean last) {
+			this.entry = entry;
+			this.first = first;
+			this.last = last;
+		}
+
+		void release() {
+			buffers.release(input);
+			buffers.release(output);
+			input = null;
+			output = null;
+		}
+	}
+
+	/**
+	 * The header information of an archive entry.
+	 */
+	private final static class Entry {
+
+		final byte[] name;
+		final long time;
+		boolean descriptor;
+		boolean framed;
+		boolean zip64;
+		int method;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+		volatile FileChannel channel;
+
+		Entry(byte[] name, long time) {
+			this.name = name;
+			this.time = time;
+		}
+
+		void closeChannel() {
+			FileChannel open = channel;
+			if (open == null)
+				return;
+			channel = null;
+			try {
+				open.close();
+			} catch (IOException ignored) {
+			}
+		}
+
+		int flags() {
+			return FLAG_UTF8 | (descriptor ? FLAG_DESCRIPTOR : 0);
+		}
+
+		String nameString() {
+			return new String(name, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -2,6 +2,10 @@ package com.sysbuddy.backup.asset;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Parent class for assets that will be backed up.
@@ -17,4 +21,24 @@ public abstract class BackupAsset {
 	 */
 	public abstract Path copy(final String destination) throws IOException;
 	
+	/**
+	 * Gets the local files and directories the asset reads.
+	 * @return The paths, empty if the asset reads no local files.
+	 */
+	public List<Path> getSources() {
+		return Collections.emptyList();
+	}
+	
+	/**
+	 * Converts configured directories to paths.
+	 * @param directories The directories.
+	 * @return The paths.
+	 */
+	protected static List<Path> toPaths(String... directories) {
+		List<Path> paths = new ArrayList<Path>(directories.length);
+		for (String directory : directories)
+			paths.add(Paths.get(directory));
+		return paths;
+	}
+	
 }
@@ -0,0 +1,142 @@
+package com.sysbuddy.backup.asset.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sysbuddy.backup.asset.BackupAsset;
+import com.sysbuddy.backup.store.ChunkIndex;
+import com.sysbuddy.backup.store.ChunkStore;
+import com.sysbuddy.backup.store.ContentChunker;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.io.DirectoryWalker;
+import com.sysbuddy.util.CancellationToken;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Local directories backed up into a deduplicating {@link ChunkStore}.
+ * The destination of {@link #copy(String)} is the index of the run.
+ * @author darius
+ */
+public class ChunkStoreAsset extends BackupAsset {
+
+	/**
+	 * The number of threads listing directories ahead of the walk.
+	 */
+	private final static int LISTING_THREADS = 4;
+
+	/**
+	 * The directories of the local folders/files that will be backed up.
+	 */
+	private final String[] directories;
+	
+	/**
+	 * The store the chunks are written to.
+	 */
+	private final ChunkStore store;
+	
+	/**
+	 * Splits the files into chunks.
+	 */
+	private final ContentChunker chunker;
+	
+	/**
+	 * If symbolic links are followed, otherwise they are left out of the store.
+	 */
+	private boolean followLinks = true;
+	
+	/**
+	 * Creates a chunk store backup asset.
+	 * @param directories The directories of the local folders/files that will be backed up.
+	 * @param store The store the chunks are written to.
+	 * @param chunker Splits the files into chunks.
+	 */
+	public ChunkStoreAsset(String[] directories, ChunkStore store, ContentChunker chunker) {
+		this.directories = directories;
+		this.store = store;
+		this.chunker = chunker;
+	}
+	
+	@Override
+	public List<Path> getSources() {
+		return toPaths(directories);
+	}
+	
+	@Override
+	public Path copy(String destination) throws IOException {
+		Path index = store.getIndex(new File(destination).getName());
+		
+		final CancellationToken token = CancellationToken.current();
+		ChunkStore.Lease lease = store.lease(new File(destination).getName());
+		ExecutorService pool = Executors.newFixedThreadPool(LISTING_THREADS, Threads.factory("listing"));
+		try (final ChunkIndex.Writer writer = new ChunkIndex.Writer(index)) {
+			DirectoryWalker walker = new DirectoryWalker(pool, GlobalConfiguration.WALKER_PREFETCH, followLinks);
+			DirectoryWalker.Visitor visitor = new DirectoryWalker.Visitor() {
+				@Override
+				public void visit(String entry, Path file, BasicFileAttributes attributes) throws IOException {
+					token.check();
+					store(entry, file, attributes.lastModifiedTime().toMillis(), writer);
+				}
+			};
+			
+			for (String directory : directories) {
+				walker.walk(Paths.get(directory), visitor);
+			}
+			writer.commit();
+		} finally {
+			pool.shutdownNow();
+			lease.close();
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Stores the chunks of a file and adds them to the index.
+	 * @param entry The path of the file relative to the backup.
+	 * @param file The file.
+	 * @param lastModified The modification time of the file (milliseconds).
+	 * @param writer The index of the run.
+	 * @throws IOException If the operation is unsuccessful.
+	 */
+	private void store(String entry, Path file, long lastModified, ChunkIndex.Writer writer) throws IOException {
+		final List<byte[]> hashes = new ArrayList<byte[]>();
+		final long[] size = new long[1];
+		
+		try (InputStream in = Files.newInputStream(file)) {
+			chunker.split(in, new ContentChunker.ChunkConsumer() {
+				@Override
+				public void accept(byte[] buffer, int offset, int length) throws IOException {
+					hashes.add(store.put(buffer, offset, length));
+					size[0] += length;
+				}
+			});
+		}
+		
+		writer.add(entry, size[0], lastModified, hashes);
+	}
+	
+	/**
+	 * Sets if symbolic links are followed. Links that lead back to a parent directory are never followed.
+	 * @param followLinks If symbolic links are followed, otherwise they are left out of the store.
+	 */
+	public void setFollowLinks(boolean followLinks) {
+		this.followLinks = followLinks;
+	}
+	
+	/**
+	 * Gets the store the chunks are written to.
+	 * @return The chunk store.
+	 */
+	public ChunkStore getStore() {
+		return store;
+	}
+}
@@ -1,15 +1,30 @@
 package com.sysbuddy.backup.asset.impl;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
 
+import com.sysbuddy.backup.archive.ArchiveFilter;
+import com.sysbuddy.backup.archive.ArchiveFormat;
+import com.sysbuddy.backup.archive.ArchiveManifest;
+import com.sysbuddy.backup.archive.ArchiveStatistics;
+import com.sysbuddy.backup.archive.ArchiveWriter;
 import com.sysbuddy.backup.asset.BackupAsset;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.io.BufferPool;
+import com.sysbuddy.io.DirectoryWalker;
+import com.sysbuddy.io.RateLimiter;
+import com.sysbuddy.io.VolumeOutputStream;
+import com.sysbuddy.util.CancellationToken;
 
 /**
  * Archiving local directories to be backed up.
@@ -18,11 +33,61 @@ import com.sysbuddy.backup.asset.BackupAsset;
  */
 public class LocalArchiveAsset extends BackupAsset {
 
+	/**
+	 * The suffix of an archive while it is being written.
+	 */
+	public final static String PART = ".part";
+	
+	/**
+	 * The read buffers shared by every archive being written.
+	 */
+	private final static BufferPool BUFFERS = new BufferPool(GlobalConfiguration.ARCHIVE_BLOCK_SIZE, GlobalConfiguration.BUFFER_POOL_CAPACITY);
+	
+	/**
+	 * The limit on file reads shared by every archive being written.
+	 */
+	private final static RateLimiter READ_LIMITER = new RateLimiter("read", GlobalConfiguration.READ_LIMIT, null).register();
+
 	/**
 	 * The directories of the local folders/files that will be archived.
 	 */
 	private final String[] directories;
 	
+	/**
+	 * The number of threads compressing the archive.
+	 */
+	private int workers = GlobalConfiguration.ARCHIVE_WORKERS;
+	
+	/**
+	 * The deflate compression level, {@code 0} to store every file.
+	 */
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	
+	/**
+	 * The extensions of files that are stored rather than deflated.
+	 */
+	private Set<String> storedExtensions = GlobalConfiguration.STORED_EXTENSIONS;
+	
+	/**
+	 * If symbolic links are followed, otherwise they are left out of the archive.
+	 */
+	private boolean followLinks = true;
+	
+	/**
+	 * The size of the volumes the archive is cut into, {@code 0} for a single file.
+	 */
+	private long volumeSize;
+	
+	/**
+	 * The format the archive is written in.
+	 */
+	private ArchiveFormat format = ArchiveFormat.ZIP;
+	
+	/**
+	 * The limiter file reads are taken from.
+	 */
+	private RateLimiter readLimiter = READ_LIMITER;
+	
 	/**
 	 * Creates a local archive backup asset.
 	 * @param directories The directories of the local folders/files that will be archived.
@@ -39,63 +104,231 @@ public class LocalArchiveAsset extends BackupAsset {
 		this.directories = new String[] {directory};
 	}
 	
+	@Override
+	public List<Path> getSources() {
+		return toPaths(directories);
+	}
+	
 	@Override
 	public Path copy(String destination) throws IOException {
-		if (!destination.endsWith(".zip"))
-			destination += ".zip";
+		return copy(destination, null, new ArchiveStatistics());
+	}
+	
+	/**
+	 * Copies the selected files that pass the filter into an archive in the given local directory.
+	 * @param destination The local directory for the archive to be stored.
+	 * @param filter The filter deciding which files are archived, {@code null} to archive all files.
+	 * @param statistics The counters the archiver reports to.
+	 * @return The path of the locally stored archive.
+	 * @throws IOException If the file operation is unsuccessful.
+	 */
+	public Path copy(String destination, ArchiveFilter filter, ArchiveStatistics statistics) throws IOException {
+		return copy(destination, filter, statistics, null);
+	}
+	
+	/**
+	 * Copies the selected files that pass the filter into an archive in the given local directory.
+	 * If a volume size is set, the archive is cut into volumes ({@code .zip.001}, ...) with a checksum file.
+	 * The extension of the archive format is appended to the destination unless it is already there.
+	 * A verification manifest with the hash of every entry and of the archive is written next to it.
+	 * A single archive is written under a name ending in {@value #PART} and renamed once complete, so an
+	 * interrupted run never leaves a truncated archive under the final name.
+	 * @param destination The local directory for the archive to be stored.
+	 * @param filter The filter deciding which files are archived, {@code null} to archive all files.
+	 * @param statistics The counters the archiver reports to.
+	 * @param listener Receives every volume as soon as it is complete, {@code null} if nobody is listening.
+	 * @return The path of the locally stored archive, or of the checksum file listing its volumes.
+	 * @throws IOException If the file operation is unsuccessful.
+	 */
+	public Path copy(String destination, ArchiveFilter filter, ArchiveStatistics statistics, VolumeOutputStream.Listener listener) throws IOException {
+		if (!destination.endsWith(format.getExtension()))
+			destination += format.getExtension();
 		
-		FileOutputStream fileStream = new FileOutputStream(destination);
-		ZipOutputStream zipStream = new ZipOutputStream(fileStream);
+		Path archive = Paths.get(destination);
 		
-		try {
-			for (String directory : directories) {
-				archive(new File(directory), null, fileStream, zipStream);
+		try (ArchiveManifest manifest = new ArchiveManifest(getManifest(archive), archive.getFileName().toString())) {
+			if (volumeSize <= 0) {
+				Path part = archive.resolveSibling(archive.getFileName() + PART);
+				try {
+					write(new FileOutputStream(part.toFile()), filter, statistics, manifest);
+					Files.move(part, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(part);
+				}
+				manifest.commit();
+				return archive;
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			
+			VolumeOutputStream volumes = new VolumeOutputStream(archive, volumeSize, listener);
+			write(volumes, filter, statistics, manifest);
+			manifest.commit();
+			return volumes.writeChecksums();
 		}
-
-		zipStream.close();
-		fileStream.close();
-		
-		return Paths.get(destination);
 	}
-
+	
 	/**
-	 * Archives based on given parameters. This method works recursively
-	 * @param target The directory that will be archived.
-	 * @param parent The parent directory, {@code null} if the target is not a child directory
-	 * @param fileStream The {@link FileOutputStream} for the worker
-	 * @param zipStream The {@link ZipOutputStream} for the worker
-	 * @throws IOException If the operation is unsuccessful
+	 * Gets the verification manifest of an archive.
+	 * @param archive The archive.
+	 * @return The path of the manifest next to it.
 	 */
-	private void archive(File target, String parent, FileOutputStream fileStream, ZipOutputStream zipStream) throws IOException {
-		if (!target.exists()) {
-			return;
-		}
-		
-		String entry = target.getName();
-		
-		if (parent != null && !parent.isEmpty()) {
-			entry = parent + "/" + target.getName();
-		}
+	public static Path getManifest(Path archive) {
+		return archive.resolveSibling(archive.getFileName() + ArchiveManifest.EXTENSION);
+	}
+	
+	/**
+	 * Writes the archive to the given stream. The stream is closed once the archive is complete.
+	 * @param out The stream the archive is written to.
+	 * @param filter The filter deciding which files are archived, {@code null} to archive all files.
+	 * @param statistics The counters the archiver reports to.
+	 * @throws IOException If the operation is unsuccessful.
+	 */
+	public void write(OutputStream out, ArchiveFilter filter, ArchiveStatistics statistics) throws IOException {
+		write(out, filter, statistics, null);
+	}
+	
+	/**
+	 * Writes the archive to the given stream. The stream is closed once the archive is complete. If writing
+	 * fails the archive is aborted: the stream is closed without the end of the archive, and volumes are deleted.
+	 * @param out The stream the archive is written to.
+	 * @param filter The filter deciding which files are archived, {@code null} to archive all files.
+	 * @param statistics The counters the archiver reports to.
+	 * @param manifest The manifest receiving the hash of every entry and of the archive, {@code null} to skip hashing.
+	 * @throws IOException If the operation is unsuccessful.
+	 */
+	public void write(OutputStream out, final ArchiveFilter filter, ArchiveStatistics statistics, ArchiveManifest manifest) throws IOException {
+		final CancellationToken token = CancellationToken.current();
+		ForkJoinPool pool = new ForkJoinPool(workers);
+		final ArchiveWriter writer = format.createWriter(out, pool,
+				workers * 2, BUFFERS, GlobalConfiguration.MMAP_THRESHOLD, level, statistics);
+		writer.setStoredExtensions(storedExtensions);
+		writer.setRateLimiter(readLimiter);
 		
-		if (target.isDirectory()) {
-			for (File file : target.listFiles())
-				archive(file, entry, fileStream, zipStream);
-		} else {
-			byte[] buffer = new byte[1024];
+		boolean complete = false;
+		try {
+			if (manifest != null)
+				writer.setManifest(manifest);
 			
-			FileInputStream inputStream = new FileInputStream(target);
-			zipStream.putNextEntry(new ZipEntry(entry));
+			DirectoryWalker walker = new DirectoryWalker(pool, GlobalConfiguration.WALKER_PREFETCH, followLinks);
+			DirectoryWalker.Visitor visitor = new DirectoryWalker.Visitor() {
+				@Override
+				public void visit(String entry, Path file, BasicFileAttributes attributes) throws IOException {
+					token.check();
+					long size = attributes.size();
+					long lastModified = attributes.lastModifiedTime().toMillis();
+					
+					if (filter == null || filter.accept(entry, file, size, lastModified))
+						writer.putFile(entry, file, size, lastModified);
+				}
+			};
 			
-			int length;
-			while ((length = inputStream.read(buffer)) > 0) {
-				zipStream.write(buffer, 0, length);
+			for (String directory : directories) {
+				walker.walk(Paths.get(directory), visitor);
 			}
 			
-			zipStream.closeEntry();
-			inputStream.close();
+			if (filter != null)
+				filter.finish(writer);
+			complete = true;
+		} finally {
+			try {
+				if (complete) {
+					writer.close();
+				} else {
+					// A failed walk, filter or cancellation must not end in a valid but truncated archive
+					if (out instanceof VolumeOutputStream)
+						((VolumeOutputStream) out).abort();
+					writer.abort();
+				}
+			} finally {
+				pool.shutdownNow();
+			}
 		}
 	}
+
+	/**
+	 * Gets the read buffers shared by every archive being written.
+	 * @return The buffer pool.
+	 */
+	public static BufferPool getBufferPool() {
+		return BUFFERS;
+	}
+	
+	/**
+	 * Gets the limit on file reads shared by every archive being written.
+	 * @return The global read limiter.
+	 */
+	public static RateLimiter getGlobalReadLimiter() {
+		return READ_LIMITER;
+	}
+	
+	/**
+	 * Sets the limiter file reads are taken from. It should have the global read limiter as its parent.
+	 * @param readLimiter The limiter.
+	 */
+	public void setReadLimiter(RateLimiter readLimiter) {
+		this.readLimiter = readLimiter;
+	}
+	
+	/**
+	 * Sets the number of threads compressing the archive.
+	 * @param workers The number of threads.
+	 */
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+	
+	/**
+	 * Sets the deflate compression level.
+	 * @param level The level from {@code 0} (store every file) to {@code 9}.
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+	
+	/**
+	 * Sets the extensions of files that are stored rather than deflated.
+	 * @param storedExtensions The extensions, without the leading dot.
+	 */
+	public void setStoredExtensions(Set<String> storedExtensions) {
+		this.storedExtensions = storedExtensions;
+	}
+	
+	/**
+	 * Sets if symbolic links are followed. Links that lead back to a parent directory are never followed.
+	 * @param followLinks If symbolic links are followed, otherwise they are left out of the archive.
+	 */
+	public void setFollowLinks(boolean followLinks) {
+		this.followLinks = followLinks;
+	}
+	
+	/**
+	 * Sets the size of the volumes the archive is cut into.
+	 * @param volumeSize The size in bytes, {@code 0} for a single file.
+	 */
+	public void setVolumeSize(long volumeSize) {
+		this.volumeSize = volumeSize;
+	}
+	
+	/**
+	 * Sets the format the archive is written in.
+	 * @param format The format.
+	 */
+	public void setFormat(ArchiveFormat format) {
+		this.format = format;
+	}
+	
+	/**
+	 * Gets the format the archive is written in.
+	 * @return The format.
+	 */
+	public ArchiveFormat getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Gets the size of the volumes the archive is cut into.
+	 * @return The size in bytes, {@code 0} for a single file.
+	 */
+	public long getVolumeSize() {
+		return volumeSize;
+	}
 }
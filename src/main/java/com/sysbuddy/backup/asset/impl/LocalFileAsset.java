@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 import com.sysbuddy.backup.asset.BackupAsset;
 
@@ -26,6 +27,11 @@ public class LocalFileAsset extends BackupAsset {
 		this.directory = directory;
 	}
 	
+	@Override
+	public List<Path> getSources() {
+		return toPaths(directory);
+	}
+	
 	@Override
 	public Path copy(String destination) throws IOException {
 		return Files.copy(Paths.get(directory), Paths.get(destination));
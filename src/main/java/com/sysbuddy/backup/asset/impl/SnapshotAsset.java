@@ -0,0 +1,313 @@
+package com.sysbuddy.backup.asset.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.asset.BackupAsset;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.io.DirectoryWalker;
+import com.sysbuddy.util.CancellationToken;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Local directories backed up as browsable snapshots, in the style of rsnapshot. Every run creates a
+ * full directory tree, but files that did not change since the previous snapshot (same size and
+ * modification time, to the millisecond, as copies do not keep finer times everywhere) are hard-linked
+ * to it instead of copied, so a snapshot costs only the size of the changed files.
+ * The snapshots of a task share a root directory, which lists them oldest first in {@code .snapshots}.
+ * A run is built in a {@code .partial} directory and only listed once it is complete. A failed run
+ * deletes its partial directory, and {@link #deletePartial()} removes those left by a crash.
+ * @author darius
+ */
+public class SnapshotAsset extends BackupAsset {
+
+	/**
+	 * The logger of the snapshot asset.
+	 */
+	private final static Logger logger = Logger.getLogger(SnapshotAsset.class.getName());
+
+	/**
+	 * The file in the root directory listing the complete snapshots, oldest first.
+	 */
+	public final static String SNAPSHOTS = ".snapshots";
+
+	/**
+	 * The suffix of a snapshot that is being built.
+	 */
+	private final static String PARTIAL = ".partial";
+
+	/**
+	 * The number of threads listing directories ahead of the walk.
+	 */
+	private final static int LISTING_THREADS = 4;
+
+	/**
+	 * The directories of the local folders/files that will be backed up.
+	 */
+	private final String[] directories;
+
+	/**
+	 * The directory holding the snapshots.
+	 */
+	private final Path root;
+
+	/**
+	 * If symbolic links are followed, otherwise they are left out of the snapshot.
+	 */
+	private boolean followLinks = true;
+
+	/**
+	 * The number of bytes hard-linked to a previous snapshot.
+	 */
+	private final AtomicLong linkedBytes = new AtomicLong();
+
+	/**
+	 * The number of bytes copied.
+	 */
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	/**
+	 * Creates a snapshot backup asset.
+	 * @param directories The directories of the local folders/files that will be backed up.
+	 * @param root The directory holding the snapshots.
+	 */
+	public SnapshotAsset(String[] directories, Path root) {
+		this.directories = directories;
+		this.root = root;
+	}
+
+	@Override
+	public List<Path> getSources() {
+		return toPaths(directories);
+	}
+
+	@Override
+	public Path copy(String destination) throws IOException {
+		Path snapshot = Paths.get(destination);
+		if (Files.exists(snapshot))
+			throw new FileAlreadyExistsException(snapshot.toString(), null, "Snapshot already exists");
+
+		final Path partial = snapshot.resolveSibling(snapshot.getFileName() + PARTIAL);
+		delete(partial);
+		Files.createDirectories(partial);
+
+		List<String> snapshots = getSnapshots();
+		final Path previous = snapshots.isEmpty() ? null : root.resolve(snapshots.get(snapshots.size() - 1));
+
+		final CancellationToken token = CancellationToken.current();
+		ExecutorService pool = Executors.newFixedThreadPool(LISTING_THREADS, Threads.factory("listing"));
+		boolean complete = false;
+		try {
+			DirectoryWalker walker = new DirectoryWalker(pool, GlobalConfiguration.WALKER_PREFETCH, followLinks);
+			DirectoryWalker.Visitor visitor = new DirectoryWalker.Visitor() {
+
+				/**
+				 * The directory the last file was placed in, which is known to exist.
+				 */
+				private Path directory;
+
+				@Override
+				public void visit(String entry, Path file, BasicFileAttributes attributes) throws IOException {
+					token.check();
+					Path target = partial.resolve(entry);
+					if (!target.getParent().equals(directory)) {
+						directory = target.getParent();
+						Files.createDirectories(directory);
+					}
+
+					try {
+						place(entry, file, attributes, target, previous);
+					} catch (FileAlreadyExistsException e) {
+						logger.warning("Skipping " + file + ", another source already placed " + entry);
+					}
+				}
+			};
+
+			for (String directory : directories) {
+				walker.walk(Paths.get(directory), visitor);
+			}
+
+			Files.move(partial, snapshot, StandardCopyOption.ATOMIC_MOVE);
+			complete = true;
+		} finally {
+			pool.shutdownNow();
+			if (!complete) {
+				try {
+					delete(partial);
+				} catch (IOException e) {
+					logger.warning("Could not delete the partial snapshot " + partial + ": " + e);
+				}
+			}
+		}
+
+		snapshots.add(snapshot.getFileName().toString());
+		setSnapshots(snapshots);
+		return snapshot;
+	}
+
+	/**
+	 * Hard-links a file to its copy in the previous snapshot if it did not change, otherwise copies it.
+	 * @param entry The path of the file relative to the snapshot.
+	 * @param file The file.
+	 * @param attributes The attributes of the file.
+	 * @param target The path of the file in the new snapshot.
+	 * @param previous The previous snapshot, {@code null} if there is none.
+	 * @throws IOException If the file could not be linked or copied.
+	 */
+	private void place(String entry, Path file, BasicFileAttributes attributes, Path target, Path previous) throws IOException {
+		if (previous != null) {
+			Path old = previous.resolve(entry);
+			try {
+				BasicFileAttributes oldAttributes = Files.readAttributes(old, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (oldAttributes.isRegularFile() && oldAttributes.size() == attributes.size()
+						&& oldAttributes.lastModifiedTime().toMillis() == attributes.lastModifiedTime().toMillis()) {
+					Files.createLink(target, old);
+					linkedBytes.addAndGet(attributes.size());
+					return;
+				}
+			} catch (NoSuchFileException e) {
+				// new file
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (IOException | UnsupportedOperationException e) {
+				// another file system or too many links, fall back to a copy
+			}
+		}
+
+		Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+		copiedBytes.addAndGet(attributes.size());
+	}
+
+	/**
+	 * Deletes the oldest snapshots beyond the given number.
+	 * @param retain The number of most recent snapshots to keep.
+	 * @return The number of snapshots deleted.
+	 * @throws IOException If a snapshot could not be deleted.
+	 */
+	public int prune(int retain) throws IOException {
+		List<String> snapshots = getSnapshots();
+		int deleted = 0;
+		while (snapshots.size() > retain) {
+			String oldest = snapshots.remove(0);
+			setSnapshots(snapshots);
+			delete(root.resolve(oldest));
+			deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Deletes the partial snapshots left in the root directory by runs that were interrupted.
+	 * @return The number of partial snapshots deleted.
+	 * @throws IOException If the root directory could not be read or a snapshot could not be deleted.
+	 */
+	public int deletePartial() throws IOException {
+		int deleted = 0;
+		try (DirectoryStream<Path> partials = Files.newDirectoryStream(root, "*" + PARTIAL)) {
+			for (Path partial : partials) {
+				logger.info("Removing partial snapshot " + partial + " of an interrupted run");
+				delete(partial);
+				deleted++;
+			}
+		} catch (NoSuchFileException e) {
+		}
+		return deleted;
+	}
+
+	/**
+	 * Gets the names of the complete snapshots, oldest first. Snapshots deleted by hand are left out.
+	 * @return The snapshot names.
+	 * @throws IOException If the list could not be read.
+	 */
+	public List<String> getSnapshots() throws IOException {
+		Path list = root.resolve(SNAPSHOTS);
+		List<String> snapshots = new ArrayList<String>();
+		if (!Files.exists(list))
+			return snapshots;
+
+		for (String line : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+			if (!line.isEmpty() && Files.isDirectory(root.resolve(line), LinkOption.NOFOLLOW_LINKS))
+				snapshots.add(line);
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Replaces the list of complete snapshots.
+	 * @param snapshots The snapshot names, oldest first.
+	 * @throws IOException If the list could not be written.
+	 */
+	private void setSnapshots(List<String> snapshots) throws IOException {
+		Path list = root.resolve(SNAPSHOTS);
+		Path temporary = root.resolve(SNAPSHOTS + ".tmp");
+		Files.write(temporary, snapshots, StandardCharsets.UTF_8);
+		Files.move(temporary, list, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Deletes a directory tree without following symbolic links.
+	 * @param path The directory.
+	 * @throws IOException If the tree could not be deleted.
+	 */
+	private static void delete(Path path) throws IOException {
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+			return;
+
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null)
+					throw e;
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Sets if symbolic links are followed. Links that lead back to a parent directory are never followed.
+	 * @param followLinks If symbolic links are followed, otherwise they are left out of the snapshot.
+	 */
+	public void setFollowLinks(boolean followLinks) {
+		this.followLinks = followLinks;
+	}
+
+	/**
+	 * Gets the number of bytes hard-linked to a previous snapshot.
+	 * @return The number of bytes.
+	 */
+	public long getLinkedBytes() {
+		return linkedBytes.get();
+	}
+
+	/**
+	 * Gets the number of bytes copied.
+	 * @return The number of bytes.
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+}
@@ -0,0 +1,284 @@
+package com.sysbuddy.backup.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The block signatures of an uploaded file: a weak {@link RollingChecksum} and a strong MD5 hash of
+ * every fixed-size block. The signatures of the last uploaded version are all that is kept of it locally,
+ * and are enough to find which parts of a new version the server already has.
+ * @author darius
+ */
+public class BlockSignature {
+
+	/**
+	 * The magic number at the start of a signature file ("SBSG").
+	 */
+	private final static int MAGIC = 0x53425347;
+
+	/**
+	 * The version of the on-disk format.
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * The size of the read and write buffers.
+	 */
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The length of a strong hash.
+	 */
+	final static int STRONG_LENGTH = 16;
+
+	/**
+	 * The name of the file on the server.
+	 */
+	private final String name;
+
+	/**
+	 * The size of the file.
+	 */
+	private final long length;
+
+	/**
+	 * The size of the blocks, only the last block may be shorter.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The weak checksum of every block.
+	 */
+	private final int[] weak;
+
+	/**
+	 * The strong hashes of all blocks, one after another.
+	 */
+	private final byte[] strong;
+
+	/**
+	 * The first block of every weak checksum bucket, plus one; built on first lookup.
+	 */
+	private int[] buckets;
+
+	/**
+	 * The next block in the same bucket, plus one.
+	 */
+	private int[] chain;
+
+	private BlockSignature(String name, long length, int blockSize, int[] weak, byte[] strong) {
+		this.name = name;
+		this.length = length;
+		this.blockSize = blockSize;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Computes the signatures of a file.
+	 * @param file The file.
+	 * @param name The name of the file on the server.
+	 * @param blockSize The size of the blocks.
+	 * @return The signatures.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static BlockSignature compute(Path file, String name, int blockSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			long count = (length + blockSize - 1) / blockSize;
+			if (count > Integer.MAX_VALUE / STRONG_LENGTH)
+				throw new IOException("Block size " + blockSize + " too small for " + file);
+
+			int[] weak = new int[(int) count];
+			byte[] strong = new byte[(int) count * STRONG_LENGTH];
+			MessageDigest md5 = md5();
+			ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+
+			for (int i = 0; i < count; i++) {
+				buffer.clear();
+				buffer.limit((int) Math.min(blockSize, length - (long) i * blockSize));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, (long) i * blockSize + buffer.position()) < 0)
+						throw new IOException("File shrank while computing signatures: " + file);
+				}
+
+				weak[i] = RollingChecksum.of(buffer.array(), 0, buffer.limit());
+				md5.update(buffer.array(), 0, buffer.limit());
+				System.arraycopy(md5.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+			}
+
+			return new BlockSignature(name, length, blockSize, weak, strong);
+		}
+	}
+
+	/**
+	 * Loads signatures.
+	 * @param path The signature file.
+	 * @return The signatures, {@code null} if there are none yet.
+	 * @throws IOException If the file exists but could not be read.
+	 */
+	public static BlockSignature load(Path path) throws IOException {
+		InputStream stream;
+		try {
+			stream = Files.newInputStream(path);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a signature file: " + path);
+			int version = in.readUnsignedByte();
+			if (version != VERSION)
+				throw new IOException("Unsupported signature version " + version + ": " + path);
+
+			String name = in.readUTF();
+			long length = in.readLong();
+			int blockSize = in.readInt();
+			int count = in.readInt();
+			if (blockSize <= 0 || count != (length + blockSize - 1) / blockSize)
+				throw new IOException("Corrupt signature file: " + path);
+
+			int[] weak = new int[count];
+			byte[] strong = new byte[count * STRONG_LENGTH];
+			for (int i = 0; i < count; i++) {
+				weak[i] = in.readInt();
+				in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+			}
+
+			return new BlockSignature(name, length, blockSize, weak, strong);
+		} catch (EOFException e) {
+			throw new IOException("Truncated signature file: " + path, e);
+		}
+	}
+
+	/**
+	 * Saves the signatures. The file is replaced atomically, so a crash never leaves partial signatures.
+	 * @param path The signature file.
+	 * @throws IOException If the file could not be written.
+	 */
+	public void save(Path path) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(name);
+			out.writeLong(length);
+			out.writeInt(blockSize);
+			out.writeInt(weak.length);
+			for (int i = 0; i < weak.length; i++) {
+				out.writeInt(weak[i]);
+				out.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+			}
+		}
+
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Finds a full block with the same contents as a window of data. The strong hash of the window is
+	 * only computed if a block with the same weak checksum exists.
+	 * @param checksum The weak checksum of the window.
+	 * @param data The data.
+	 * @param offset The start of the window.
+	 * @param md5 The digest used for the strong hash.
+	 * @return The index of the block, {@code -1} if there is none.
+	 */
+	int find(int checksum, byte[] data, int offset, MessageDigest md5) {
+		if (buckets == null)
+			index();
+
+		int candidate = buckets[mix(checksum) & (buckets.length - 1)];
+		byte[] hash = null;
+
+		for (; candidate != 0; candidate = chain[candidate - 1]) {
+			int block = candidate - 1;
+			if (weak[block] != checksum)
+				continue;
+
+			if (hash == null) {
+				md5.update(data, offset, blockSize);
+				hash = md5.digest();
+			}
+			if (Arrays.equals(hash, 0, STRONG_LENGTH, strong, block * STRONG_LENGTH, (block + 1) * STRONG_LENGTH))
+				return block;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Builds the lookup table of the full blocks. Identical blocks are chained in order, so the first is found.
+	 */
+	private void index() {
+		int full = (int) (length / blockSize);
+		int[] buckets = new int[Integer.highestOneBit(Math.max(1, full) * 2 - 1) << 1];
+		int[] chain = new int[weak.length];
+
+		for (int i = full - 1; i >= 0; i--) {
+			int bucket = mix(weak[i]) & (buckets.length - 1);
+			chain[i] = buckets[bucket];
+			buckets[bucket] = i + 1;
+		}
+
+		this.chain = chain;
+		this.buckets = buckets;
+	}
+
+	private static int mix(int checksum) {
+		int h = checksum * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Creates an MD5 digest for the strong hashes.
+	 * @return The digest.
+	 */
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+	/**
+	 * Gets the name of the file on the server.
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the size of the file.
+	 * @return The size in bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the size of the blocks.
+	 * @return The block size in bytes.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+}
@@ -0,0 +1,222 @@
+package com.sysbuddy.backup.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Computes the delta of a file against the signatures of its previous version, as in rsync. A window of
+ * one block is rolled over the new file byte by byte; wherever its weak and strong checksums match a block
+ * of the previous version, the block is copied from it, and every other byte is written as literal data.
+ * The result is the literal data file and a patch script for {@link DeltaPatcher}.
+ * @author darius
+ */
+public class DeltaEncoder {
+
+	/**
+	 * The bytes of new data read at once, beyond the two blocks the window needs.
+	 */
+	private final static int READ_AHEAD = 1 << 22;
+
+	/**
+	 * The signatures of the previous version.
+	 */
+	private final BlockSignature base;
+
+	/**
+	 * The number of bytes copied from the previous version.
+	 */
+	private long copiedBytes;
+
+	/**
+	 * The number of literal bytes.
+	 */
+	private long literalBytes;
+
+	/**
+	 * Creates a delta encoder.
+	 * @param base The signatures of the previous version.
+	 */
+	public DeltaEncoder(BlockSignature base) {
+		this.base = base;
+	}
+
+	/**
+	 * Computes the delta of a file.
+	 * @param file The new version.
+	 * @param data The file the literal data is written to.
+	 * @param patch The file the patch script is written to.
+	 * @throws IOException If a file could not be read or written.
+	 */
+	public void encode(Path file, Path data, Path patch) throws IOException {
+		int blockSize = base.getBlockSize();
+		MessageDigest md5 = BlockSignature.md5();
+		RollingChecksum checksum = new RollingChecksum(blockSize);
+		byte[] buffer = new byte[blockSize * 2 + READ_AHEAD];
+		ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+
+		copiedBytes = 0;
+		literalBytes = 0;
+
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ); Output out = new Output(data, patch, blockSize, in.size())) {
+			int start = 0;
+			int literal = 0;
+			int limit = 0;
+			boolean eof = false;
+			boolean valid = false;
+
+			while (true) {
+				if (!eof && limit - start <= blockSize) {
+					out.literal(buffer, literal, start - literal);
+					System.arraycopy(buffer, start, buffer, 0, limit - start);
+					limit -= start;
+					literal = 0;
+					start = 0;
+
+					wrapper.clear();
+					wrapper.position(limit);
+					while (wrapper.hasRemaining()) {
+						if (in.read(wrapper) < 0) {
+							eof = true;
+							break;
+						}
+					}
+					limit = wrapper.position();
+				}
+
+				if (limit - start < blockSize)
+					break;
+
+				if (!valid) {
+					checksum.reset(buffer, start, blockSize);
+					valid = true;
+				}
+
+				int block = base.find(checksum.getValue(), buffer, start, md5);
+				if (block >= 0) {
+					out.literal(buffer, literal, start - literal);
+					out.copy(block);
+					start += blockSize;
+					literal = start;
+					valid = false;
+				} else if (start + blockSize < limit) {
+					checksum.roll(buffer[start], buffer[start + blockSize]);
+					start++;
+				} else {
+					break;
+				}
+			}
+
+			out.literal(buffer, literal, limit - literal);
+			copiedBytes = out.copied;
+			literalBytes = out.literal;
+		}
+	}
+
+	/**
+	 * Gets the number of bytes the last delta copies from the previous version.
+	 * @return The number of bytes.
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes;
+	}
+
+	/**
+	 * Gets the number of literal bytes of the last delta.
+	 * @return The number of bytes.
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * Writes the data file and patch script, merging adjacent copies and literal runs into one instruction.
+	 */
+	private static final class Output implements Closeable {
+
+		private final OutputStream data;
+		private final Writer patch;
+		private final int blockSize;
+		private long dataPosition;
+		private long runUnit;
+		private long runLength;
+		private long copyBlock;
+		private long copyCount;
+		private long copied;
+		private long literal;
+
+		Output(Path data, Path patch, int blockSize, long length) throws IOException {
+			this.data = new BufferedOutputStream(Files.newOutputStream(data), 1 << 16);
+			this.patch = Files.newBufferedWriter(patch, StandardCharsets.US_ASCII);
+			this.blockSize = blockSize;
+			this.patch.write(DeltaPatcher.MAGIC + " " + DeltaPatcher.VERSION + " " + blockSize + " " + length + "\n");
+		}
+
+		void literal(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0)
+				return;
+
+			flushCopy();
+			if (runLength == 0)
+				runUnit = dataPosition / DeltaPatcher.UNIT;
+			data.write(buffer, offset, length);
+			dataPosition += length;
+			runLength += length;
+			literal += length;
+		}
+
+		void copy(int block) throws IOException {
+			flushLiteral();
+			if (copyCount > 0 && copyBlock + copyCount == block) {
+				copyCount++;
+			} else {
+				flushCopy();
+				copyBlock = block;
+				copyCount = 1;
+			}
+			copied += blockSize;
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyCount == 0)
+				return;
+			patch.write("copy " + copyBlock + " " + copyCount + "\n");
+			copyCount = 0;
+		}
+
+		private void flushLiteral() throws IOException {
+			if (runLength == 0)
+				return;
+			patch.write("data " + runUnit + " " + runLength + "\n");
+			runLength = 0;
+
+			int padding = (int) ((DeltaPatcher.UNIT - dataPosition % DeltaPatcher.UNIT) % DeltaPatcher.UNIT);
+			data.write(new byte[padding]);
+			dataPosition += padding;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flushCopy();
+				flushLiteral();
+			} finally {
+				try {
+					data.close();
+				} finally {
+					patch.close();
+				}
+			}
+		}
+	}
+}
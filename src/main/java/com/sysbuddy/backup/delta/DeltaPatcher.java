@@ -0,0 +1,123 @@
+package com.sysbuddy.backup.delta;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Rebuilds a file from the previous version, the literal data of a delta and its patch script.
+ * <p>
+ * The patch script is a text file. Its first line is {@code sysbuddy-delta 1 <block size> <length>},
+ * every further line either {@code copy <block> <count>}, which appends blocks of the previous version,
+ * or {@code data <unit> <length>}, which appends bytes of the literal data starting at a multiple of
+ * {@value #UNIT} bytes. {@link #SCRIPT} applies it on a server with a POSIX shell and {@code dd};
+ * {@link #apply(Path, Path, Path, Path)} is the local stand-in, used for testing and local copies.
+ * @author darius
+ */
+public class DeltaPatcher {
+
+	/**
+	 * The first word of a patch script.
+	 */
+	final static String MAGIC = "sysbuddy-delta";
+
+	/**
+	 * The version of the patch format.
+	 */
+	final static int VERSION = 1;
+
+	/**
+	 * The alignment of literal runs in the data file, so that the shell step copies them in blocks.
+	 */
+	public final static int UNIT = 512;
+
+	/**
+	 * The remote-side step: a POSIX shell script taking the previous version, the data file, the patch
+	 * script and the output file as arguments. It exits with {@code 3} on a malformed patch and with the
+	 * status of {@code dd} if a copy fails.
+	 */
+	public final static String SCRIPT = "set -e\n"
+			+ "{\n"
+			+ "read magic version bs length\n"
+			+ "[ \"$magic\" = " + MAGIC + " ] && [ \"$version\" = " + VERSION + " ] || exit 3\n"
+			+ ": > \"$4\"\n"
+			+ "while read op a b; do\n"
+			+ "case \"$op\" in\n"
+			+ "copy) dd if=\"$1\" bs=\"$bs\" skip=\"$a\" count=\"$b\" 2>/dev/null >> \"$4\" ;;\n"
+			+ "data) q=$((b / " + UNIT + ")); r=$((b % " + UNIT + "))\n"
+			+ "if [ \"$q\" -gt 0 ]; then dd if=\"$2\" bs=" + UNIT + " skip=\"$a\" count=\"$q\" 2>/dev/null >> \"$4\"; fi\n"
+			+ "if [ \"$r\" -gt 0 ]; then dd if=\"$2\" bs=1 skip=$(((a + q) * " + UNIT + ")) count=\"$r\" 2>/dev/null >> \"$4\"; fi ;;\n"
+			+ "*) exit 3 ;;\n"
+			+ "esac\n"
+			+ "done\n"
+			+ "} < \"$3\"\n";
+
+	private DeltaPatcher() {
+	}
+
+	/**
+	 * Applies a patch script locally.
+	 * @param base The previous version.
+	 * @param data The literal data of the delta.
+	 * @param patch The patch script.
+	 * @param out The rebuilt file, replaced if it exists.
+	 * @throws IOException If a file could not be read or written, or the patch does not fit the files.
+	 */
+	public static void apply(Path base, Path data, Path patch, Path out) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(patch, StandardCharsets.US_ASCII);
+				FileChannel baseChannel = FileChannel.open(base, StandardOpenOption.READ);
+				FileChannel dataChannel = FileChannel.open(data, StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			String[] header = split(reader.readLine(), patch);
+			if (header.length < 4 || !header[0].equals(MAGIC) || !header[1].equals(Integer.toString(VERSION)))
+				throw new IOException("Not a patch script: " + patch);
+			long blockSize = Long.parseLong(header[2]);
+			long length = Long.parseLong(header[3]);
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = split(line, patch);
+				long a = Long.parseLong(fields[1]);
+				long b = Long.parseLong(fields[2]);
+
+				if (fields[0].equals("copy")) {
+					long position = a * blockSize;
+					copy(baseChannel, position, Math.min(b * blockSize, baseChannel.size() - position), output, base);
+				} else if (fields[0].equals("data")) {
+					copy(dataChannel, a * UNIT, b, output, data);
+				} else {
+					throw new IOException("Unknown patch instruction \"" + fields[0] + "\" in " + patch);
+				}
+			}
+
+			if (output.size() != length)
+				throw new IOException("Patched file has " + output.size() + " bytes, expected " + length);
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt patch script: " + patch, e);
+		}
+	}
+
+	private static void copy(FileChannel source, long position, long count, FileChannel output, Path file) throws IOException {
+		if (position < 0 || count < 0 || position + count > source.size())
+			throw new IOException("Patch reads past the end of " + file);
+
+		while (count > 0) {
+			long copied = source.transferTo(position, count, output);
+			if (copied <= 0)
+				throw new IOException("Could not copy from " + file);
+			position += copied;
+			count -= copied;
+		}
+	}
+
+	private static String[] split(String line, Path patch) throws IOException {
+		String[] fields = line == null ? new String[0] : line.trim().split(" ");
+		if (fields.length < 3)
+			throw new IOException("Corrupt patch script: " + patch);
+		return fields;
+	}
+}
@@ -0,0 +1,80 @@
+package com.sysbuddy.backup.delta;
+
+/**
+ * The weak rolling checksum of rsync: two 16-bit sums over a window of bytes, which can be moved by one
+ * byte in constant time. Used to find blocks of an earlier version of a file at any offset of the new one.
+ * @author darius
+ */
+public class RollingChecksum {
+
+	/**
+	 * The size of the window.
+	 */
+	private final int windowSize;
+
+	/**
+	 * The sum of the bytes in the window.
+	 */
+	private int a;
+
+	/**
+	 * The sum of the bytes weighted by their distance from the end of the window.
+	 */
+	private int b;
+
+	/**
+	 * Creates a rolling checksum.
+	 * @param windowSize The size of the window it is moved with.
+	 */
+	public RollingChecksum(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Computes the checksum of a window from scratch.
+	 * @param data The data.
+	 * @param offset The start of the window.
+	 * @param length The length of the window.
+	 */
+	public void reset(byte[] data, int offset, int length) {
+		a = 0;
+		b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = data[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+	}
+
+	/**
+	 * Moves the window one byte forward.
+	 * @param out The byte leaving the window.
+	 * @param in The byte entering the window.
+	 */
+	public void roll(byte out, byte in) {
+		int x = out & 0xff;
+		a += (in & 0xff) - x;
+		b += a - windowSize * x;
+	}
+
+	/**
+	 * Gets the checksum of the window.
+	 * @return The checksum.
+	 */
+	public int getValue() {
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Computes the checksum of a block.
+	 * @param data The data.
+	 * @param offset The start of the block.
+	 * @param length The length of the block.
+	 * @return The checksum.
+	 */
+	public static int of(byte[] data, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum(length);
+		checksum.reset(data, offset, length);
+		return checksum.getValue();
+	}
+}
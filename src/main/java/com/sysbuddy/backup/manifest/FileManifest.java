@@ -0,0 +1,288 @@
+package com.sysbuddy.backup.manifest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of every archived file as of a backup run: path, size, modification time and
+ * optionally a content hash. Stored on disk as a sorted, prefix-compressed binary file with
+ * variable-length numbers, so manifests of millions of files stay small and load in one pass.
+ * @author darius
+ */
+public class FileManifest {
+
+	/**
+	 * The magic number at the start of a manifest file ("SBMF").
+	 */
+	private final static int MAGIC = 0x53424d46;
+
+	/**
+	 * The version of the on-disk format.
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * The size of the read and write buffers.
+	 */
+	private final static int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The records, keyed by archive entry name.
+	 */
+	private final Map<String, Record> records;
+
+	/**
+	 * The number of runs this manifest descends from, {@code 0} for a full backup.
+	 */
+	private long generation;
+
+	/**
+	 * Creates an empty manifest.
+	 */
+	public FileManifest() {
+		this.records = new HashMap<String, Record>();
+	}
+
+	/**
+	 * Creates an empty manifest.
+	 * @param generation The number of runs this manifest descends from.
+	 * @param capacity The expected number of records.
+	 */
+	public FileManifest(long generation, int capacity) {
+		this.generation = generation;
+		this.records = new HashMap<String, Record>(Math.max(16, (int) (capacity / 0.75f) + 1));
+	}
+
+	/**
+	 * Loads a manifest.
+	 * @param path The manifest file.
+	 * @return The manifest, {@code null} if there is none yet.
+	 * @throws IOException If the file exists but could not be read.
+	 */
+	public static FileManifest load(Path path) throws IOException {
+		InputStream stream;
+		try {
+			stream = Files.newInputStream(path);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a manifest file: " + path);
+			int version = in.readUnsignedByte();
+			if (version != VERSION)
+				throw new IOException("Unsupported manifest version " + version + ": " + path);
+
+			long generation = readVarLong(in);
+			int count = (int) readVarLong(in);
+			FileManifest manifest = new FileManifest(generation, count);
+
+			byte[] name = new byte[256];
+			for (int i = 0; i < count; i++) {
+				int shared = (int) readVarLong(in);
+				int suffix = (int) readVarLong(in);
+				if (shared + suffix > name.length)
+					name = Arrays.copyOf(name, Math.max(name.length * 2, shared + suffix));
+				in.readFully(name, shared, suffix);
+
+				long size = readVarLong(in);
+				long lastModified = readVarLong(in);
+				byte[] hash = null;
+				int hashLength = in.readUnsignedByte();
+				if (hashLength > 0) {
+					hash = new byte[hashLength];
+					in.readFully(hash);
+				}
+
+				manifest.records.put(new String(name, 0, shared + suffix, StandardCharsets.UTF_8), new Record(size, lastModified, hash));
+			}
+
+			return manifest;
+		} catch (EOFException e) {
+			throw new IOException("Truncated manifest file: " + path, e);
+		}
+	}
+
+	/**
+	 * Saves the manifest. The file is replaced atomically, so a crash never leaves a partial manifest.
+	 * @param path The manifest file.
+	 * @throws IOException If the file could not be written.
+	 */
+	public void save(Path path) throws IOException {
+		List<String> names = new ArrayList<String>(records.keySet());
+		Collections.sort(names);
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		OutputStream stream = Files.newOutputStream(temporary);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			writeVarLong(out, generation);
+			writeVarLong(out, names.size());
+
+			byte[] previous = new byte[0];
+			for (String name : names) {
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				int shared = 0;
+				int max = Math.min(previous.length, bytes.length);
+				while (shared < max && previous[shared] == bytes[shared])
+					shared++;
+
+				writeVarLong(out, shared);
+				writeVarLong(out, bytes.length - shared);
+				out.write(bytes, shared, bytes.length - shared);
+
+				Record record = records.get(name);
+				writeVarLong(out, record.size);
+				writeVarLong(out, record.lastModified);
+				if (record.hash == null) {
+					out.writeByte(0);
+				} else {
+					out.writeByte(record.hash.length);
+					out.write(record.hash);
+				}
+				previous = bytes;
+			}
+		}
+
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Gets the record of an entry.
+	 * @param name The archive entry name.
+	 * @return The record, {@code null} if the entry is not in the manifest.
+	 */
+	public Record get(String name) {
+		return records.get(name);
+	}
+
+	/**
+	 * Adds or replaces the record of an entry.
+	 * @param name The archive entry name.
+	 * @param record The record.
+	 */
+	public void put(String name, Record record) {
+		records.put(name, record);
+	}
+
+	/**
+	 * Gets the names of all entries.
+	 * @return The entry names.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(records.keySet());
+	}
+
+	/**
+	 * Gets the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Gets the number of runs this manifest descends from.
+	 * @return The generation, {@code 0} for a full backup.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length number");
+	}
+
+	/**
+	 * The state of one file.
+	 */
+	public final static class Record {
+
+		/**
+		 * The size of the file.
+		 */
+		private final long size;
+
+		/**
+		 * The modification time of the file (milliseconds).
+		 */
+		private final long lastModified;
+
+		/**
+		 * The content hash of the file, {@code null} if not hashed.
+		 */
+		private final byte[] hash;
+
+		/**
+		 * Creates a record.
+		 * @param size The size of the file.
+		 * @param lastModified The modification time of the file (milliseconds).
+		 * @param hash The content hash of the file, {@code null} if not hashed.
+		 */
+		public Record(long size, long lastModified, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		/**
+		 * Gets the size of the file.
+		 * @return The size.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Gets the modification time of the file.
+		 * @return The time (milliseconds).
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the content hash of the file.
+		 * @return The hash, {@code null} if not hashed.
+		 */
+		public byte[] getHash() {
+			return hash;
+		}
+	}
+}
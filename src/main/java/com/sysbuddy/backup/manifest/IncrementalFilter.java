@@ -0,0 +1,159 @@
+package com.sysbuddy.backup.manifest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.sysbuddy.backup.archive.ArchiveFilter;
+import com.sysbuddy.backup.archive.ArchiveWriter;
+
+/**
+ * Archives only the files that are new or changed since the previous run's manifest.
+ * Every visited file is recorded in a new manifest, and files that disappeared are listed in the
+ * {@link #INCREMENT_ENTRY} of the archive, so a tree can be rebuilt from a full backup plus its increments.
+ * @author darius
+ */
+public class IncrementalFilter implements ArchiveFilter {
+
+	/**
+	 * The archive entry describing the increment: its generation and the deleted paths.
+	 */
+	public final static String INCREMENT_ENTRY = ".sysbuddy/increment";
+
+	/**
+	 * The digest algorithm used for content hashes.
+	 */
+	private final static String HASH_ALGORITHM = "SHA-256";
+
+	/**
+	 * The manifest of the previous run, {@code null} if this is a full backup.
+	 */
+	private final FileManifest previous;
+
+	/**
+	 * The manifest being built by this run.
+	 */
+	private final FileManifest current;
+
+	/**
+	 * If content hashes are used to detect files that were touched but not changed.
+	 */
+	private final boolean hashing;
+
+	/**
+	 * The number of files accepted into the archive.
+	 */
+	private long changed;
+
+	/**
+	 * The paths of the previous run that no longer exist.
+	 */
+	private List<String> deleted = Collections.emptyList();
+
+	/**
+	 * Creates an incremental filter.
+	 * @param previous The manifest of the previous run, {@code null} for a full backup.
+	 * @param hashing If content hashes are used to detect files that were touched but not changed.
+	 */
+	public IncrementalFilter(FileManifest previous, boolean hashing) {
+		this.previous = previous;
+		this.hashing = hashing;
+		this.current = previous == null ? new FileManifest() : new FileManifest(previous.getGeneration() + 1, previous.size());
+	}
+
+	@Override
+	public boolean accept(String entry, Path file, long size, long lastModified) throws IOException {
+		FileManifest.Record old = previous == null ? null : previous.get(entry);
+
+		if (old != null && old.getSize() == size && old.getLastModified() == lastModified) {
+			current.put(entry, old);
+			return false;
+		}
+
+		byte[] hash = hashing ? hash(file) : null;
+		current.put(entry, new FileManifest.Record(size, lastModified, hash));
+
+		if (old != null && hash != null && old.getSize() == size && Arrays.equals(hash, old.getHash()))
+			return false;
+
+		changed++;
+		return true;
+	}
+
+	@Override
+	public void finish(ArchiveWriter writer) throws IOException {
+		if (previous != null) {
+			deleted = new ArrayList<String>();
+			for (String name : previous.getNames()) {
+				if (current.get(name) == null)
+					deleted.add(name);
+			}
+			Collections.sort(deleted);
+		}
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("generation: ").append(current.getGeneration()).append('\n');
+		for (String name : deleted)
+			builder.append("deleted: ").append(name).append('\n');
+
+		writer.putBytes(INCREMENT_ENTRY, builder.toString().getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets the manifest built by this run, to be saved once the archive is complete.
+	 * @return The manifest.
+	 */
+	public FileManifest getManifest() {
+		return current;
+	}
+
+	/**
+	 * Gets the number of files accepted into the archive.
+	 * @return The number of new or changed files.
+	 */
+	public long getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Gets the paths of the previous run that no longer exist.
+	 * @return The deleted paths.
+	 */
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * Computes the content hash of a file.
+	 * @param file The file.
+	 * @return The hash.
+	 * @throws IOException If the file could not be read.
+	 */
+	private static byte[] hash(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+}
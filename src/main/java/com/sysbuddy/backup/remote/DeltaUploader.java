@@ -0,0 +1,164 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.sysbuddy.backup.delta.BlockSignature;
+import com.sysbuddy.backup.delta.DeltaEncoder;
+import com.sysbuddy.util.FTPCredentials;
+
+/**
+ * Uploads a new version of a file as a delta against the previous version on the server: only the
+ * literal data and the patch script are sent, and the server rebuilds the file with {@link RemotePatcher}.
+ * The rebuilt file is verified before it is renamed to its final name. Whenever the delta cannot be applied,
+ * because the server does not run the patch step or the previous version is gone, the caller is told
+ * to upload the whole file instead.
+ * @author darius
+ */
+public class DeltaUploader {
+
+	/**
+	 * The logger of the delta uploader.
+	 */
+	private final static Logger logger = Logger.getLogger(DeltaUploader.class.getName());
+
+	/**
+	 * The suffix of the uploaded literal data.
+	 */
+	private final static String DATA = ".delta";
+
+	/**
+	 * The suffix of the uploaded patch script.
+	 */
+	private final static String PATCH = ".patch";
+
+	/**
+	 * The pool the sessions are leased from.
+	 */
+	private final SessionPool sessions;
+
+	/**
+	 * The server and login.
+	 */
+	private final FTPCredentials credentials;
+
+	/**
+	 * The directory on the server the file is uploaded to.
+	 */
+	private final String remoteDirectory;
+
+	/**
+	 * The uploader the delta files are sent with.
+	 */
+	private final StripedUploader uploader;
+
+	/**
+	 * The largest share of the file the literal data may make up before the delta is not worth applying.
+	 */
+	private final double maxLiteral;
+
+	/**
+	 * Creates a delta uploader.
+	 * @param sessions The pool the sessions are leased from.
+	 * @param credentials The server and login.
+	 * @param remoteDirectory The directory on the server the file is uploaded to.
+	 * @param uploader The uploader the delta files are sent with.
+	 * @param maxLiteral The largest share of the file the literal data may make up before the delta is not worth applying.
+	 */
+	public DeltaUploader(SessionPool sessions, FTPCredentials credentials, String remoteDirectory, StripedUploader uploader, double maxLiteral) {
+		this.sessions = sessions;
+		this.credentials = credentials;
+		this.remoteDirectory = remoteDirectory;
+		this.uploader = uploader;
+		this.maxLiteral = maxLiteral;
+	}
+
+	/**
+	 * Uploads a file as a delta.
+	 * @param file The new version.
+	 * @param remote The name of the remote file.
+	 * @param hash The SHA-256 hash the rebuilt file is verified against, {@code null} to only compare its size.
+	 * @param base The signatures of the previous version, which must still be on the server under its name.
+	 * @return {@code true} if the file was rebuilt and verified on the server, {@code false} if the whole file
+	 * has to be uploaded instead.
+	 * @throws IOException If the delta could not be computed or uploaded.
+	 */
+	public boolean upload(Path file, String remote, String hash, BlockSignature base) throws IOException {
+		Path data = file.resolveSibling(file.getFileName() + DATA);
+		Path patch = file.resolveSibling(file.getFileName() + PATCH);
+
+		try {
+			DeltaEncoder encoder = new DeltaEncoder(base);
+			encoder.encode(file, data, patch);
+			long size = Files.size(file);
+			logger.info("Delta of " + remote + " against " + base.getName() + ": " + encoder.getCopiedBytes() + " bytes unchanged, "
+					+ encoder.getLiteralBytes() + " bytes to send");
+
+			if (encoder.getLiteralBytes() > size * maxLiteral) {
+				logger.info("Delta of " + remote + " is too large, uploading the whole file");
+				return false;
+			}
+
+			uploader.upload(data, remote + DATA, null);
+			uploader.upload(patch, remote + PATCH, null);
+			return patch(remote, base.getName(), size, hash);
+		} finally {
+			Files.deleteIfExists(data);
+			Files.deleteIfExists(patch);
+		}
+	}
+
+	/**
+	 * Rebuilds the file on the server from the uploaded delta, verifies and renames it, and removes the delta.
+	 * @param remote The name of the remote file.
+	 * @param base The name of the previous version.
+	 * @param size The size of the file.
+	 * @param hash The SHA-256 hash the rebuilt file is verified against, {@code null} to only compare its size.
+	 * @return {@code true} if the file was rebuilt.
+	 * @throws IOException If the thread was interrupted.
+	 */
+	private boolean patch(String remote, String base, long size, String hash) throws IOException {
+		String part = remote + StripedUploader.PART;
+
+		try (SessionPool.Lease lease = sessions.acquire(credentials)) {
+			ChannelSftp channel = lease.openSftp();
+			try {
+				channel.cd(remoteDirectory);
+				try {
+					if (!RemotePatcher.apply(lease.getSession(), remoteDirectory, base, remote + DATA, remote + PATCH, part)) {
+						remove(channel, part);
+						return false;
+					}
+					RemoteVerifier.verify(lease.getSession(), channel, remoteDirectory, part, size, hash);
+					StripedUploader.rename(channel, part, remote);
+					logger.info("Rebuilt " + remote + " on the server from " + base);
+					return true;
+				} catch (IOException e) {
+					logger.warning("Patched " + remote + " does not match, uploading the whole file: " + e.getMessage());
+					remove(channel, part);
+					return false;
+				} finally {
+					remove(channel, remote + DATA);
+					remove(channel, remote + PATCH);
+				}
+			} finally {
+				channel.disconnect();
+			}
+		} catch (JSchException | SftpException e) {
+			logger.warning("Could not apply the delta of " + remote + ", uploading the whole file: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static void remove(ChannelSftp channel, String name) {
+		try {
+			channel.rm(name);
+		} catch (SftpException ignored) {
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.sysbuddy.backup.delta.DeltaPatcher;
+
+/**
+ * Applies a delta on the server by running the shell step of {@link DeltaPatcher} over the session.
+ * Servers that only offer SFTP cannot run it, and the caller falls back to uploading the whole file.
+ * @author darius
+ */
+public class RemotePatcher {
+
+	/**
+	 * The logger of the remote patcher.
+	 */
+	private final static Logger logger = Logger.getLogger(RemotePatcher.class.getName());
+
+	/**
+	 * The longest error output of the patch step that is read.
+	 */
+	private final static int MAX_OUTPUT = 4096;
+
+	private RemotePatcher() {
+	}
+
+	/**
+	 * Rebuilds a file on the server from its previous version and an uploaded delta.
+	 * @param session The session.
+	 * @param directory The directory holding the files.
+	 * @param base The name of the previous version.
+	 * @param data The name of the uploaded literal data.
+	 * @param patch The name of the uploaded patch script.
+	 * @param out The name of the rebuilt file.
+	 * @return {@code true} if the step ran successfully, {@code false} if the server does not run it or it failed.
+	 * @throws IOException If the thread was interrupted.
+	 */
+	public static boolean apply(Session session, String directory, String base, String data, String patch, String out) throws IOException {
+		ChannelExec exec = null;
+		try {
+			exec = (ChannelExec) session.openChannel("exec");
+			exec.setCommand("cd " + RemoteVerifier.quote(directory) + " && sh -c " + RemoteVerifier.quote(DeltaPatcher.SCRIPT)
+					+ " sysbuddy-patch " + RemoteVerifier.quote(base) + " " + RemoteVerifier.quote(data) + " "
+					+ RemoteVerifier.quote(patch) + " " + RemoteVerifier.quote(out));
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			InputStream in = exec.getErrStream();
+			exec.setInputStream(null);
+			exec.connect();
+
+			byte[] buffer = new byte[512];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				if (errors.size() < MAX_OUTPUT)
+					errors.write(buffer, 0, read);
+			}
+			while (!exec.isClosed())
+				Thread.sleep(10);
+
+			if (exec.getExitStatus() != 0) {
+				logger.warning("Patch step for " + out + " exited with " + exec.getExitStatus() + ": "
+						+ new String(errors.toByteArray(), StandardCharsets.UTF_8).trim());
+				return false;
+			}
+			return true;
+		} catch (JSchException e) {
+			logger.warning("Server does not run the patch step: " + e.getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while patching " + out, e);
+		} finally {
+			if (exec != null)
+				exec.disconnect();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Verifies uploaded files without downloading them again. The remote size is always compared; the
+ * SHA-256 hash is compared when the server lets the session run {@code sha256sum}, which servers that
+ * only offer SFTP do not.
+ * @author darius
+ */
+public class RemoteVerifier {
+
+	/**
+	 * The logger of the remote verifier.
+	 */
+	private final static Logger logger = Logger.getLogger(RemoteVerifier.class.getName());
+
+	/**
+	 * The longest output of the remote hash command that is read.
+	 */
+	private final static int MAX_OUTPUT = 4096;
+
+	private RemoteVerifier() {
+	}
+
+	/**
+	 * Verifies an uploaded file.
+	 * @param session The session the file was uploaded over.
+	 * @param channel The channel the file was uploaded over, in the directory the file was uploaded to.
+	 * @param directory The directory the file was uploaded to, for the remote hash command.
+	 * @param name The name of the remote file.
+	 * @param size The expected size.
+	 * @param hash The expected SHA-256 hash in hexadecimal, {@code null} to only compare the size.
+	 * @throws IOException If the remote file does not match, or could not be inspected.
+	 */
+	public static void verify(Session session, ChannelSftp channel, String directory, String name, long size, String hash) throws IOException {
+		long remoteSize;
+		try {
+			remoteSize = channel.stat(name).getSize();
+		} catch (SftpException e) {
+			throw new IOException("Could not inspect remote file " + name, e);
+		}
+
+		if (remoteSize != size)
+			throw new IOException("Remote file " + name + " has " + remoteSize + " bytes, expected " + size);
+
+		if (hash == null)
+			return;
+
+		String remoteHash = hash(session, directory + "/" + name);
+		if (remoteHash == null) {
+			logger.info("Server does not run sha256sum, verified the size of " + name + " only");
+			return;
+		}
+
+		if (!remoteHash.equalsIgnoreCase(hash))
+			throw new IOException("Remote file " + name + " has SHA-256 " + remoteHash + ", expected " + hash);
+
+		logger.info("Verified " + name + " on the server (" + size + " bytes, sha256 " + hash + ")");
+	}
+
+	/**
+	 * Runs {@code sha256sum} on the server.
+	 * @param session The session.
+	 * @param path The remote path.
+	 * @return The hash, {@code null} if the server does not run the command.
+	 * @throws IOException If the thread was interrupted.
+	 */
+	private static String hash(Session session, String path) throws IOException {
+		ChannelExec exec = null;
+		try {
+			exec = (ChannelExec) session.openChannel("exec");
+			exec.setCommand("sha256sum -- " + quote(path));
+			InputStream in = exec.getInputStream();
+			exec.connect();
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[512];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				if (output.size() < MAX_OUTPUT)
+					output.write(buffer, 0, read);
+			}
+			while (!exec.isClosed())
+				Thread.sleep(10);
+
+			if (exec.getExitStatus() != 0)
+				return null;
+
+			String[] fields = new String(output.toByteArray(), StandardCharsets.UTF_8).trim().split("\\s+");
+			if (fields.length == 0 || !fields[0].matches("[0-9a-fA-F]{64}"))
+				return null;
+			return fields[0];
+		} catch (JSchException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while verifying " + path, e);
+		} finally {
+			if (exec != null)
+				exec.disconnect();
+		}
+	}
+
+	/**
+	 * Quotes a path for a POSIX shell.
+	 * @param path The path.
+	 * @return The quoted path.
+	 */
+	static String quote(String path) {
+		return "'" + path.replace("'", "'\\''") + "'";
+	}
+}
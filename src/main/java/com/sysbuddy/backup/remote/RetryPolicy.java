@@ -0,0 +1,82 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how patiently a failed transfer is retried. The wait before a retry doubles with every
+ * failure, up to a maximum, and a random half of it is jittered so tasks that failed together do not
+ * reconnect together.
+ * @author darius
+ */
+public class RetryPolicy {
+
+	/**
+	 * The number of retries after the first attempt.
+	 */
+	private final int retries;
+
+	/**
+	 * The wait (milliseconds) before the first retry.
+	 */
+	private final long baseDelay;
+
+	/**
+	 * The longest wait (milliseconds) before a retry.
+	 */
+	private final long maxDelay;
+
+	/**
+	 * Creates a retry policy.
+	 * @param retries The number of retries after the first attempt.
+	 * @param baseDelay The wait (milliseconds) before the first retry.
+	 * @param maxDelay The longest wait (milliseconds) before a retry.
+	 */
+	public RetryPolicy(int retries, long baseDelay, long maxDelay) {
+		this.retries = Math.max(0, retries);
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	/**
+	 * Checks if another attempt may be made.
+	 * @param failures The number of attempts that failed so far.
+	 * @return {@code true} if the transfer should be retried.
+	 */
+	public boolean allows(int failures) {
+		return failures <= retries;
+	}
+
+	/**
+	 * Gets the wait before a retry: half of the exponential delay, plus a random share of the other half.
+	 * @param failures The number of attempts that failed so far, at least {@code 1}.
+	 * @return The wait (milliseconds).
+	 */
+	public long delay(int failures) {
+		int shift = Math.min(30, Math.max(0, failures - 1));
+		long delay = Math.min(maxDelay, baseDelay << shift);
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	/**
+	 * Waits before a retry.
+	 * @param failures The number of attempts that failed so far, at least {@code 1}.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	public void sleep(int failures) throws InterruptedIOException {
+		try {
+			Thread.sleep(delay(failures));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	/**
+	 * Gets the number of retries after the first attempt.
+	 * @return The number of retries.
+	 */
+	public int getRetries() {
+		return retries;
+	}
+}
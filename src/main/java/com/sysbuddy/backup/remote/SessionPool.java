@@ -0,0 +1,346 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.util.CancellationToken;
+import com.sysbuddy.util.FTPCredentials;
+
+/**
+ * Keeps SSH sessions open between uploads, so tasks that run against the same server skip the handshake
+ * and key exchange. Sessions are keyed by server, port and user. A session is leased to one task at a
+ * time, which may open as many SFTP channels on it as it needs; the number of sessions per server is
+ * capped, and tasks wait for a lease beyond that. Idle sessions are sent keep-alives and are closed once
+ * they were idle for too long or stop answering. Handshakes and keep-alives run outside of the pool's locks.
+ * @author darius
+ */
+public class SessionPool implements Closeable {
+
+	/**
+	 * The logger of the session pool.
+	 */
+	private final static Logger logger = Logger.getLogger(SessionPool.class.getName());
+
+	/**
+	 * The pool shared by every SFTP task.
+	 */
+	private final static SessionPool DEFAULT = new SessionPool(GlobalConfiguration.SSH_SESSIONS_PER_SERVER,
+			GlobalConfiguration.SSH_IDLE_TIMEOUT, GlobalConfiguration.SSH_KEEPALIVE_INTERVAL);
+
+	/**
+	 * The maximum number of sessions per server.
+	 */
+	private final int maxSessions;
+
+	/**
+	 * The time (milliseconds) after which an idle session is closed.
+	 */
+	private final long idleTimeout;
+
+	/**
+	 * The time (milliseconds) between keep-alives.
+	 */
+	private final int keepAliveInterval;
+
+	/**
+	 * The sessions of every server, by key.
+	 */
+	private final Map<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+	/**
+	 * Sends the keep-alives and closes expired sessions.
+	 */
+	private final ScheduledExecutorService maintenance;
+
+	/**
+	 * Creates a session pool.
+	 * @param maxSessions The maximum number of sessions per server.
+	 * @param idleTimeout The time (milliseconds) after which an idle session is closed.
+	 * @param keepAliveInterval The time (milliseconds) between keep-alives.
+	 */
+	public SessionPool(int maxSessions, long idleTimeout, int keepAliveInterval) {
+		this.maxSessions = Math.max(1, maxSessions);
+		this.idleTimeout = idleTimeout;
+		this.keepAliveInterval = keepAliveInterval;
+		this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ssh-session-pool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the pool shared by every SFTP task.
+	 * @return The pool.
+	 */
+	public static SessionPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Leases a connected session to a server, reusing an idle one if possible. Waits while the server
+	 * already has the maximum number of sessions leased.
+	 * @param credentials The server and login.
+	 * @return The lease, to be closed once the session is no longer used.
+	 * @throws JSchException If a new session could not be connected.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	public Lease acquire(FTPCredentials credentials) throws JSchException, InterruptedIOException {
+		String key = credentials.getUsername() + "@" + credentials.getServer() + ":" + credentials.getPort();
+		Server server = servers.get(key);
+		if (server == null) {
+			Server created = new Server();
+			server = servers.putIfAbsent(key, created);
+			if (server == null)
+				server = created;
+		}
+
+		try {
+			server.permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a session to " + key);
+		}
+
+		try {
+			Session session;
+			while ((session = server.poll()) != null) {
+				if (session.isConnected())
+					return new Lease(server, session);
+				session.disconnect();
+			}
+
+			logger.info("Connecting to SFTP " + key + "..");
+			return new Lease(server, connect(credentials));
+		} catch (JSchException | RuntimeException e) {
+			server.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a new session.
+	 * @param credentials The server and login.
+	 * @return The connected session.
+	 * @throws JSchException If the connection is unsuccessful.
+	 */
+	private Session connect(FTPCredentials credentials) throws JSchException {
+		JSch jsch = new JSch();
+		Session session = jsch.getSession(credentials.getUsername(), credentials.getServer(), credentials.getPort());
+		session.setPassword(credentials.getPassword());
+		Properties config = new Properties();
+		config.put("StrictHostKeyChecking", "no");
+		session.setConfig(config);
+		session.setServerAliveInterval(keepAliveInterval);
+		session.setServerAliveCountMax(3);
+		session.connect(GlobalConfiguration.SSH_CONNECT_TIMEOUT);
+		return session;
+	}
+
+	/**
+	 * Closes the sessions that were idle for too long and sends a keep-alive on the others.
+	 */
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		List<Session> expired = new ArrayList<Session>();
+		List<Session> alive = new ArrayList<Session>();
+
+		for (Server server : servers.values()) {
+			synchronized (server) {
+				Iterator<Idle> iterator = server.idle.iterator();
+				while (iterator.hasNext()) {
+					Idle idle = iterator.next();
+					if (now - idle.since >= idleTimeout || !idle.session.isConnected()) {
+						iterator.remove();
+						expired.add(idle.session);
+					} else {
+						alive.add(idle.session);
+					}
+				}
+			}
+		}
+
+		for (Session session : expired)
+			session.disconnect();
+
+		for (Session session : alive) {
+			try {
+				session.sendKeepAliveMsg();
+			} catch (Exception e) {
+				logger.info("Dropping dead SSH session to " + session.getHost() + ": " + e.getMessage());
+				session.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Stops the keep-alives and closes every idle session. Leased sessions are closed when their lease is.
+	 */
+	@Override
+	public void close() {
+		maintenance.shutdownNow();
+		for (Server server : servers.values()) {
+			List<Session> idle = new ArrayList<Session>();
+			synchronized (server) {
+				for (Idle entry : server.idle)
+					idle.add(entry.session);
+				server.idle.clear();
+				server.closed = true;
+			}
+			for (Session session : idle)
+				session.disconnect();
+		}
+	}
+
+	/**
+	 * The sessions of one server.
+	 */
+	private final class Server {
+
+		final Semaphore permits = new Semaphore(maxSessions);
+		final Deque<Idle> idle = new ArrayDeque<Idle>();
+		boolean closed;
+
+		synchronized Session poll() {
+			Idle entry = idle.pollFirst();
+			return entry == null ? null : entry.session;
+		}
+
+		synchronized boolean offer(Session session) {
+			if (closed)
+				return false;
+			idle.addFirst(new Idle(session, System.currentTimeMillis()));
+			return true;
+		}
+	}
+
+	/**
+	 * An idle session and the time (milliseconds) it was returned.
+	 */
+	private final static class Idle {
+
+		final Session session;
+		final long since;
+
+		Idle(Session session, long since) {
+			this.session = session;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * A session leased from the pool. Closing the lease returns the session, or disconnects it if it broke.
+	 */
+	public final class Lease implements Closeable {
+
+		/**
+		 * The server the session belongs to.
+		 */
+		private final Server server;
+
+		/**
+		 * The session.
+		 */
+		private final Session session;
+
+		/**
+		 * If the session must not be reused.
+		 */
+		private boolean invalid;
+
+		/**
+		 * If the lease was closed.
+		 */
+		private boolean closed;
+
+		/**
+		 * Disconnects the session if the task run holding the lease is cancelled.
+		 */
+		private final CancellationToken.Registration cancellation;
+
+		private Lease(Server server, Session session) {
+			this.server = server;
+			this.session = session;
+			this.cancellation = CancellationToken.current().onCancel(new Runnable() {
+				@Override
+				public void run() {
+					// Disconnecting closes every channel, which breaks transfers blocked on the network
+					invalid = true;
+					Lease.this.session.disconnect();
+				}
+			});
+		}
+
+		/**
+		 * Gets the leased session.
+		 * @return The connected session.
+		 */
+		public Session getSession() {
+			return session;
+		}
+
+		/**
+		 * Opens an SFTP channel on the session. The caller disconnects it when done.
+		 * @return The connected channel.
+		 * @throws JSchException If the channel could not be opened; the session is then not reused.
+		 */
+		public ChannelSftp openSftp() throws JSchException {
+			ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+			try {
+				channel.connect();
+			} catch (JSchException e) {
+				channel.disconnect();
+				invalid = true;
+				throw e;
+			}
+			return channel;
+		}
+
+		/**
+		 * Marks the session as broken, so it is disconnected rather than returned.
+		 */
+		public void invalidate() {
+			invalid = true;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			cancellation.close();
+
+			if (invalid || !session.isConnected() || !server.offer(session))
+				session.disconnect();
+			server.permits.release();
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.sysbuddy.io.RateLimiter;
+import com.sysbuddy.util.FTPCredentials;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Uploads a file over several SFTP channels of one session at once, so the transfer is not capped
+ * by the window of a single channel on high-latency links. The file is split into one contiguous byte
+ * range per channel, and every channel writes its range at its offset, assembling the remote file in place.
+ * Files smaller than two chunks are uploaded over a single channel.
+ * <p>
+ * The file is written under a temporary name ending in {@value #PART} and renamed once it is complete
+ * and verified. A failed attempt is retried on a fresh session according to the {@link RetryPolicy}, and
+ * resumes where it stopped: a single channel continues from the size of the remote file, several channels
+ * from the last position each of them had acknowledged by the server. A file that fails verification is
+ * uploaded again from the start.
+ * @author darius
+ */
+public class StripedUploader {
+
+	/**
+	 * The logger of the striped uploader.
+	 */
+	private final static Logger logger = Logger.getLogger(StripedUploader.class.getName());
+
+	/**
+	 * The suffix of files that are still being uploaded.
+	 */
+	public final static String PART = ".part";
+
+	/**
+	 * The largest buffer a channel copies its range through.
+	 */
+	private final static int MAX_BUFFER = 1 << 20;
+
+	/**
+	 * The number of bytes after which a channel waits for the server to acknowledge its writes,
+	 * recording a position the range can be resumed from.
+	 */
+	private final static long CHECKPOINT = 16L << 20;
+
+	/**
+	 * The pool the sessions are leased from.
+	 */
+	private final SessionPool sessions;
+
+	/**
+	 * The server and login.
+	 */
+	private final FTPCredentials credentials;
+
+	/**
+	 * The directory on the server the file is uploaded to.
+	 */
+	private final String remoteDirectory;
+
+	/**
+	 * The maximum number of channels.
+	 */
+	private final int channelCount;
+
+	/**
+	 * The smallest range a channel is given.
+	 */
+	private final long chunkSize;
+
+	/**
+	 * The limiter uploaded bytes are taken from, shared by all channels.
+	 */
+	private final RateLimiter limiter;
+
+	/**
+	 * How failed attempts are retried.
+	 */
+	private RetryPolicy retryPolicy = new RetryPolicy(0, 1, 1);
+
+	/**
+	 * The counters the uploads report to.
+	 */
+	private TransferStatistics statistics = new TransferStatistics();
+
+	/**
+	 * Creates a striped uploader.
+	 * @param sessions The pool the sessions are leased from.
+	 * @param credentials The server and login.
+	 * @param remoteDirectory The directory on the server the file is uploaded to.
+	 * @param channelCount The maximum number of channels.
+	 * @param chunkSize The smallest range a channel is given.
+	 * @param limiter The limiter uploaded bytes are taken from, shared by all channels.
+	 */
+	public StripedUploader(SessionPool sessions, FTPCredentials credentials, String remoteDirectory, int channelCount, long chunkSize, RateLimiter limiter) {
+		this.sessions = sessions;
+		this.credentials = credentials;
+		this.remoteDirectory = remoteDirectory;
+		this.channelCount = Math.max(1, channelCount);
+		this.chunkSize = Math.max(1, chunkSize);
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Sets how failed attempts are retried.
+	 * @param retryPolicy The retry policy.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the counters the uploads report to.
+	 * @param statistics The transfer statistics.
+	 */
+	public void setStatistics(TransferStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Uploads a file and verifies the remote copy, retrying failed attempts.
+	 * @param file The local file.
+	 * @param remote The name of the remote file.
+	 * @param hash The SHA-256 hash the remote copy is verified against, {@code null} to only compare its size.
+	 * @throws IOException If the file could not be uploaded within the retries, or the thread was interrupted.
+	 */
+	public void upload(Path file, String remote, String hash) throws IOException {
+		long size = Files.size(file);
+		int count = (int) Math.max(1, Math.min(channelCount, size / chunkSize));
+		long[] bounds = new long[count + 1];
+		for (int i = 0; i <= count; i++)
+			bounds[i] = size / count * i + Math.min(i, size % count);
+
+		AtomicLongArray confirmed = new AtomicLongArray(count);
+		for (int i = 0; i < count; i++)
+			confirmed.set(i, bounds[i]);
+
+		int failures = 0;
+		while (true) {
+			Exception failure;
+			SessionPool.Lease lease = null;
+			try {
+				lease = sessions.acquire(credentials);
+				attempt(lease, file, remote, hash, bounds, confirmed, failures > 0);
+				statistics.addFile();
+				logger.info("Uploaded " + remote + " (" + size + " bytes) over " + count + " channel(s)");
+				return;
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (JSchException | SftpException | IOException e) {
+				failure = e;
+				if (lease != null)
+					lease.invalidate();
+			} finally {
+				if (lease != null)
+					lease.close();
+			}
+
+			failures++;
+			if (!retryPolicy.allows(failures))
+				throw new IOException("Could not upload " + remote + " in " + failures + " attempt(s)", failure);
+
+			logger.warning("Upload of " + remote + " failed (attempt " + failures + "), retrying: " + failure);
+			statistics.addRetry();
+			retryPolicy.sleep(failures);
+		}
+	}
+
+	/**
+	 * Makes one attempt at uploading the file.
+	 * @param lease The session.
+	 * @param file The local file.
+	 * @param remote The name of the remote file.
+	 * @param hash The SHA-256 hash the remote copy is verified against, {@code null} to only compare its size.
+	 * @param bounds The position at which every range starts, with the file size last.
+	 * @param confirmed The position up to which every range is on the server.
+	 * @param resuming If an earlier attempt failed and its partial file is continued.
+	 */
+	private void attempt(SessionPool.Lease lease, Path file, String remote, String hash, long[] bounds, AtomicLongArray confirmed, boolean resuming)
+			throws JSchException, SftpException, IOException {
+		int count = confirmed.length();
+		String part = remote + PART;
+		List<ChannelSftp> channels = new ArrayList<ChannelSftp>();
+		List<OutputStream> outputs = new ArrayList<OutputStream>();
+		ExecutorService pool = Executors.newFixedThreadPool(count, Threads.sshFactory("upload"));
+
+		try {
+			for (int i = 0; i < count; i++) {
+				ChannelSftp channel = lease.openSftp();
+				channels.add(channel);
+				channel.cd(remoteDirectory);
+			}
+
+			ChannelSftp control = channels.get(0);
+			long existing = size(control, part);
+			if (!resuming && existing >= 0) {
+				control.rm(part);
+				existing = -1;
+			}
+			if (existing < 0) {
+				// Nothing is on the server, whatever earlier attempts had confirmed
+				for (int i = 0; i < count; i++)
+					confirmed.set(i, bounds[i]);
+			} else if (count == 1) {
+				confirmed.set(0, Math.min(existing, bounds[1]));
+			}
+
+			if (resuming && existing < 0) {
+				logger.info("Restarting " + remote + ", its partial file is gone from the server");
+			} else if (resuming) {
+				long resumed = 0;
+				for (int i = 0; i < count; i++)
+					resumed += confirmed.get(i) - bounds[i];
+				statistics.addResumed(resumed);
+				logger.info("Resuming " + remote + " with " + resumed + " bytes already on the server");
+			}
+
+			// Writing handles are opened in resume mode, which never truncates: its offset is relative to the
+			// size of the remote file, which does not change until every handle is open and writing starts.
+			long remoteSize = Math.max(0, existing);
+			List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < count; i++) {
+				long position = confirmed.get(i);
+				if (position < bounds[i + 1] || existing < 0) {
+					OutputStream output = channels.get(i).put(part, null, ChannelSftp.RESUME, position - remoteSize);
+					outputs.add(output);
+					jobs.add(new RangeJob(file, output, i, bounds[i + 1], confirmed));
+				}
+			}
+
+			List<Future<Void>> ranges = new ArrayList<Future<Void>>();
+			for (Callable<Void> job : jobs)
+				ranges.add(pool.submit(job));
+			for (Future<Void> range : ranges)
+				range.get();
+
+			try {
+				RemoteVerifier.verify(lease.getSession(), control, remoteDirectory, part, bounds[count], hash);
+			} catch (IOException e) {
+				for (int i = 0; i < count; i++)
+					confirmed.set(i, bounds[i]);
+				try {
+					control.rm(part);
+				} catch (SftpException ignored) {
+				}
+				throw e;
+			}
+
+			rename(control, part, remote);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while uploading " + remote);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Could not upload " + remote, cause);
+		} finally {
+			pool.shutdownNow();
+			for (OutputStream output : outputs) {
+				try {
+					output.close();
+				} catch (IOException ignored) {
+				}
+			}
+			for (ChannelSftp channel : channels)
+				channel.disconnect();
+		}
+	}
+
+	/**
+	 * Gets the size of a remote file.
+	 * @param channel The channel.
+	 * @param name The name of the file.
+	 * @return The size, {@code -1} if the file does not exist.
+	 * @throws SftpException If the file could not be inspected.
+	 */
+	private static long size(ChannelSftp channel, String name) throws SftpException {
+		try {
+			return channel.stat(name).getSize();
+		} catch (SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				return -1;
+			throw e;
+		}
+	}
+
+	/**
+	 * Moves a complete file to its final name, replacing a file of that name.
+	 * @param channel The channel.
+	 * @param part The temporary name.
+	 * @param remote The final name.
+	 * @throws SftpException If the file could not be renamed.
+	 */
+	public static void rename(ChannelSftp channel, String part, String remote) throws SftpException {
+		try {
+			channel.rename(part, remote);
+		} catch (SftpException e) {
+			if (size(channel, remote) < 0)
+				throw e;
+			channel.rm(remote);
+			channel.rename(part, remote);
+		}
+	}
+
+	/**
+	 * Copies the rest of one range of the file to its channel.
+	 */
+	private final class RangeJob implements Callable<Void> {
+
+		private final Path file;
+		private final OutputStream output;
+		private final int index;
+		private final long end;
+		private final AtomicLongArray confirmed;
+
+		RangeJob(Path file, OutputStream output, int index, long end, AtomicLongArray confirmed) {
+			this.file = file;
+			this.output = output;
+			this.index = index;
+			this.end = end;
+			this.confirmed = confirmed;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			long position = confirmed.get(index);
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_BUFFER, Math.max(1, end - position)));
+			long unconfirmed = 0;
+
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					int read = channel.read(buffer, position);
+					if (read < 0)
+						throw new IOException("File shrank while uploading: " + file);
+					limiter.acquire(read);
+					output.write(buffer.array(), 0, read);
+					statistics.addSent(read);
+					position += read;
+					unconfirmed += read;
+
+					if (unconfirmed >= CHECKPOINT) {
+						output.flush();
+						confirmed.set(index, position);
+						unconfirmed = 0;
+					}
+				}
+			}
+			output.close();
+			confirmed.set(index, end);
+			return null;
+		}
+	}
+}
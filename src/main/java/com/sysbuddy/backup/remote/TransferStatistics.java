@@ -0,0 +1,99 @@
+package com.sysbuddy.backup.remote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected while files are uploaded, reported in the run summary of a task.
+ * Safe to update from several upload threads.
+ * @author darius
+ */
+public class TransferStatistics {
+
+	/**
+	 * The number of files uploaded.
+	 */
+	private final AtomicLong files = new AtomicLong();
+
+	/**
+	 * The number of bytes sent, including bytes sent again after a failure.
+	 */
+	private final AtomicLong sentBytes = new AtomicLong();
+
+	/**
+	 * The number of attempts that failed and were retried.
+	 */
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * The number of bytes a retry found already on the server and did not send again.
+	 */
+	private final AtomicLong resumedBytes = new AtomicLong();
+
+	/**
+	 * Records a completely uploaded file.
+	 */
+	public void addFile() {
+		files.incrementAndGet();
+	}
+
+	/**
+	 * Records bytes sent to the server.
+	 * @param count The number of bytes.
+	 */
+	public void addSent(long count) {
+		sentBytes.addAndGet(count);
+	}
+
+	/**
+	 * Records a failed attempt that is retried.
+	 */
+	public void addRetry() {
+		retries.incrementAndGet();
+	}
+
+	/**
+	 * Records bytes a retry did not have to send again.
+	 * @param count The number of bytes.
+	 */
+	public void addResumed(long count) {
+		resumedBytes.addAndGet(count);
+	}
+
+	/**
+	 * Gets the number of files uploaded.
+	 * @return The number of files.
+	 */
+	public long getFiles() {
+		return files.get();
+	}
+
+	/**
+	 * Gets the number of bytes sent, including bytes sent again after a failure.
+	 * @return The number of bytes.
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * Gets the number of attempts that failed and were retried.
+	 * @return The number of retries.
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Gets the number of bytes retries found already on the server.
+	 * @return The number of bytes.
+	 */
+	public long getResumedBytes() {
+		return resumedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return "uploaded " + files.get() + " files, " + sentBytes.get() + " bytes sent, " + retries.get()
+				+ " retries, " + resumedBytes.get() + " bytes resumed";
+	}
+}
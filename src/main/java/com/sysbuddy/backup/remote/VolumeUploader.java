@@ -0,0 +1,424 @@
+package com.sysbuddy.backup.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.sysbuddy.io.RateLimiter;
+import com.sysbuddy.io.ThrottledInputStream;
+import com.sysbuddy.io.VolumeOutputStream;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Uploads archive volumes while later volumes are still being written. Several volumes are in flight
+ * at once, each over its own SFTP channel of a shared session. The number of volumes waiting on local
+ * disk is bounded, so a slow link holds back the archiver instead of filling the disk.
+ * Every upload is written under a temporary name, verified on the server with {@link RemoteVerifier} and
+ * renamed. A failed upload is retried on the same session, continuing from the size of the partial file.
+ * If the run fails, the uploads are discarded: they are stopped and every file of the run is removed from the server.
+ * @author darius
+ */
+public class VolumeUploader implements VolumeOutputStream.Listener, Closeable {
+
+	/**
+	 * The logger of the volume uploader.
+	 */
+	private final static Logger logger = Logger.getLogger(VolumeUploader.class.getName());
+
+	/**
+	 * The time (milliseconds) stopped uploads get to wind down when the uploads are discarded.
+	 */
+	private final static long DISCARD_WAIT = 15 * 1000;
+
+	/**
+	 * The session the channels belong to.
+	 */
+	private final Session session;
+
+	/**
+	 * The directory on the server the volumes are uploaded to.
+	 */
+	private final String remoteDirectory;
+
+	/**
+	 * The idle channels.
+	 */
+	private final BlockingQueue<ChannelSftp> channels = new LinkedBlockingQueue<ChannelSftp>();
+
+	/**
+	 * Every channel that was opened.
+	 */
+	private final List<ChannelSftp> opened = new CopyOnWriteArrayList<ChannelSftp>();
+
+	/**
+	 * The threads uploading the volumes.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * One permit per volume that may wait on local disk or be in flight.
+	 */
+	private final Semaphore pending;
+
+	/**
+	 * If volumes are deleted locally once uploaded.
+	 */
+	private final boolean deleteUploaded;
+
+	/**
+	 * The limiter uploaded bytes are taken from.
+	 */
+	private final RateLimiter limiter;
+
+	/**
+	 * How failed uploads are retried.
+	 */
+	private RetryPolicy retryPolicy = new RetryPolicy(0, 1, 1);
+
+	/**
+	 * The counters the uploads report to.
+	 */
+	private TransferStatistics statistics = new TransferStatistics();
+
+	/**
+	 * The submitted uploads.
+	 */
+	private final List<Future<Void>> uploads = new ArrayList<Future<Void>>();
+
+	/**
+	 * The names on the server of the submitted files.
+	 */
+	private final List<String> remoteNames = new ArrayList<String>();
+
+	/**
+	 * If the uploads were discarded.
+	 */
+	private volatile boolean discarded;
+
+	/**
+	 * The first upload failure, {@code null} while every upload succeeded.
+	 */
+	private volatile Exception failure;
+
+	/**
+	 * Creates a volume uploader.
+	 * @param session The connected session.
+	 * @param remoteDirectory The directory on the server the volumes are uploaded to.
+	 * @param channelCount The number of volumes uploaded at once.
+	 * @param deleteUploaded If volumes are deleted locally once uploaded.
+	 * @param limiter The limiter uploaded bytes are taken from, shared by all channels.
+	 * @throws JSchException If a channel could not be opened.
+	 * @throws SftpException If the remote directory does not exist.
+	 */
+	public VolumeUploader(Session session, String remoteDirectory, int channelCount, boolean deleteUploaded, RateLimiter limiter) throws JSchException, SftpException {
+		this.session = session;
+		this.remoteDirectory = remoteDirectory;
+		this.deleteUploaded = deleteUploaded;
+		this.limiter = limiter;
+		this.pool = Executors.newFixedThreadPool(channelCount, Threads.sshFactory("upload"));
+		this.pending = new Semaphore(channelCount * 2);
+
+		try {
+			for (int i = 0; i < channelCount; i++) {
+				ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+				opened.add(channel);
+				channel.connect();
+				channel.cd(remoteDirectory);
+				channels.add(channel);
+			}
+		} catch (JSchException | SftpException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets how failed uploads are retried.
+	 * @param retryPolicy The retry policy.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets the counters the uploads report to.
+	 * @param statistics The transfer statistics.
+	 */
+	public void setStatistics(TransferStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	@Override
+	public void volumeFinished(VolumeOutputStream.Volume volume) throws IOException {
+		upload(volume.getPath(), volume.getHash());
+	}
+
+	@Override
+	public void volumesAborted() {
+		discard();
+	}
+
+	/**
+	 * Queues a file for upload, waiting while too many files are pending.
+	 * @param file The file.
+	 * @param hash The SHA-256 hash the remote copy is verified against, {@code null} to only compare its size.
+	 * @throws IOException If an earlier upload failed, or the thread was interrupted.
+	 */
+	public void upload(final Path file, final String hash) throws IOException {
+		if (discarded)
+			throw new IOException("Volume uploads were discarded");
+		checkFailure();
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to upload " + file);
+		}
+
+		remoteNames.add(file.getFileName().toString());
+		uploads.add(pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					transfer(file, hash);
+					if (deleteUploaded)
+						Files.delete(file);
+					return null;
+				} catch (Exception e) {
+					if (failure == null)
+						failure = e;
+					throw e;
+				} finally {
+					pending.release();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Waits for every queued upload.
+	 * @throws IOException If an upload failed, or the thread was interrupted.
+	 */
+	public void finish() throws IOException {
+		for (Future<Void> upload : uploads) {
+			try {
+				upload.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for uploads");
+			} catch (ExecutionException e) {
+				throw new IOException("Volume upload failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Discards the uploads after a failure. Queued uploads are dropped, running uploads are stopped by
+	 * closing their channels, and every file submitted is removed from the server, whether it arrived
+	 * or only partly. Returns once no upload reads the local files any more, so they may be deleted.
+	 */
+	public void discard() {
+		if (discarded)
+			return;
+		discarded = true;
+
+		pool.shutdownNow();
+		for (ChannelSftp channel : opened)
+			channel.disconnect();
+		try {
+			if (!pool.awaitTermination(DISCARD_WAIT, TimeUnit.MILLISECONDS))
+				logger.warning("Volume uploads to " + remoteDirectory + " did not stop within " + DISCARD_WAIT + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		ChannelSftp channel = null;
+		try {
+			channel = (ChannelSftp) session.openChannel("sftp");
+			channel.connect();
+			channel.cd(remoteDirectory);
+			for (String remote : remoteNames) {
+				remove(channel, remote);
+				remove(channel, remote + StripedUploader.PART);
+			}
+			logger.info("Removed the volumes of the failed run from " + remoteDirectory);
+		} catch (JSchException | SftpException e) {
+			logger.warning("Could not remove the volumes of the failed run from " + remoteDirectory + ": " + e);
+		} finally {
+			if (channel != null)
+				channel.disconnect();
+		}
+	}
+
+	/**
+	 * Stops the uploads and closes every channel. The session stays connected.
+	 */
+	@Override
+	public void close() {
+		pool.shutdownNow();
+		for (ChannelSftp channel : opened)
+			channel.disconnect();
+	}
+
+	private void transfer(Path file, String hash) throws InterruptedException, SftpException, IOException {
+		String remote = file.getFileName().toString();
+		String part = remote + StripedUploader.PART;
+		long size = Files.size(file);
+		ChannelSftp channel = channels.take();
+		try {
+			for (int failures = 0; ; ) {
+				try {
+					attempt(channel, file, part, size, hash, failures > 0);
+					rename(channel, part, remote);
+					statistics.addFile();
+					logger.info("Uploaded volume " + remote + " (" + size + " bytes)");
+					return;
+				} catch (InterruptedIOException e) {
+					throw e;
+				} catch (SftpException | IOException e) {
+					failures++;
+					if (discarded)
+						throw e;
+					if (!retryPolicy.allows(failures)) {
+						try {
+							channel.rm(part);
+						} catch (SftpException ignored) {
+						}
+						throw e;
+					}
+					logger.warning("Upload of volume " + remote + " failed (attempt " + failures + "), retrying: " + e);
+					statistics.addRetry();
+					retryPolicy.sleep(failures);
+					channel = reopen(channel);
+				}
+			}
+		} finally {
+			channels.add(channel);
+		}
+	}
+
+	/**
+	 * Makes one attempt at uploading a volume under its temporary name.
+	 * @param channel The channel.
+	 * @param file The volume.
+	 * @param part The temporary name.
+	 * @param size The size of the volume.
+	 * @param hash The SHA-256 hash the remote copy is verified against, {@code null} to only compare its size.
+	 * @param resuming If an earlier attempt failed and its partial file is continued.
+	 */
+	private void attempt(ChannelSftp channel, Path file, String part, long size, String hash, boolean resuming) throws SftpException, IOException {
+		long existing = 0;
+		try {
+			existing = channel.stat(part).getSize();
+		} catch (SftpException e) {
+			if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				throw e;
+		}
+		if (!resuming || existing > size) {
+			if (existing > 0)
+				channel.rm(part);
+			existing = 0;
+		}
+		if (resuming && existing > 0)
+			statistics.addResumed(existing);
+		
+		// In resume mode the input is skipped by the size of the remote file and written after it
+		try (InputStream in = new ThrottledInputStream(Files.newInputStream(file), limiter)) {
+			channel.put(in, part, existing > 0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE);
+		}
+		statistics.addSent(size - existing);
+		
+		try {
+			RemoteVerifier.verify(session, channel, remoteDirectory, part, size, hash);
+		} catch (IOException e) {
+			try {
+				channel.rm(part);
+			} catch (SftpException ignored) {
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces a channel that broke, keeping it if no new channel can be opened.
+	 * @param channel The channel.
+	 * @return The channel to retry with.
+	 */
+	private ChannelSftp reopen(ChannelSftp channel) {
+		if (channel.isConnected())
+			return channel;
+		
+		try {
+			ChannelSftp fresh = (ChannelSftp) session.openChannel("sftp");
+			opened.add(fresh);
+			fresh.connect();
+			fresh.cd(remoteDirectory);
+			return fresh;
+		} catch (JSchException | SftpException e) {
+			logger.warning("Could not reopen an SFTP channel: " + e);
+			return channel;
+		}
+	}
+
+	/**
+	 * Moves a complete volume to its final name, replacing a file of that name.
+	 * @param channel The channel.
+	 * @param part The temporary name.
+	 * @param remote The final name.
+	 * @throws SftpException If the volume could not be renamed.
+	 */
+	private void rename(ChannelSftp channel, String part, String remote) throws SftpException {
+		try {
+			channel.rename(part, remote);
+		} catch (SftpException e) {
+			try {
+				channel.stat(remote);
+			} catch (SftpException missing) {
+				throw e;
+			}
+			channel.rm(remote);
+			channel.rename(part, remote);
+		}
+	}
+
+	/**
+	 * Removes a file from the server, if it exists.
+	 * @param channel The channel.
+	 * @param remote The name of the file.
+	 * @throws SftpException If the file exists but could not be removed.
+	 */
+	private static void remove(ChannelSftp channel, String remote) throws SftpException {
+		try {
+			channel.rm(remote);
+		} catch (SftpException e) {
+			if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				throw e;
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Exception e = failure;
+		if (e != null)
+			throw new IOException("Volume upload failed", e);
+	}
+}
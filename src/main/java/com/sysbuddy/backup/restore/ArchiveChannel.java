@@ -0,0 +1,155 @@
+package com.sysbuddy.backup.restore;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Positional, thread-safe reads over an archive that is either a single file or a set of volumes
+ * ({@code .zip.001}, {@code .zip.002}, ...) treated as one continuous file.
+ * @author darius
+ */
+public class ArchiveChannel implements Closeable {
+
+	/**
+	 * The files of the archive, in order.
+	 */
+	private final FileChannel[] channels;
+
+	/**
+	 * The position in the archive at which each file starts, with the archive size last.
+	 */
+	private final long[] starts;
+
+	/**
+	 * Opens an archive. A path that does not exist is looked up as the first volume of a set, so both
+	 * {@code backup.zip} and {@code backup.zip.001} open the volumes {@code backup.zip.001}, ...
+	 * @param archive The archive or its first volume.
+	 * @return The archive channel.
+	 * @throws IOException If the archive could not be opened.
+	 */
+	public static ArchiveChannel open(Path archive) throws IOException {
+		String name = archive.getFileName().toString();
+		Path base = null;
+
+		if (name.endsWith(".001"))
+			base = archive.resolveSibling(name.substring(0, name.length() - 4));
+		else if (!Files.exists(archive) && Files.exists(volume(archive, 1)))
+			base = archive;
+
+		List<Path> files = new ArrayList<Path>();
+		if (base == null) {
+			files.add(archive);
+		} else {
+			for (int i = 1; Files.exists(volume(base, i)); i++)
+				files.add(volume(base, i));
+		}
+
+		if (files.isEmpty() || !Files.exists(files.get(0)))
+			throw new FileNotFoundException(archive.toString());
+
+		FileChannel[] channels = new FileChannel[files.size()];
+		try {
+			for (int i = 0; i < channels.length; i++)
+				channels[i] = FileChannel.open(files.get(i), StandardOpenOption.READ);
+		} catch (IOException e) {
+			for (FileChannel channel : channels)
+				if (channel != null)
+					channel.close();
+			throw e;
+		}
+		return new ArchiveChannel(channels);
+	}
+
+	private ArchiveChannel(FileChannel[] channels) throws IOException {
+		this.channels = channels;
+		this.starts = new long[channels.length + 1];
+		for (int i = 0; i < channels.length; i++)
+			starts[i + 1] = starts[i] + channels[i].size();
+	}
+
+	/**
+	 * Reads bytes at a position until the buffer is full or the archive ends.
+	 * @param buffer The buffer.
+	 * @param position The position in the archive.
+	 * @return The number of bytes read, {@code -1} at the end of the archive.
+	 * @throws IOException If the archive could not be read.
+	 */
+	public int read(ByteBuffer buffer, long position) throws IOException {
+		if (position >= size())
+			return -1;
+
+		int total = 0;
+		int index = find(position);
+		while (buffer.hasRemaining() && index < channels.length) {
+			int read = channels[index].read(buffer, position - starts[index]);
+			if (read <= 0) {
+				index++;
+				continue;
+			}
+			total += read;
+			position += read;
+			if (position >= starts[index + 1])
+				index++;
+		}
+		return total;
+	}
+
+	/**
+	 * Reads exactly the remaining bytes of a buffer.
+	 * @param buffer The buffer.
+	 * @param position The position in the archive.
+	 * @throws IOException If the archive ends first or could not be read.
+	 */
+	public void readFully(ByteBuffer buffer, long position) throws IOException {
+		int wanted = buffer.remaining();
+		if (read(buffer, position) != wanted)
+			throw new IOException("Unexpected end of archive at " + position);
+	}
+
+	/**
+	 * Gets the size of the archive.
+	 * @return The size in bytes, across all volumes.
+	 */
+	public long size() {
+		return starts[channels.length];
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (FileChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private int find(long position) {
+		int low = 0;
+		int high = channels.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= position)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	private static Path volume(Path base, int index) {
+		return base.resolveSibling(base.getFileName() + String.format(".%03d", index));
+	}
+}
@@ -0,0 +1,136 @@
+package com.sysbuddy.backup.restore;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * An entry of an archive, as described by its central directory record.
+ * @author darius
+ */
+public class ArchiveEntry {
+
+	/**
+	 * The name of the entry, separated by {@code /}.
+	 */
+	private final String name;
+
+	/**
+	 * The compression method.
+	 */
+	private final int method;
+
+	/**
+	 * The CRC-32 of the uncompressed entry.
+	 */
+	private final long crc;
+
+	/**
+	 * The compressed size.
+	 */
+	private final long compressedSize;
+
+	/**
+	 * The uncompressed size.
+	 */
+	private final long size;
+
+	/**
+	 * The position of the local header in the archive.
+	 */
+	private final long offset;
+
+	/**
+	 * The modification time in the MS-DOS format.
+	 */
+	private final long dosTime;
+
+	ArchiveEntry(String name, int method, long crc, long compressedSize, long size, long offset, long dosTime) {
+		this.name = name;
+		this.method = method;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.size = size;
+		this.offset = offset;
+		this.dosTime = dosTime;
+	}
+
+	/**
+	 * Gets the name of the entry.
+	 * @return The name, separated by {@code /}.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Checks if the entry is a directory.
+	 * @return {@code true} if the name ends with {@code /}.
+	 */
+	public boolean isDirectory() {
+		return name.endsWith("/");
+	}
+
+	/**
+	 * Gets the compression method.
+	 * @return The ZIP method, {@code 0} for stored and {@code 8} for deflated entries.
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	 * Gets the CRC-32 of the uncompressed entry.
+	 * @return The checksum.
+	 */
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * Gets the compressed size.
+	 * @return The number of bytes in the archive.
+	 */
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	/**
+	 * Gets the uncompressed size.
+	 * @return The number of bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the position of the local header in the archive.
+	 * @return The offset.
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the modification time.
+	 * @return The time (milliseconds), to the two seconds the ZIP format keeps.
+	 */
+	public long getLastModified() {
+		int year = (int) ((dosTime >> 25) & 0x7f) + 1980;
+		int month = (int) ((dosTime >> 21) & 0x0f);
+		int day = (int) ((dosTime >> 16) & 0x1f);
+		int hour = (int) ((dosTime >> 11) & 0x1f);
+		int minute = (int) ((dosTime >> 5) & 0x3f);
+		int second = (int) ((dosTime << 1) & 0x3e);
+
+		try {
+			return LocalDateTime.of(year, month, day, hour, minute, second).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,377 @@
+package com.sysbuddy.backup.restore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to the entries of a ZIP archive, such as those written by {@code LocalArchiveAsset}.
+ * The end record and central directory are read from the tail of the archive, so an entry is found and
+ * extracted by seeking straight to it, without reading the entries before it. ZIP64 archives and
+ * volume sets are supported. Extraction is thread-safe, so several entries can be extracted at once.
+ * @author darius
+ */
+public class ArchiveReader implements Closeable {
+
+	/**
+	 * The signature of a local file header.
+	 */
+	private final static int LOCAL_HEADER = 0x04034b50;
+
+	/**
+	 * The signature of a central directory record.
+	 */
+	private final static int CENTRAL_HEADER = 0x02014b50;
+
+	/**
+	 * The signature of the end of central directory record.
+	 */
+	private final static int END_RECORD = 0x06054b50;
+
+	/**
+	 * The signature of the ZIP64 end of central directory record.
+	 */
+	private final static int ZIP64_END_RECORD = 0x06064b50;
+
+	/**
+	 * The signature of the ZIP64 end of central directory locator.
+	 */
+	private final static int ZIP64_LOCATOR = 0x07064b50;
+
+	/**
+	 * The header id of the ZIP64 extended information extra field.
+	 */
+	private final static int ZIP64_EXTRA = 0x0001;
+
+	/**
+	 * General purpose flag: the entry name is UTF-8 encoded.
+	 */
+	private final static int FLAG_UTF8 = 1 << 11;
+
+	/**
+	 * The size of the end record without its comment.
+	 */
+	private final static int END_RECORD_SIZE = 22;
+
+	/**
+	 * The longest comment an end record may carry.
+	 */
+	private final static int MAX_COMMENT = 0xFFFF;
+
+	/**
+	 * The size of the buffers used for reading and extracting.
+	 */
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The legacy encoding of entry names without the UTF-8 flag.
+	 */
+	private final static Charset LEGACY = Charset.forName("IBM437");
+
+	/**
+	 * The archive.
+	 */
+	private final ArchiveChannel channel;
+
+	/**
+	 * The number of entries in the archive.
+	 */
+	private final long entryCount;
+
+	/**
+	 * The position of the central directory.
+	 */
+	private final long directoryOffset;
+
+	/**
+	 * The size of the central directory.
+	 */
+	private final long directorySize;
+
+	/**
+	 * Opens an archive and reads its end record.
+	 * @param archive The archive, or the first of its volumes.
+	 * @throws IOException If the archive could not be read or is not a ZIP archive.
+	 */
+	public ArchiveReader(Path archive) throws IOException {
+		this.channel = ArchiveChannel.open(archive);
+		try {
+			long size = channel.size();
+			int tail = (int) Math.min(size, END_RECORD_SIZE + MAX_COMMENT);
+			ByteBuffer buffer = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+			channel.readFully(buffer, size - tail);
+
+			int end = -1;
+			for (int i = tail - END_RECORD_SIZE; i >= 0; i--) {
+				if (buffer.getInt(i) == END_RECORD) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0)
+				throw new IOException("Not a ZIP archive: " + archive);
+
+			long count = buffer.getShort(end + 10) & 0xffff;
+			long directorySize = buffer.getInt(end + 12) & 0xffffffffL;
+			long directoryOffset = buffer.getInt(end + 16) & 0xffffffffL;
+
+			if (end >= 20 && buffer.getInt(end - 20) == ZIP64_LOCATOR) {
+				ByteBuffer record = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+				channel.readFully(record, buffer.getLong(end - 12));
+				if (record.getInt(0) != ZIP64_END_RECORD)
+					throw new IOException("Corrupt ZIP64 end record: " + archive);
+				count = record.getLong(32);
+				directorySize = record.getLong(40);
+				directoryOffset = record.getLong(48);
+			}
+
+			this.entryCount = count;
+			this.directorySize = directorySize;
+			this.directoryOffset = directoryOffset;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the central directory, streaming it in small chunks so that memory use does not grow with
+	 * the number of entries.
+	 * @param visitor Receives every entry, in archive order.
+	 * @throws IOException If the central directory could not be read, or the visitor failed.
+	 */
+	public void entries(Visitor visitor) throws IOException {
+		Cursor cursor = new Cursor(directoryOffset, directoryOffset + directorySize);
+
+		for (long i = 0; i < entryCount; i++) {
+			if (cursor.getInt() != CENTRAL_HEADER)
+				throw new IOException("Corrupt central directory at entry " + i);
+
+			cursor.skip(4);
+			int flags = cursor.getShort();
+			int method = cursor.getShort();
+			long dosTime = cursor.getInt() & 0xffffffffL;
+			long crc = cursor.getInt() & 0xffffffffL;
+			long compressedSize = cursor.getInt() & 0xffffffffL;
+			long size = cursor.getInt() & 0xffffffffL;
+			int nameLength = cursor.getShort();
+			int extraLength = cursor.getShort();
+			int commentLength = cursor.getShort();
+			cursor.skip(8);
+			long offset = cursor.getInt() & 0xffffffffL;
+
+			byte[] nameBytes = cursor.getBytes(nameLength);
+			byte[] extra = cursor.getBytes(extraLength);
+			cursor.skip(commentLength);
+
+			ByteBuffer fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+			while (fields.remaining() >= 4) {
+				int id = fields.getShort() & 0xffff;
+				int length = fields.getShort() & 0xffff;
+				int next = Math.min(fields.position() + length, fields.limit());
+				if (id == ZIP64_EXTRA) {
+					if (size == 0xffffffffL && fields.position() + 8 <= next)
+						size = fields.getLong();
+					if (compressedSize == 0xffffffffL && fields.position() + 8 <= next)
+						compressedSize = fields.getLong();
+					if (offset == 0xffffffffL && fields.position() + 8 <= next)
+						offset = fields.getLong();
+				}
+				fields.position(next);
+			}
+
+			String name = new String(nameBytes, (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : LEGACY);
+			visitor.visit(new ArchiveEntry(name, method, crc, compressedSize, size, offset, dosTime));
+		}
+	}
+
+	/**
+	 * Extracts an entry to a file and checks its CRC-32. The file is replaced if it exists and deleted
+	 * if the entry turns out to be corrupt.
+	 * @param entry The entry.
+	 * @param file The file the entry is written to.
+	 * @throws IOException If the entry could not be read, is corrupt, or the file could not be written.
+	 */
+	public void extract(ArchiveEntry entry, Path file) throws IOException {
+		if (entry.getMethod() != 0 && entry.getMethod() != 8)
+			throw new IOException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+
+		ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+		channel.readFully(header, entry.getOffset());
+		if (header.getInt(0) != LOCAL_HEADER)
+			throw new IOException("Corrupt local header: " + entry.getName());
+		long position = entry.getOffset() + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+		boolean complete = false;
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			CRC32 crc = new CRC32();
+			long written = entry.getMethod() == 0 ? copy(entry, position, out, crc) : inflate(entry, position, out, crc);
+
+			if (written != entry.getSize())
+				throw new IOException("Size mismatch in " + entry.getName() + ": " + written + " bytes, expected " + entry.getSize());
+			if (crc.getValue() != entry.getCrc())
+				throw new IOException("CRC mismatch in " + entry.getName());
+			complete = true;
+		} finally {
+			if (!complete)
+				Files.deleteIfExists(file);
+		}
+	}
+
+	private long copy(ArchiveEntry entry, long position, FileChannel out, CRC32 crc) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long remaining = entry.getCompressedSize();
+		long written = 0;
+
+		while (remaining > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), remaining));
+			channel.readFully(buffer, position);
+			buffer.flip();
+			crc.update(buffer.array(), 0, buffer.limit());
+			position += buffer.limit();
+			remaining -= buffer.limit();
+			written += buffer.limit();
+			while (buffer.hasRemaining())
+				out.write(buffer);
+		}
+		return written;
+	}
+
+	private long inflate(ArchiveEntry entry, long position, FileChannel out, CRC32 crc) throws IOException {
+		Inflater inflater = new Inflater(true);
+		ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+		long remaining = entry.getCompressedSize();
+		long written = 0;
+
+		try {
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					if (remaining == 0)
+						throw new IOException("Truncated entry: " + entry.getName());
+					input.clear();
+					input.limit((int) Math.min(input.capacity(), remaining));
+					channel.readFully(input, position);
+					position += input.limit();
+					remaining -= input.limit();
+					inflater.setInput(input.array(), 0, input.limit());
+				}
+
+				int count = inflater.inflate(output.array(), 0, output.capacity());
+				if (count == 0 && inflater.needsDictionary())
+					throw new IOException("Corrupt entry: " + entry.getName());
+
+				crc.update(output.array(), 0, count);
+				written += count;
+				output.clear();
+				output.limit(count);
+				while (output.hasRemaining())
+					out.write(output);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt entry: " + entry.getName(), e);
+		} finally {
+			inflater.end();
+		}
+		return written;
+	}
+
+	/**
+	 * Gets the number of entries in the archive.
+	 * @return The number of entries.
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads a region of the archive in small chunks.
+	 */
+	private final class Cursor {
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final long end;
+		private long position;
+
+		Cursor(long start, long end) {
+			this.position = start;
+			this.end = end;
+			buffer.limit(0);
+		}
+
+		int getShort() throws IOException {
+			require(2);
+			return buffer.getShort() & 0xffff;
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return buffer.getInt();
+		}
+
+		byte[] getBytes(int length) throws IOException {
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				require(1);
+				int count = Math.min(buffer.remaining(), length - offset);
+				buffer.get(bytes, offset, count);
+				offset += count;
+			}
+			return bytes;
+		}
+
+		void skip(int length) throws IOException {
+			while (length > 0) {
+				require(1);
+				int count = Math.min(buffer.remaining(), length);
+				buffer.position(buffer.position() + count);
+				length -= count;
+			}
+		}
+
+		private void require(int length) throws IOException {
+			if (buffer.remaining() >= length)
+				return;
+
+			buffer.compact();
+			buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (end - position)));
+			int read = channel.read(buffer, position);
+			if (read > 0)
+				position += read;
+			buffer.flip();
+
+			if (buffer.remaining() < length)
+				throw new IOException("Truncated central directory");
+		}
+	}
+
+	/**
+	 * Receives the entries of an archive.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Handles one entry.
+		 * @param entry The entry.
+		 * @throws IOException If the entry could not be handled.
+		 */
+		public void visit(ArchiveEntry entry) throws IOException;
+	}
+}
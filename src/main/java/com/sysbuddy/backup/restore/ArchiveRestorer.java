@@ -0,0 +1,172 @@
+package com.sysbuddy.backup.restore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.store.ChunkStore;
+import com.sysbuddy.util.Threads;
+
+/**
+ * Restores chosen entries of an archive. Entries are selected by exact path, directory prefix or glob
+ * ({@code *} within a directory, {@code **} across directories) and extracted in parallel, each by
+ * seeking straight to it through the central directory.
+ * @author darius
+ */
+public class ArchiveRestorer implements ChunkStore.Selection {
+
+	/**
+	 * The logger of the archive restorer.
+	 */
+	private final static Logger logger = Logger.getLogger(ArchiveRestorer.class.getName());
+
+	/**
+	 * The patterns selecting the entries, empty to select every entry.
+	 */
+	private final List<String> patterns;
+
+	/**
+	 * The matchers of the glob patterns.
+	 */
+	private final List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+
+	/**
+	 * The number of entries extracted at once.
+	 */
+	private final int threads;
+
+	/**
+	 * Creates an archive restorer.
+	 * @param patterns The paths, directory prefixes or globs selecting the entries, empty to select every entry.
+	 * @param threads The number of entries extracted at once.
+	 */
+	public ArchiveRestorer(List<String> patterns, int threads) {
+		this.patterns = new ArrayList<String>();
+		for (String pattern : patterns) {
+			String trimmed = pattern.replaceAll("^/+|/+$", "");
+			this.patterns.add(trimmed);
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + trimmed));
+		}
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Checks if an entry is selected.
+	 * @param name The name of the entry.
+	 * @return {@code true} if it matches a path, directory prefix or glob, or if there are no patterns.
+	 */
+	@Override
+	public boolean matches(String name) {
+		if (patterns.isEmpty())
+			return true;
+
+		String trimmed = name.replaceAll("/+$", "");
+		for (int i = 0; i < patterns.size(); i++) {
+			String pattern = patterns.get(i);
+			if (trimmed.equals(pattern) || trimmed.startsWith(pattern + "/"))
+				return true;
+			if (matchers.get(i).matches(Paths.get(trimmed)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the selected entries of an archive.
+	 * @param archive The archive, or the first of its volumes.
+	 * @return The selected entries, in archive order.
+	 * @throws IOException If the archive could not be read.
+	 */
+	public List<ArchiveEntry> list(Path archive) throws IOException {
+		try (ArchiveReader reader = new ArchiveReader(archive)) {
+			return select(reader);
+		}
+	}
+
+	/**
+	 * Extracts the selected entries of an archive into a directory.
+	 * @param archive The archive, or the first of its volumes.
+	 * @param target The directory the entries are restored into.
+	 * @return The number of bytes restored.
+	 * @throws IOException If the archive could not be read, an entry is corrupt or a file could not be written.
+	 */
+	public long restore(Path archive, final Path target) throws IOException {
+		long start = System.currentTimeMillis();
+		final Path root = target.toAbsolutePath().normalize();
+		final AtomicLong restored = new AtomicLong();
+
+		try (final ArchiveReader reader = new ArchiveReader(archive)) {
+			List<ArchiveEntry> entries = select(reader);
+			ExecutorService pool = Executors.newFixedThreadPool(threads, Threads.factory("restore"));
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+			try {
+				for (final ArchiveEntry entry : entries) {
+					futures.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							Path file = root.resolve(entry.getName()).normalize();
+							if (!file.startsWith(root) || file.equals(root))
+								throw new IOException("Refusing to restore outside of the target: " + entry.getName());
+
+							if (entry.isDirectory()) {
+								Files.createDirectories(file);
+								return null;
+							}
+
+							Files.createDirectories(file.getParent());
+							reader.extract(entry, file);
+							Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getLastModified()));
+							restored.addAndGet(entry.getSize());
+							return null;
+						}
+					}));
+				}
+
+				for (Future<Void> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while restoring " + archive);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException("Could not restore " + archive, cause);
+			} finally {
+				pool.shutdownNow();
+			}
+
+			logger.info("Restored " + entries.size() + " entries (" + restored.get() + " bytes) from " + archive
+					+ " into " + root + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+
+		return restored.get();
+	}
+
+	private List<ArchiveEntry> select(ArchiveReader reader) throws IOException {
+		final List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+		reader.entries(new ArchiveReader.Visitor() {
+			@Override
+			public void visit(ArchiveEntry entry) {
+				if (matches(entry.getName()))
+					entries.add(entry);
+			}
+		});
+		return entries;
+	}
+}
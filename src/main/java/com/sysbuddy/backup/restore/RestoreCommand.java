@@ -0,0 +1,93 @@
+package com.sysbuddy.backup.restore;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sysbuddy.backup.store.ChunkIndex;
+import com.sysbuddy.backup.store.ChunkStore;
+import com.sysbuddy.config.GlobalConfiguration;
+
+/**
+ * The command line interface of the restore engine.
+ * <pre>
+ * list &lt;archive&gt; [pattern ...]
+ * restore [--threads n] &lt;archive&gt; &lt;target directory&gt; [pattern ...]
+ * </pre>
+ * Patterns are entry paths, directory prefixes or globs; without patterns every entry is selected.
+ * The archive may also be the index ({@code .idx}) of a run in a chunk store, which is restored from the store.
+ * @author darius
+ */
+public class RestoreCommand {
+
+	private RestoreCommand() {
+	}
+
+	/**
+	 * Checks if the arguments name a restore command.
+	 * @param args The execution arguments.
+	 * @return {@code true} for {@code list} and {@code restore}.
+	 */
+	public static boolean handles(String[] args) {
+		return args.length > 0 && (args[0].equalsIgnoreCase("list") || args[0].equalsIgnoreCase("restore"));
+	}
+
+	/**
+	 * Runs a restore command.
+	 * @param args The execution arguments, starting with the command.
+	 * @param out The stream the output is printed to.
+	 * @return The exit status, {@code 0} if successful.
+	 */
+	public static int run(String[] args, final PrintStream out) {
+		List<String> operands = new ArrayList<String>();
+		int threads = GlobalConfiguration.RESTORE_THREADS;
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				operands.add(args[i]);
+			}
+		}
+
+		boolean list = args[0].equalsIgnoreCase("list");
+		int required = list ? 1 : 2;
+
+		if (operands.size() < required) {
+			out.println("Usage: list <archive> [pattern ...]");
+			out.println("       restore [--threads n] <archive> <target directory> [pattern ...]");
+			return 2;
+		}
+
+		Path archive = Paths.get(operands.get(0));
+		final ArchiveRestorer restorer = new ArchiveRestorer(operands.subList(required, operands.size()), threads);
+
+		try {
+			if (ChunkStore.isIndex(archive)) {
+				if (list) {
+					ChunkIndex.read(archive, new ChunkIndex.Visitor() {
+						@Override
+						public void visit(String name, long size, long lastModified, byte[][] chunks) {
+							if (restorer.matches(name))
+								out.println(size + "\t" + name);
+						}
+					});
+				} else {
+					ChunkStore.open(archive).restore(archive, Paths.get(operands.get(1)), restorer);
+				}
+			} else if (list) {
+				for (ArchiveEntry entry : restorer.list(archive))
+					out.println(entry.getSize() + "\t" + entry.getName());
+			} else {
+				restorer.restore(archive, Paths.get(operands.get(1)));
+			}
+			return 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.sysbuddy.backup.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * The index of one backup run in a {@link ChunkStore}: every file with its size, modification time
+ * and the hashes of the chunks that make up its contents. Indexes are written and read as streams,
+ * so memory use does not grow with the number of files.
+ * @author darius
+ */
+public class ChunkIndex {
+
+	/**
+	 * The magic number at the start of an index file ("SBCI").
+	 */
+	private final static int MAGIC = 0x53424349;
+
+	/**
+	 * The version of the on-disk format.
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * The size of the read and write buffers.
+	 */
+	private final static int BUFFER_SIZE = 1 << 16;
+
+	private ChunkIndex() {
+	}
+
+	/**
+	 * Reads an index.
+	 * @param path The index file.
+	 * @param visitor Receives every file of the index in order.
+	 * @throws IOException If the index could not be read.
+	 */
+	public static void read(Path path, Visitor visitor) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a chunk index: " + path);
+			int version = in.readUnsignedByte();
+			if (version != VERSION)
+				throw new IOException("Unsupported chunk index version " + version + ": " + path);
+
+			while (in.readBoolean()) {
+				String name = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				byte[][] chunks = new byte[in.readInt()][];
+				for (int i = 0; i < chunks.length; i++) {
+					chunks[i] = new byte[ChunkStore.HASH_LENGTH];
+					in.readFully(chunks[i]);
+				}
+				visitor.visit(name, size, lastModified, chunks);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated chunk index: " + path, e);
+		}
+	}
+
+	/**
+	 * Receives the files of an index.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Handles one file.
+		 * @param name The path of the file relative to the backup.
+		 * @param size The size of the file.
+		 * @param lastModified The modification time of the file (milliseconds).
+		 * @param chunks The hashes of the file's chunks, in order.
+		 * @throws IOException If the file could not be handled.
+		 */
+		public void visit(String name, long size, long lastModified, byte[][] chunks) throws IOException;
+	}
+
+	/**
+	 * Writes an index to a temporary file that replaces the target once the writer is committed.
+	 */
+	public static class Writer implements Closeable {
+
+		/**
+		 * The index file.
+		 */
+		private final Path path;
+
+		/**
+		 * The temporary file written until the index is committed.
+		 */
+		private final Path temporary;
+
+		/**
+		 * The output stream.
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * If the index was committed.
+		 */
+		private boolean committed;
+
+		/**
+		 * Creates an index writer.
+		 * @param path The index file.
+		 * @throws IOException If the file could not be created.
+		 */
+		public Writer(Path path) throws IOException {
+			this.path = path;
+			this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+		}
+
+		/**
+		 * Adds a file to the index.
+		 * @param name The path of the file relative to the backup.
+		 * @param size The size of the file.
+		 * @param lastModified The modification time of the file (milliseconds).
+		 * @param chunks The hashes of the file's chunks, in order.
+		 * @throws IOException If the index could not be written.
+		 */
+		public void add(String name, long size, long lastModified, List<byte[]> chunks) throws IOException {
+			out.writeBoolean(true);
+			out.writeUTF(name);
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			out.writeInt(chunks.size());
+			for (byte[] chunk : chunks)
+				out.write(chunk);
+		}
+
+		/**
+		 * Completes the index and moves it into place.
+		 * @throws IOException If the index could not be written.
+		 */
+		public void commit() throws IOException {
+			out.writeBoolean(false);
+			out.close();
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (committed)
+				return;
+			out.close();
+			Files.deleteIfExists(temporary);
+		}
+	}
+}
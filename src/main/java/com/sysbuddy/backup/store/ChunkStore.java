@@ -0,0 +1,614 @@
+package com.sysbuddy.backup.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A content-addressed store of file chunks. Every unique chunk is kept once under its SHA-256 hash,
+ * and each backup run is described by a small {@link ChunkIndex} referencing the chunks.
+ * Layout: {@code chunks/ab/cd/abcd...} for chunks, {@code indexes/<run>.idx} for indexes and
+ * {@code leases/} for the runs in progress, whose chunks garbage collection must keep. Garbage collection
+ * first renames a chunk to {@code <hash>.trash} and only deletes it if nothing touched it meanwhile, so a run
+ * storing the same chunk concurrently revives it instead of referencing a deleted chunk.
+ * @author darius
+ */
+public class ChunkStore {
+
+	/**
+	 * The logger of the chunk store.
+	 */
+	private final static Logger logger = Logger.getLogger(ChunkStore.class.getName());
+
+	/**
+	 * The length of a chunk hash in bytes.
+	 */
+	public final static int HASH_LENGTH = 32;
+
+	/**
+	 * The file extension of indexes.
+	 */
+	public final static String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * Chunk header: the chunk is stored as is.
+	 */
+	private final static byte STORED = 0;
+
+	/**
+	 * Chunk header: the chunk is deflated.
+	 */
+	private final static byte DEFLATED = 1;
+
+	/**
+	 * The file extension of leases.
+	 */
+	private final static String LEASE_EXTENSION = ".lease";
+
+	/**
+	 * The file extension of chunks about to be deleted by garbage collection.
+	 */
+	private final static String TRASH_EXTENSION = ".trash";
+
+	/**
+	 * The coarsest modification time resolution of the file systems a store may live on (milliseconds).
+	 */
+	private final static long TIME_RESOLUTION = 2000;
+
+	/**
+	 * The directory holding the chunks.
+	 */
+	private final Path chunks;
+
+	/**
+	 * The directory holding the indexes.
+	 */
+	private final Path indexes;
+
+	/**
+	 * The directory holding the leases of runs in progress.
+	 */
+	private final Path leases;
+
+	/**
+	 * The number of bytes written as new chunks.
+	 */
+	private final AtomicLong storedBytes = new AtomicLong();
+
+	/**
+	 * The number of bytes that were already in the store.
+	 */
+	private final AtomicLong duplicateBytes = new AtomicLong();
+
+	/**
+	 * Creates a chunk store.
+	 * @param root The root directory of the store.
+	 * @throws IOException If the store directories could not be created.
+	 */
+	public ChunkStore(Path root) throws IOException {
+		this.chunks = Files.createDirectories(root.resolve("chunks"));
+		this.indexes = Files.createDirectories(root.resolve("indexes"));
+		this.leases = Files.createDirectories(root.resolve("leases"));
+	}
+
+	/**
+	 * Opens the store an index belongs to.
+	 * @param index The index of a run, in the {@code indexes} directory of its store.
+	 * @return The store.
+	 * @throws IOException If the index is not part of a store.
+	 */
+	public static ChunkStore open(Path index) throws IOException {
+		Path directory = index.toAbsolutePath().normalize().getParent();
+		if (directory == null || directory.getParent() == null || !directory.getFileName().toString().equals("indexes")
+				|| !Files.isDirectory(directory.resolveSibling("chunks")))
+			throw new IOException("Not the index of a chunk store: " + index);
+		return new ChunkStore(directory.getParent());
+	}
+
+	/**
+	 * Checks if a file is named like the index of a run.
+	 * @param path The file.
+	 * @return {@code true} if it has the extension of indexes.
+	 */
+	public static boolean isIndex(Path path) {
+		return path.getFileName() != null && path.getFileName().toString().endsWith(INDEX_EXTENSION);
+	}
+
+	/**
+	 * Takes a lease for a run. Until the lease is closed, garbage collection keeps every chunk touched
+	 * since it was taken, so the chunks the run deduplicated against survive until its index is committed.
+	 * A lease left behind by a process that no longer runs is removed by the next collection.
+	 * @param run The name of the run.
+	 * @return The lease.
+	 * @throws IOException If the lease could not be written.
+	 */
+	public Lease lease(String run) throws IOException {
+		String content = ProcessHandle.current().pid() + " " + System.currentTimeMillis();
+		Path temporary = Files.createTempFile(leases, run + "-", ".tmp");
+		try {
+			Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+			String name = temporary.getFileName().toString();
+			Path path = leases.resolve(name.substring(0, name.length() - 4) + LEASE_EXTENSION);
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+			return new Lease(path);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Stores a chunk unless the store already holds it.
+	 * @param data The buffer holding the chunk.
+	 * @param offset The start of the chunk.
+	 * @param length The length of the chunk.
+	 * @return The hash of the chunk.
+	 * @throws IOException If the chunk could not be written.
+	 */
+	public byte[] put(byte[] data, int offset, int length) throws IOException {
+		MessageDigest digest = digest();
+		digest.update(data, offset, length);
+		byte[] hash = digest.digest();
+		Path path = path(hash);
+
+		if (revive(path)) {
+			duplicateBytes.addAndGet(length);
+			return hash;
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] output = new byte[length + 1];
+		int count;
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			count = deflater.deflate(output, 1, length);
+			if (!deflater.finished())
+				count = -1;
+		} finally {
+			deflater.end();
+		}
+
+		if (count < 0) {
+			output[0] = STORED;
+			System.arraycopy(data, offset, output, 1, length);
+			count = length;
+		} else {
+			output[0] = DEFLATED;
+		}
+
+		Files.createDirectories(path.getParent());
+		Path temporary = Files.createTempFile(path.getParent(), null, ".tmp");
+		try {
+			Files.write(temporary, Arrays.copyOf(output, count + 1));
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		storedBytes.addAndGet(length);
+		return hash;
+	}
+
+	/**
+	 * Touches a stored chunk, so garbage collection keeps it. A chunk garbage collection has moved
+	 * to the trash but not deleted yet is moved back first.
+	 * @param path The path of the chunk.
+	 * @return {@code true} if the store holds the chunk, {@code false} if it must be written.
+	 * @throws IOException If the chunk could not be touched.
+	 */
+	private boolean revive(Path path) throws IOException {
+		if (touch(path))
+			return true;
+
+		try {
+			Files.move(trash(path), path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		return touch(path);
+	}
+
+	/**
+	 * Sets the modification time of a chunk to now. The time is read back, as it may have been set on a
+	 * chunk garbage collection moved to the trash while it was being set.
+	 * @param path The path of the chunk.
+	 * @return {@code true} if the chunk at the path is recent.
+	 * @throws IOException If the time could not be set.
+	 */
+	private static boolean touch(Path path) throws IOException {
+		long now = System.currentTimeMillis();
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+			return Files.getLastModifiedTime(path).toMillis() >= now - TIME_RESOLUTION;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a chunk and checks it against its hash.
+	 * @param hash The hash of the chunk.
+	 * @return The contents of the chunk.
+	 * @throws IOException If the chunk is missing or corrupt.
+	 */
+	public byte[] get(byte[] hash) throws IOException {
+		byte[] stored = Files.readAllBytes(path(hash));
+		byte[] data;
+
+		if (stored[0] == STORED) {
+			data = Arrays.copyOfRange(stored, 1, stored.length);
+		} else {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(stored, 1, stored.length - 1);
+				byte[] output = new byte[stored.length * 4];
+				int count = 0;
+				while (!inflater.finished()) {
+					if (count == output.length)
+						output = Arrays.copyOf(output, output.length * 2);
+					int n = inflater.inflate(output, count, output.length - count);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new IOException("Truncated chunk " + toHex(hash));
+					count += n;
+				}
+				data = Arrays.copyOf(output, count);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt chunk " + toHex(hash), e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+		if (!Arrays.equals(digest().digest(data), hash))
+			throw new IOException("Chunk " + toHex(hash) + " does not match its hash");
+
+		return data;
+	}
+
+	/**
+	 * Gets the path of the index of a run.
+	 * @param run The name of the run.
+	 * @return The index path.
+	 */
+	public Path getIndex(String run) {
+		return indexes.resolve(run + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Lists the indexes of all runs, oldest first.
+	 * @return The index paths.
+	 * @throws IOException If the index directory could not be read.
+	 */
+	public List<Path> listIndexes() throws IOException {
+		List<Path> list = new ArrayList<Path>();
+		final Map<Path, Long> times = new HashMap<Path, Long>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexes, "*" + INDEX_EXTENSION)) {
+			for (Path path : stream) {
+				list.add(path);
+				times.put(path, Files.getLastModifiedTime(path).toMillis());
+			}
+		}
+
+		Collections.sort(list, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(times.get(a), times.get(b));
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Deletes the oldest runs beyond the given number.
+	 * @param retain The number of most recent runs to keep.
+	 * @return The number of runs deleted.
+	 * @throws IOException If an index could not be deleted.
+	 */
+	public int prune(int retain) throws IOException {
+		List<Path> list = listIndexes();
+		int deleted = 0;
+		for (int i = 0; i < list.size() - retain; i++) {
+			Files.delete(list.get(i));
+			deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Restores every file of a run into a directory.
+	 * @param index The index of the run.
+	 * @param target The directory the files are restored into.
+	 * @throws IOException If a file could not be restored.
+	 */
+	public void restore(Path index, Path target) throws IOException {
+		restore(index, target, null);
+	}
+
+	/**
+	 * Restores chosen files of a run into a directory.
+	 * @param index The index of the run.
+	 * @param target The directory the files are restored into.
+	 * @param selection Chooses the files restored, {@code null} to restore every file.
+	 * @return The number of bytes restored.
+	 * @throws IOException If a file could not be restored.
+	 */
+	public long restore(Path index, Path target, final Selection selection) throws IOException {
+		final Path root = target.toAbsolutePath().normalize();
+		final long[] restored = new long[1];
+		ChunkIndex.read(index, new ChunkIndex.Visitor() {
+			@Override
+			public void visit(String name, long size, long lastModified, byte[][] hashes) throws IOException {
+				if (selection != null && !selection.matches(name))
+					return;
+
+				Path file = root.resolve(name).normalize();
+				if (!file.startsWith(root) || file.equals(root))
+					throw new IOException("Refusing to restore outside of the target: " + name);
+
+				Files.createDirectories(file.getParent());
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					for (byte[] hash : hashes) {
+						ByteBuffer buffer = ByteBuffer.wrap(get(hash));
+						while (buffer.hasRemaining())
+							channel.write(buffer);
+					}
+				}
+				Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+				restored[0] += size;
+			}
+		});
+		return restored[0];
+	}
+
+	/**
+	 * Deletes the chunks no index references any more. Chunks touched since the oldest run in progress
+	 * started, or since the collection started, are kept, as a run may be about to reference them.
+	 * A chunk is moved to the trash before it is deleted, and kept if it was touched before the move,
+	 * as a concurrent run may have just deduplicated against it.
+	 * @return The number of chunks deleted.
+	 * @throws IOException If the store could not be read.
+	 */
+	public int collectGarbage() throws IOException {
+		long since = activeSince(System.currentTimeMillis()) - TIME_RESOLUTION;
+		final Set<ByteBuffer> referenced = new HashSet<ByteBuffer>();
+
+		for (Path index : listIndexes()) {
+			ChunkIndex.read(index, new ChunkIndex.Visitor() {
+				@Override
+				public void visit(String name, long size, long lastModified, byte[][] hashes) {
+					for (byte[] hash : hashes)
+						referenced.add(ByteBuffer.wrap(hash));
+				}
+			});
+		}
+
+		int deleted = 0;
+		try (DirectoryStream<Path> first = Files.newDirectoryStream(chunks)) {
+			for (Path level1 : first) {
+				try (DirectoryStream<Path> second = Files.newDirectoryStream(level1)) {
+					for (Path level2 : second) {
+						List<Path> files = new ArrayList<Path>();
+						try (DirectoryStream<Path> stream = Files.newDirectoryStream(level2)) {
+							for (Path file : stream)
+								files.add(file);
+						}
+
+						for (Path file : files) {
+							String name = file.getFileName().toString();
+							boolean trashed = name.length() == HASH_LENGTH * 2 + TRASH_EXTENSION.length() && name.endsWith(TRASH_EXTENSION);
+							if (name.length() != HASH_LENGTH * 2 && !trashed)
+								continue;
+							if (referenced.contains(ByteBuffer.wrap(fromHex(name.substring(0, HASH_LENGTH * 2))))) {
+								if (trashed)
+									restoreTrash(file);
+								continue;
+							}
+							if (collect(trashed ? file : moveToTrash(file), since))
+								deleted++;
+						}
+					}
+				}
+			}
+		}
+
+		logger.info("Collected " + deleted + " unreferenced chunk(s) from " + chunks.getParent());
+		return deleted;
+	}
+
+	/**
+	 * Deletes a chunk in the trash, unless it was touched since the given time, in which case it is moved back.
+	 * @param trash The chunk in the trash, {@code null} if there is none.
+	 * @param since The time (milliseconds) since which touched chunks are kept.
+	 * @return {@code true} if the chunk was deleted.
+	 * @throws IOException If the chunk could not be deleted or moved back.
+	 */
+	private boolean collect(Path trash, long since) throws IOException {
+		if (trash == null)
+			return false;
+
+		try {
+			if (Files.getLastModifiedTime(trash).toMillis() >= since) {
+				restoreTrash(trash);
+				return false;
+			}
+		} catch (NoSuchFileException e) {
+			return false; // Revived by a run
+		}
+		return Files.deleteIfExists(trash);
+	}
+
+	/**
+	 * Moves a chunk to the trash. The chunk keeps its modification time, so a run touching it just before
+	 * the move is still seen.
+	 * @param file The chunk.
+	 * @return The chunk in the trash, {@code null} if the chunk is gone.
+	 * @throws IOException If the chunk could not be moved.
+	 */
+	private Path moveToTrash(Path file) throws IOException {
+		Path trash = trash(file);
+		try {
+			Files.move(file, trash, StandardCopyOption.ATOMIC_MOVE);
+			return trash;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Moves a chunk back from the trash. A copy of the chunk written again in the meantime is kept.
+	 * @param trash The chunk in the trash.
+	 * @throws IOException If the chunk could not be moved.
+	 */
+	private void restoreTrash(Path trash) throws IOException {
+		String name = trash.getFileName().toString();
+		Path file = trash.resolveSibling(name.substring(0, name.length() - TRASH_EXTENSION.length()));
+		try {
+			Files.move(trash, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// Revived by a run
+		}
+	}
+
+	/**
+	 * Finds when the oldest run in progress started. Leases of processes that no longer run are removed.
+	 * @param now The current time (milliseconds).
+	 * @return The time (milliseconds) the oldest run started, {@code now} if none is in progress.
+	 * @throws IOException If the leases could not be read.
+	 */
+	private long activeSince(long now) throws IOException {
+		long since = now;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(leases, "*" + LEASE_EXTENSION)) {
+			for (Path lease : stream) {
+				String[] fields;
+				try {
+					fields = new String(Files.readAllBytes(lease), StandardCharsets.UTF_8).trim().split(" ");
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+
+				Optional<ProcessHandle> process = Optional.empty();
+				long start = 0;
+				try {
+					process = ProcessHandle.of(Long.parseLong(fields[0]));
+					start = Long.parseLong(fields[1]);
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					logger.warning("Ignoring the malformed lease " + lease);
+				}
+
+				if (!process.isPresent() || !process.get().isAlive()) {
+					logger.info("Removing the lease " + lease + " of a run that no longer runs");
+					Files.deleteIfExists(lease);
+					continue;
+				}
+				since = Math.min(since, start);
+			}
+		}
+		return since;
+	}
+
+	/**
+	 * Gets the number of bytes written as new chunks.
+	 * @return The number of bytes.
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * Gets the number of bytes that were already in the store.
+	 * @return The number of bytes.
+	 */
+	public long getDuplicateBytes() {
+		return duplicateBytes.get();
+	}
+
+	/**
+	 * Chooses the files of a run that are restored.
+	 */
+	public interface Selection {
+
+		/**
+		 * Checks if a file is restored.
+		 * @param name The path of the file relative to the backup.
+		 * @return {@code true} if it is restored.
+		 */
+		public boolean matches(String name);
+	}
+
+	/**
+	 * A run in progress, which keeps the chunks it may reference from being collected until closed.
+	 */
+	public final static class Lease implements Closeable {
+
+		/**
+		 * The lease file.
+		 */
+		private final Path path;
+
+		private Lease(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public void close() throws IOException {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private Path path(byte[] hash) {
+		String hex = toHex(hash);
+		return chunks.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(hex);
+	}
+
+	private static Path trash(Path path) {
+		return path.resolveSibling(path.getFileName() + TRASH_EXTENSION);
+	}
+
+	private static MessageDigest digest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return builder.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return bytes;
+	}
+}
@@ -0,0 +1,160 @@
+package com.sysbuddy.backup.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks using a gear rolling hash with normalized chunking (FastCDC).
+ * Cut points depend only on the bytes around them, so an insertion or deletion only changes the
+ * chunks it touches and every other chunk deduplicates against the previous run.
+ * @author darius
+ */
+public class ContentChunker {
+
+	/**
+	 * The random values mixed into the rolling hash, one per byte value.
+	 * Generated from a fixed seed so that cut points never change between versions.
+	 */
+	private final static long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5ba7c0deL);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * The minimum chunk size, no cut point is searched before it.
+	 */
+	private final int minSize;
+
+	/**
+	 * The target average chunk size.
+	 */
+	private final int averageSize;
+
+	/**
+	 * The maximum chunk size.
+	 */
+	private final int maxSize;
+
+	/**
+	 * The stricter mask used before the average size is reached.
+	 */
+	private final long smallMask;
+
+	/**
+	 * The looser mask used after the average size is reached.
+	 */
+	private final long largeMask;
+
+	/**
+	 * Creates a content chunker.
+	 * @param minSize The minimum chunk size.
+	 * @param averageSize The target average chunk size, rounded down to a power of two.
+	 * @param maxSize The maximum chunk size.
+	 */
+	public ContentChunker(int minSize, int averageSize, int maxSize) {
+		this.minSize = minSize;
+		this.averageSize = averageSize;
+		this.maxSize = maxSize;
+
+		int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+		this.smallMask = -1L << (64 - (bits + 1));
+		this.largeMask = -1L << (64 - (bits - 1));
+	}
+
+	/**
+	 * Gets the maximum chunk size.
+	 * @return The size.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Finds the end of the chunk starting at {@code offset}.
+	 * @param buffer The data.
+	 * @param offset The start of the chunk.
+	 * @param length The number of bytes available, at least the maximum chunk size unless the stream ended.
+	 * @return The length of the chunk.
+	 */
+	public int cut(byte[] buffer, int offset, int length) {
+		if (length <= minSize)
+			return length;
+
+		int end = Math.min(length, maxSize);
+		int normal = Math.min(end, averageSize);
+		long hash = 0;
+		int i = minSize;
+
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+			if ((hash & smallMask) == 0)
+				return i + 1;
+		}
+
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+			if ((hash & largeMask) == 0)
+				return i + 1;
+		}
+
+		return end;
+	}
+
+	/**
+	 * Splits a stream into chunks.
+	 * @param in The stream.
+	 * @param consumer Receives every chunk in order.
+	 * @throws IOException If the stream could not be read or a chunk not consumed.
+	 */
+	public void split(InputStream in, ChunkConsumer consumer) throws IOException {
+		byte[] buffer = new byte[maxSize * 2];
+		int start = 0;
+		int end = 0;
+		boolean eof = false;
+
+		while (true) {
+			if (!eof && end - start < maxSize) {
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+
+				while (end < buffer.length) {
+					int read = in.read(buffer, end, buffer.length - end);
+					if (read < 0) {
+						eof = true;
+						break;
+					}
+					end += read;
+				}
+			}
+
+			if (start == end)
+				return;
+
+			int length = cut(buffer, start, end - start);
+			consumer.accept(buffer, start, length);
+			start += length;
+		}
+	}
+
+	/**
+	 * Receives chunks produced by {@link ContentChunker#split}.
+	 */
+	public interface ChunkConsumer {
+
+		/**
+		 * Handles one chunk. The buffer is reused once this method returns.
+		 * @param buffer The buffer holding the chunk.
+		 * @param offset The start of the chunk.
+		 * @param length The length of the chunk.
+		 * @throws IOException If the chunk could not be stored.
+		 */
+		public void accept(byte[] buffer, int offset, int length) throws IOException;
+	}
+}
@@ -1,9 +1,22 @@
 package com.sysbuddy.backup.task;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import com.sysbuddy.backup.BackupNameFormatter;
+import com.sysbuddy.backup.CronExpression;
 import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.util.CancellationToken;
 
 /**
  * Abstract class for backup schedule tasks.
@@ -33,9 +46,49 @@ public abstract class BackupTask {
 	protected long last;
 	
 	/**
-	 * If the backup task is still working or not.
+	 * The calendar the task runs on instead of its delay, {@code null} to run every delay.
 	 */
-	private boolean working;
+	private CronExpression cron;
+	
+	/**
+	 * The position (milliseconds) of the runs within each delay, {@code -1} if runs follow the previous run by the delay.
+	 */
+	private long offset = -1;
+	
+	/**
+	 * The longest random wait (milliseconds) added to each run.
+	 */
+	private long jitter;
+	
+	/**
+	 * The next time (milliseconds) the task is due when it runs on a calendar, staggered or with jitter, computed once per run.
+	 */
+	private long nextRun;
+	
+	/**
+	 * The time (milliseconds) a failed run is retried, {@code -1} if the latest run succeeded.
+	 */
+	private long retry = -1;
+	
+	/**
+	 * The number of runs that failed in a row.
+	 */
+	private int failures;
+	
+	/**
+	 * Where the task is in its lifecycle, changed only by compare-and-set.
+	 */
+	private final AtomicReference<State> state = new AtomicReference<State>(State.IDLE);
+	
+	/**
+	 * The token of the current run, {@code null} while the task does not run.
+	 */
+	private volatile CancellationToken token;
+	
+	/**
+	 * The longest time (milliseconds) a run may take before it is cancelled, {@code 0} for no limit.
+	 */
+	private long timeout;
 	
 	/**
 	 * Creates a backup task
@@ -57,11 +110,71 @@ public abstract class BackupTask {
 	
 	/**
 	 * Checks if the schedule task is ready to execute.
-	 * @return {@code true} if task endured delay's duration, {@code false} if still sleeping or working.
+	 * @return {@code true} if task endured delay's duration, {@code false} if still sleeping, queued or working.
 	 */
 	public boolean ready() {
-		if (working) return false;
-		return (System.currentTimeMillis() - last) >= delay;
+		if (state.get() != State.IDLE) return false;
+		return System.currentTimeMillis() >= getNextRun();
+	}
+	
+	/**
+	 * Removes the partial output a previous process left behind when it was killed during a run.
+	 * Called once at startup, before any task runs.
+	 */
+	public void recover() {
+	}
+	
+	/**
+	 * Gets the resources a run of the task uses, such as the volumes it reads or the server it uploads to.
+	 * The schedule limits how many tasks sharing a resource run at once.
+	 * @return The names of the resources.
+	 */
+	public Set<String> getResources() {
+		return Collections.emptySet();
+	}
+	
+	/**
+	 * Checks if a run of the task mostly blocks on SSH channels, which is run on platform threads where
+	 * virtual threads would pin their carrier.
+	 * @return {@code true} if the task uploads over SSH.
+	 */
+	public boolean usesSsh() {
+		return false;
+	}
+	
+	/**
+	 * Names the volumes a set of paths lives on, so that tasks reading the same disk share a resource.
+	 * @param paths The paths.
+	 * @return The resource names of the volumes.
+	 */
+	protected static Set<String> volumes(Collection<Path> paths) {
+		Set<String> volumes = new LinkedHashSet<String>();
+		for (Path path : paths) {
+			Path absolute = path.toAbsolutePath();
+			Path existing = absolute;
+			while (existing != null && !Files.exists(existing))
+				existing = existing.getParent();
+			
+			try {
+				FileStore store = Files.getFileStore(existing != null ? existing : absolute);
+				volumes.add("volume:" + store);
+			} catch (IOException e) {
+				volumes.add("volume:" + absolute.getRoot());
+			}
+		}
+		return volumes;
+	}
+	
+	/**
+	 * Gets the time the task is due next.
+	 * @return The time (milliseconds), in the past if the task is due now.
+	 */
+	public long getNextRun() {
+		if (retry >= 0)
+			return retry;
+		if (!planned())
+			return last + delay;
+		return nextRun;
 	}
 	
 	/**
@@ -70,14 +183,200 @@ public abstract class BackupTask {
 	 */
 	public void setLast(long last) {
 		this.last = last;
+		retry = -1;
+		failures = 0;
+		if (planned())
+			nextRun = plan(Math.max(last, nextRun));
+	}
+	
+	/**
+	 * Records a failed or cancelled run. The schedule stays where the last successful run left it, and
+	 * the run is retried after {@link GlobalConfiguration#TASK_RETRY_DELAY}, doubled with every further
+	 * failure up to {@link GlobalConfiguration#TASK_RETRY_MAX_DELAY} or the delay of the task.
+	 * @param finish The time (milliseconds) the run finished.
+	 */
+	public void failed(long finish) {
+		long wait = GlobalConfiguration.TASK_RETRY_DELAY << Math.min(failures, 20);
+		wait = Math.min(wait, GlobalConfiguration.TASK_RETRY_MAX_DELAY);
+		if (delay > 0)
+			wait = Math.min(wait, delay);
+		failures++;
+		retry = finish + wait;
+	}
+	
+	/**
+	 * Resumes the schedule of the task from its runs before a restart. A run that fell due while the
+	 * program was not running is due at once, and so is a task whose latest run failed or was cancelled.
+	 * @param last The time (milliseconds) the latest successful run finished, {@code -1} if it never succeeded.
+	 * @param failed If the latest run failed or was cancelled.
+	 */
+	public void restore(long last, boolean failed) {
+		if (last >= 0) {
+			this.last = last;
+			if (planned())
+				nextRun = plan(last);
+		}
+		retry = failed ? System.currentTimeMillis() : -1;
+	}
+	
+	/**
+	 * Runs the task on a calendar instead of every delay. The first run is the first time the calendar
+	 * fires from now; later runs are the first time it fires after the previous run finished, so fires
+	 * missed while a run was working are skipped rather than made up.
+	 * @param cron The calendar, {@code null} to run every delay.
+	 */
+	public void setCron(CronExpression cron) {
+		this.cron = cron;
+		nextRun = plan(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Spreads the runs of tasks sharing a delay. A staggered task runs at fixed times, one delay apart and
+	 * offset into the delay by a hash of its name, so the times stay the same across restarts and tasks with
+	 * the same delay start at different times. The first run is the first of these times from now, rather
+	 * than all tasks starting at once. Jitter is added on top, up to half the delay.
+	 * @param stagger If runs are placed by the hash of the name, rather than one delay after the previous run.
+	 * @param jitter The longest random wait (milliseconds) added to each run, {@code 0} for none.
+	 */
+	public void setStagger(boolean stagger, long jitter) {
+		this.jitter = delay > 0 && cron == null ? Math.min(jitter, delay / 2) : jitter;
+		if (stagger && delay > 0) {
+			CRC32 crc = new CRC32();
+			crc.update(name.getBytes(StandardCharsets.UTF_8));
+			offset = (long) (crc.getValue() / 4294967296.0 * delay);
+		} else {
+			offset = -1;
+		}
+		nextRun = plan(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Computes the time of the run after a time, when the task runs on a calendar, staggered or with jitter.
+	 * @param after The time (milliseconds).
+	 * @return The time (milliseconds) of the run.
+	 */
+	private long plan(long after) {
+		long next;
+		if (cron != null) {
+			next = cron.next(after);
+			if (next < 0)
+				return Long.MAX_VALUE;
+		} else if (offset >= 0) {
+			next = after - Math.floorMod(after - offset, delay) + delay;
+		} else {
+			next = last + delay;
+		}
+		return jitter > 0 ? next + ThreadLocalRandom.current().nextLong(jitter + 1) : next;
+	}
+	
+	private boolean planned() {
+		return cron != null || offset >= 0 || jitter > 0;
+	}
+	
+	/**
+	 * Gets the calendar the task runs on.
+	 * @return The calendar, {@code null} if the task runs every delay.
+	 */
+	public CronExpression getCron() {
+		return cron;
+	}
+	
+	/**
+	 * Marks an idle task as queued for a run. A task that is already queued or running is not queued again.
+	 * @return {@code true} if the task was idle and is now queued.
+	 */
+	public boolean queue() {
+		return state.compareAndSet(State.IDLE, State.QUEUED);
+	}
+	
+	/**
+	 * Returns a queued task to idle when its run will never start, such as when the executor was stopped.
+	 * A run cancelled while queued is dropped as well. Must only be called for a run that did not begin.
+	 */
+	public void dequeue() {
+		if (!state.compareAndSet(State.QUEUED, State.IDLE))
+			state.compareAndSet(State.CANCELLING, State.IDLE);
 	}
 	
 	/**
-	 * Sets whether or not the task is owrking.
-	 * @param working If the task is working.
+	 * Starts the queued run of the task.
+	 * @return The token of the run, {@code null} if the run was cancelled while queued.
 	 */
-	public void setWorking(boolean working) {
-		this.working = working;
+	CancellationToken begin() {
+		CancellationToken run = new CancellationToken();
+		token = run;
+		if (state.compareAndSet(State.QUEUED, State.RUNNING))
+			return run;
+		token = null;
+		return null;
+	}
+	
+	/**
+	 * Returns the task to idle once a run ended, however it ended.
+	 */
+	void finish() {
+		state.set(State.IDLE);
+		token = null;
+	}
+	
+	/**
+	 * Cancels the queued or running run of the task. A queued run is skipped; a running run is asked to
+	 * stop through its {@link CancellationToken}, which ends its loops and breaks its SSH sessions.
+	 * @param reason Why the run is cancelled.
+	 * @return {@code true} if a run was cancelled, {@code false} if the task was idle or already cancelling.
+	 */
+	public boolean cancel(String reason) {
+		return cancel(null, reason);
+	}
+	
+	/**
+	 * Cancels a run of the task.
+	 * @param run The token of the run to cancel, {@code null} for whichever run is queued or running.
+	 * @param reason Why the run is cancelled.
+	 * @return {@code true} if the run was cancelled.
+	 */
+	boolean cancel(CancellationToken run, String reason) {
+		for (;;) {
+			State current = state.get();
+			if (current == State.QUEUED && run == null) {
+				if (state.compareAndSet(State.QUEUED, State.CANCELLING))
+					return true;
+			} else if (current == State.RUNNING) {
+				CancellationToken running = token;
+				if (running == null || (run != null && run != running))
+					return false;
+				if (state.compareAndSet(State.RUNNING, State.CANCELLING)) {
+					running.cancel(reason);
+					return true;
+				}
+			} else {
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Gets where the task is in its lifecycle.
+	 * @return The state.
+	 */
+	public State getState() {
+		return state.get();
+	}
+	
+	/**
+	 * Sets the longest time a run may take before it is cancelled.
+	 * @param timeout The time (milliseconds), {@code 0} for no limit.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Gets the longest time a run may take before it is cancelled.
+	 * @return The time (milliseconds), {@code 0} for no limit.
+	 */
+	public long getTimeout() {
+		return timeout;
 	}
 	
 	/**
@@ -88,6 +387,14 @@ public abstract class BackupTask {
 		return last;
 	}
 	
+	/**
+	 * Gets the name of the task.
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+	
 	/**
 	 * Get the name formatter.
 	 * @return The name formatter.
@@ -95,4 +402,12 @@ public abstract class BackupTask {
 	public BackupNameFormatter getFormatter() {
 		return formatter;
 	}
+	
+	/**
+	 * The lifecycle of a task: idle until due, queued until the executor has a slot, running, and cancelling
+	 * from the moment a queued or running run is cancelled until it ended.
+	 */
+	public enum State {
+		IDLE, QUEUED, RUNNING, CANCELLING
+	}
 }
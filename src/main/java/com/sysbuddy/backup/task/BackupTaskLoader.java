@@ -27,4 +27,15 @@ public abstract class BackupTaskLoader {
 	 * @throws Exception If the file operation is unsuccessful.
 	 */
 	public abstract BackupTask load() throws Exception;
+	
+	/**
+	 * Reads the delay between routine backups. It may be left out when the task runs on a {@code <cron>} calendar.
+	 * @return The delay (milliseconds), {@code 0} if not configured.
+	 */
+	protected long getDelay() {
+		if (node.getChild("delay") != null) {
+			return Long.parseLong(node.getChild("delay").getValue());
+		}
+		return 0;
+	}
 }
@@ -10,7 +10,9 @@ public enum BackupTaskType {
 
 	LOCAL_FILE_1("file", LocalFileTaskLoader.class),
 	LOCAL_FILE_2("files", LocalFileTaskLoader.class),
-	SFTP_FILE("sftp", SFTPBackupTaskLoader.class);
+	SFTP_FILE("sftp", SFTPBackupTaskLoader.class),
+	CHUNK_STORE("dedup", ChunkStoreTaskLoader.class),
+	SNAPSHOT("snapshot", SnapshotTaskLoader.class);
 	
 	/**
 	 * The key that matches with the given type.
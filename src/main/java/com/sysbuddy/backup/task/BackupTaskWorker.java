@@ -1,29 +1,125 @@
 package com.sysbuddy.backup.task;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.BackupSchedule;
+import com.sysbuddy.util.CancellationToken;
+
 /**
  * Worker thread class for backup tasks.
  * @author darius
  */
 public class BackupTaskWorker implements Runnable {
 
+	/**
+	 * The logger of the backup task workers.
+	 */
+	private final static Logger logger = Logger.getLogger(BackupTaskWorker.class.getName());
+
+	/**
+	 * Cancels runs that exceed the timeout of their task.
+	 */
+	private final static ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "task-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	/**
 	 * The backup task
 	 */
 	private BackupTask task;
+	
+	/**
+	 * The schedule the run is reported to, which queues the task again.
+	 */
+	private BackupSchedule schedule;
 
 	/**
 	 * Creates the backup schedule worker.
-	 * @param schedule The backup task schedule
+	 * @param task The backup task
+	 * @param schedule The schedule the run is reported to, which queues the task again.
 	 */
-	public BackupTaskWorker(BackupTask task) {
+	public BackupTaskWorker(BackupTask task, BackupSchedule schedule) {
 		this.task = task;
+		this.schedule = schedule;
 	}
 	
 	@Override
 	public void run() {
-		task.setWorking(true);
-		task.backup();
-		task.setWorking(false);
-		task.setLast(System.currentTimeMillis());
+		final CancellationToken token = task.begin();
+		long start = System.currentTimeMillis();
+		boolean success = false;
+		ScheduledFuture<?> timeout = null;
+		try {
+			if (token == null) {
+				logger.info("Run of \"" + task.getName() + "\" was cancelled before it started");
+				return;
+			}
+			
+			if (task.getTimeout() > 0) {
+				timeout = WATCHDOG.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (task.cancel(token, "timed out after " + task.getTimeout() + " ms"))
+							logger.warning("Run of \"" + task.getName() + "\" timed out after " + task.getTimeout() + " ms, cancelling");
+					}
+				}, task.getTimeout(), TimeUnit.MILLISECONDS);
+			}
+			
+			success = backup(token);
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Run of \"" + task.getName() + "\" failed", e);
+		} finally {
+			if (timeout != null)
+				timeout.cancel(false);
+			
+			long finish = System.currentTimeMillis();
+			if (success)
+				task.setLast(finish);
+			else
+				task.failed(finish);
+			task.finish();
+			schedule.finished(task, start, finish, success);
+		}
+	}
+	
+	/**
+	 * Runs the backup with its token bound to the thread. Cancellation also interrupts the thread, which
+	 * ends blocking waits; the interrupt is cleared afterwards since the thread is pooled.
+	 * @param token The token of the run.
+	 * @return {@code true} if the backup succeeded and was not cancelled.
+	 */
+	private boolean backup(CancellationToken token) {
+		final Thread thread = Thread.currentThread();
+		CancellationToken.bind(token);
+		CancellationToken.Registration interrupt = token.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				thread.interrupt();
+			}
+		});
+		
+		try {
+			boolean success = task.backup() != null;
+			if (token.isCancelled()) {
+				logger.warning("Run of \"" + task.getName() + "\" was cancelled: " + token.getReason());
+				return false;
+			}
+			return success;
+		} finally {
+			interrupt.close();
+			CancellationToken.bind(null);
+			Thread.interrupted();
+		}
 	}
 }
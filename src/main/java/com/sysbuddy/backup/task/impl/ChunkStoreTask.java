@@ -0,0 +1,82 @@
+package com.sysbuddy.backup.task.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.asset.impl.ChunkStoreAsset;
+import com.sysbuddy.backup.store.ChunkStore;
+import com.sysbuddy.backup.task.BackupTask;
+
+/**
+ * Backs up local files into a deduplicating chunk store.
+ * Each run only writes the chunks the store does not hold yet, plus a small index.
+ * @author darius
+ */
+public class ChunkStoreTask extends BackupTask {
+
+	/**
+	 * The logger of the backup task.
+	 */
+	private final static Logger logger = Logger.getLogger(ChunkStoreTask.class.getName());
+	
+	/**
+	 * The asset that will be backed up.
+	 */
+	private final ChunkStoreAsset asset;
+	
+	/**
+	 * The number of most recent runs kept, {@code 0} to keep every run.
+	 */
+	private int retain;
+	
+	/**
+	 * Creates a chunk store backup task.
+	 * @param name The name of the task.
+	 * @param asset The asset being backed up.
+	 * @param delay The time, in milliseconds, between each routine backup.
+	 */
+	public ChunkStoreTask(String name, ChunkStoreAsset asset, long delay) {
+		super(name, delay);
+		this.asset = asset;
+	}
+
+	@Override
+	public Set<String> getResources() {
+		return volumes(asset.getSources());
+	}
+
+	@Override
+	public Path backup() {
+		logger.info("Starting deduplicated backup for \"" + name + "\"..");
+		
+		ChunkStore store = asset.getStore();
+		long stored = store.getStoredBytes();
+		long duplicate = store.getDuplicateBytes();
+		
+		try {
+			Path index = asset.copy(formatter.toDirectory(null));
+			logger.info("Backup for \"" + name + "\" was successful! Index: " + index + " ("
+					+ (store.getStoredBytes() - stored) + " new bytes, " + (store.getDuplicateBytes() - duplicate) + " deduplicated bytes)");
+			
+			if (retain > 0 && store.prune(retain) > 0) {
+				store.collectGarbage();
+			}
+			
+			return index;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Sets the number of most recent runs kept. Older runs are deleted and their chunks collected.
+	 * @param retain The number of runs, {@code 0} to keep every run.
+	 */
+	public void setRetain(int retain) {
+		this.retain = retain;
+	}
+}
@@ -0,0 +1,59 @@
+package com.sysbuddy.backup.task.impl;
+
+import java.nio.file.Paths;
+
+import com.sysbuddy.backup.asset.impl.ChunkStoreAsset;
+import com.sysbuddy.backup.store.ChunkStore;
+import com.sysbuddy.backup.store.ContentChunker;
+import com.sysbuddy.backup.task.BackupTask;
+import com.sysbuddy.backup.task.BackupTaskLoader;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.io.Node;
+
+/**
+ * The loader for {@link ChunkStoreTask}
+ * @author darius
+ */
+public class ChunkStoreTaskLoader extends BackupTaskLoader {
+
+	public ChunkStoreTaskLoader(Node node) {
+		super(node);
+	}
+
+	@Override
+	public BackupTask load() throws Exception {
+		String name = node.getChild("name").getValue();
+		String destination = node.getChild("destination").getValue();
+		long delay = getDelay();
+
+		Node[] directoryNodes = node.getChildren("directory");
+		String[] directories = new String[directoryNodes.length];
+		
+		for (int i = 0; i < directories.length; i++) {
+			directories[i] = directoryNodes[i].getValue();
+		}
+		
+		int average = GlobalConfiguration.CHUNK_AVERAGE_SIZE;
+		
+		if (node.getChild("chunk_size") != null) {
+			average = Integer.parseInt(node.getChild("chunk_size").getValue());
+		}
+		
+		ChunkStore store = new ChunkStore(Paths.get(destination));
+		ContentChunker chunker = new ContentChunker(average / 4, average, average * 4);
+		ChunkStoreAsset asset = new ChunkStoreAsset(directories, store, chunker);
+		
+		if (node.getChild("follow_links") != null) {
+			asset.setFollowLinks(Boolean.parseBoolean(node.getChild("follow_links").getValue()));
+		}
+		
+		ChunkStoreTask task = new ChunkStoreTask(name, asset, delay);
+		
+		if (node.getChild("retain") != null) {
+			task.setRetain(Integer.parseInt(node.getChild("retain").getValue()));
+		}
+		
+		return task;
+	}
+
+}
@@ -1,10 +1,18 @@
 package com.sysbuddy.backup.task.impl;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import com.sysbuddy.backup.archive.ArchiveStatistics;
 import com.sysbuddy.backup.asset.impl.LocalArchiveAsset;
+import com.sysbuddy.backup.manifest.FileManifest;
+import com.sysbuddy.backup.manifest.IncrementalFilter;
 import com.sysbuddy.backup.task.BackupTask;
 
 /**
@@ -21,13 +29,23 @@ public class LocalFileTask extends BackupTask {
 	/**
 	 * The local asset that will be backed up.
 	 */
-	private final LocalArchiveAsset asset;
+	protected final LocalArchiveAsset asset;
 	
 	/**
 	 * The local directory in which the file should be placed.
 	 */
 	protected final String destination;
 	
+	/**
+	 * The manifest file of incremental backups, {@code null} if every run is a full backup.
+	 */
+	private Path manifest;
+	
+	/**
+	 * If incremental backups compare content hashes of files that were touched.
+	 */
+	private boolean hashing;
+	
 	/**
 	 * Creates a local backup task.
 	 * @param name The name of the task.
@@ -42,13 +60,52 @@ public class LocalFileTask extends BackupTask {
 
 	@Override
 	public Path backup() {
+		try {
+			IncrementalFilter increment = openIncrement();
+			Path result = archive(increment, new ArchiveStatistics());
+			if (result != null)
+				commitIncrement(increment);
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	@Override
+	public void recover() {
+		try (DirectoryStream<Path> parts = Files.newDirectoryStream(Paths.get(destination), "*" + LocalArchiveAsset.PART)) {
+			for (Path part : parts) {
+				logger.info("Removing partial archive " + part + " of an interrupted run");
+				Files.deleteIfExists(part);
+			}
+		} catch (NoSuchFileException e) {
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public Set<String> getResources() {
+		return volumes(asset.getSources());
+	}
+	
+	/**
+	 * Writes the archive, with its verification manifest, to the local destination. The increment is not
+	 * committed, so that a run whose archive does not reach its final destination is archived again.
+	 * @param increment The filter of the run, {@code null} for a full backup.
+	 * @param statistics The counters the archiver reports to, including the size and hash of the archive.
+	 * @return The path of the archive, {@code null} if unsuccessful.
+	 */
+	protected Path archive(IncrementalFilter increment, ArchiveStatistics statistics) {
 		logger.info("Starting routine backup for \"" + name + "\"..");
 
 		String directory = formatter.toDirectory(destination);
 		
 		try {
-			Path result = asset.copy(directory);
-			logger.info("Backup for \"" + name + "\" was successful! Archive directory: " + result.toString());
+			Path result = asset.copy(directory, increment, statistics);
+			logger.info("Backup for \"" + name + "\" was successful! Archive directory: " + result.toString() + " (" + statistics + "; " + LocalArchiveAsset.getBufferPool() + ")");
 			return result;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -56,5 +113,39 @@ public class LocalFileTask extends BackupTask {
 		
 		return null;
 	}
+	
+	/**
+	 * Creates the filter of an incremental run from the previous run's manifest.
+	 * @return The filter, {@code null} if the task does not make incremental backups.
+	 * @throws IOException If the manifest could not be read.
+	 */
+	protected IncrementalFilter openIncrement() throws IOException {
+		if (manifest == null)
+			return null;
+		return new IncrementalFilter(FileManifest.load(manifest), hashing);
+	}
+	
+	/**
+	 * Saves the manifest of a completed incremental run, making it the base of the next one.
+	 * @param increment The filter of the run, {@code null} if the task does not make incremental backups.
+	 * @throws IOException If the manifest could not be written.
+	 */
+	protected void commitIncrement(IncrementalFilter increment) throws IOException {
+		if (increment == null)
+			return;
+		increment.getManifest().save(manifest);
+		logger.info("Incremental backup for \"" + name + "\" (generation " + increment.getManifest().getGeneration() + "): "
+				+ increment.getChanged() + " new or changed, " + increment.getDeleted().size() + " deleted.");
+	}
+	
+	/**
+	 * Enables incremental backups. Only files that are new or changed since the last run are archived.
+	 * @param manifest The file holding the state of the last run.
+	 * @param hashing If content hashes are compared for files whose modification time changed.
+	 */
+	public void setIncremental(Path manifest, boolean hashing) {
+		this.manifest = manifest;
+		this.hashing = hashing;
+	}
 
 }
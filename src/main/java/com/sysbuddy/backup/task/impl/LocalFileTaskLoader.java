@@ -1,9 +1,16 @@
 package com.sysbuddy.backup.task.impl;
 
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.sysbuddy.backup.archive.ArchiveFormat;
 import com.sysbuddy.backup.asset.impl.LocalArchiveAsset;
 import com.sysbuddy.backup.task.BackupTask;
 import com.sysbuddy.backup.task.BackupTaskLoader;
 import com.sysbuddy.io.Node;
+import com.sysbuddy.io.RateLimiter;
 
 /**
  * The loader for {@link LocalFileTask}
@@ -19,8 +26,43 @@ public class LocalFileTaskLoader extends BackupTaskLoader {
 	public BackupTask load() {
 		String name = node.getChild("name").getValue();
 		String destination = node.getChild("destination").getValue();
-		long delay = Long.parseLong(node.getChild("delay").getValue());
-
+		long delay = getDelay();
+		
+		LocalArchiveAsset asset = loadAsset(node);
+		LocalFileTask task = new LocalFileTask(name, asset, destination, delay);
+		configure(task, node, destination);
+		return task;
+	}
+	
+	/**
+	 * Applies the options shared by the local and remote file tasks.
+	 * @param task The task.
+	 * @param node The task configuration.
+	 * @param destination The local directory holding the task's backups.
+	 */
+	static void configure(LocalFileTask task, Node node, String destination) {
+		if (node.getChild("incremental") != null && Boolean.parseBoolean(node.getChild("incremental").getValue())) {
+			String manifest = destination + File.separator + "." + task.getName().replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest";
+			boolean hashing = false;
+			
+			if (node.getChild("manifest") != null) {
+				manifest = node.getChild("manifest").getValue();
+			}
+			
+			if (node.getChild("hash") != null) {
+				hashing = Boolean.parseBoolean(node.getChild("hash").getValue());
+			}
+			
+			task.setIncremental(Paths.get(manifest), hashing);
+		}
+	}
+	
+	/**
+	 * Builds the archive asset shared by the local and remote file tasks.
+	 * @param node The task configuration.
+	 * @return The archive asset.
+	 */
+	static LocalArchiveAsset loadAsset(Node node) {
 		Node[] directoryNodes = node.getChildren("directory");
 		String[] directories = new String[directoryNodes.length];
 		
@@ -29,7 +71,70 @@ public class LocalFileTaskLoader extends BackupTaskLoader {
 		}
 		
 		LocalArchiveAsset asset = new LocalArchiveAsset(directories);
-		return new LocalFileTask(name, asset, destination, delay);
+		
+		if (node.getChild("read_limit") != null) {
+			String name = node.getChild("name").getValue();
+			long rate = parseSize(node.getChild("read_limit").getValue());
+			asset.setReadLimiter(new RateLimiter(name + " read", rate, LocalArchiveAsset.getGlobalReadLimiter()).register());
+		}
+		
+		if (node.getChild("workers") != null) {
+			asset.setWorkers(Integer.parseInt(node.getChild("workers").getValue()));
+		}
+		
+		if (node.getChild("follow_links") != null) {
+			asset.setFollowLinks(Boolean.parseBoolean(node.getChild("follow_links").getValue()));
+		}
+		
+		if (node.getChild("volume_size") != null) {
+			asset.setVolumeSize(parseSize(node.getChild("volume_size").getValue()));
+		}
+		
+		if (node.getChild("archive_format") != null) {
+			ArchiveFormat format = ArchiveFormat.get(node.getChild("archive_format").getValue().trim());
+			if (format == null)
+				throw new IllegalArgumentException("Unknown archive format: " + node.getChild("archive_format").getValue());
+			asset.setFormat(format);
+		}
+		
+		if (node.getChild("compression_level") != null) {
+			asset.setLevel(Integer.parseInt(node.getChild("compression_level").getValue()));
+		}
+		
+		if (node.getChild("store_extensions") != null) {
+			Set<String> extensions = new HashSet<String>();
+			for (String extension : node.getChild("store_extensions").getValue().split(",")) {
+				if (!extension.trim().isEmpty())
+					extensions.add(extension.trim().replaceFirst("^\\.", ""));
+			}
+			asset.setStoredExtensions(extensions);
+		}
+		
+		return asset;
+	}
+	
+	/**
+	 * Parses a size in bytes, with an optional {@code K}, {@code M} or {@code G} suffix (powers of 1024).
+	 * Rate limits use the same notation, in bytes per second.
+	 * @param value The size, for example {@code 512M}.
+	 * @return The size in bytes.
+	 */
+	static long parseSize(String value) {
+		value = value.trim().toUpperCase();
+		int shift = 0;
+		
+		if (value.endsWith("K")) {
+			shift = 10;
+		} else if (value.endsWith("M")) {
+			shift = 20;
+		} else if (value.endsWith("G")) {
+			shift = 30;
+		}
+		
+		if (shift > 0) {
+			value = value.substring(0, value.length() - 1).trim();
+		}
+		
+		return Long.parseLong(value) << shift;
 	}
-
 }
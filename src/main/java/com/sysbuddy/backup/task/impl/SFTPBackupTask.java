@@ -1,20 +1,37 @@
 package com.sysbuddy.backup.task.impl;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
-import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import com.sysbuddy.backup.archive.ArchiveManifest;
+import com.sysbuddy.backup.archive.ArchiveStatistics;
 import com.sysbuddy.backup.asset.impl.LocalArchiveAsset;
+import com.sysbuddy.backup.delta.BlockSignature;
+import com.sysbuddy.backup.delta.DeltaPatcher;
+import com.sysbuddy.backup.manifest.IncrementalFilter;
+import com.sysbuddy.backup.remote.DeltaUploader;
+import com.sysbuddy.backup.remote.RemoteVerifier;
+import com.sysbuddy.backup.remote.RetryPolicy;
+import com.sysbuddy.backup.remote.SessionPool;
+import com.sysbuddy.backup.remote.StripedUploader;
+import com.sysbuddy.backup.remote.TransferStatistics;
+import com.sysbuddy.backup.remote.VolumeUploader;
+import com.sysbuddy.config.GlobalConfiguration;
+import com.sysbuddy.io.BoundedPipe;
+import com.sysbuddy.io.RateLimiter;
+import com.sysbuddy.io.ThrottledInputStream;
+import com.sysbuddy.util.CancellationToken;
 import com.sysbuddy.util.FTPCredentials;
+import com.sysbuddy.util.Threads;
 
 /**
  * Backup task for copying local files to a remote FTP server.
@@ -30,6 +47,11 @@ public class SFTPBackupTask extends LocalFileTask {
 	 * The logger
 	 */
 	private final static Logger logger = Logger.getLogger(SFTPBackupTask.class.getName());
+	
+	/**
+	 * The limit on uploads shared by every SFTP task.
+	 */
+	private final static RateLimiter UPLOAD_LIMITER = new RateLimiter("upload", GlobalConfiguration.UPLOAD_LIMIT, null).register();
 
 	/**
 	 * The credentials for the SFTP server.
@@ -43,9 +65,40 @@ public class SFTPBackupTask extends LocalFileTask {
 	
 	/**
 	 * Whether or not the task will keep the locally stored backups.
+	 * When {@code false} the archive is streamed to the server without a local copy.
 	 */
 	private boolean local;
 	
+	/**
+	 * The number of channels a large archive, or its volumes, are uploaded over at once.
+	 */
+	private int channels = GlobalConfiguration.UPLOAD_CHANNELS;
+	
+	/**
+	 * The smallest byte range of an archive uploaded over its own channel.
+	 */
+	private long chunkSize = GlobalConfiguration.UPLOAD_CHUNK_SIZE;
+	
+	/**
+	 * The limiter uploaded bytes are taken from.
+	 */
+	private RateLimiter uploadLimiter = UPLOAD_LIMITER;
+	
+	/**
+	 * How failed uploads are retried.
+	 */
+	private RetryPolicy retryPolicy = new RetryPolicy(GlobalConfiguration.UPLOAD_RETRIES, GlobalConfiguration.UPLOAD_RETRY_DELAY, GlobalConfiguration.UPLOAD_RETRY_MAX_DELAY);
+	
+	/**
+	 * The block signatures of the last uploaded archive, {@code null} if archives are always uploaded whole.
+	 */
+	private Path signature;
+	
+	/**
+	 * The block size of delta uploads.
+	 */
+	private int deltaBlockSize = GlobalConfiguration.DELTA_BLOCK_SIZE;
+	
 	/**
 	 * Creates an FTP backup task
 	 * @param name The name of the task.
@@ -64,53 +117,281 @@ public class SFTPBackupTask extends LocalFileTask {
 
 	@Override
 	public Path backup() {
-		Path localPath = super.backup();
-		String directory = localPath.toString();
+		if (asset.getVolumeSize() > 0) {
+			return volumes();
+		}
+		
+		if (!local) {
+			return stream();
+		}
 		
-		if (localPath == null || !Files.exists(Paths.get(directory))) {
-			logger.info("Could not find local file copy (" + directory + ")! Aborting FTP session..");
+		IncrementalFilter increment;
+		try {
+			increment = openIncrement();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		ArchiveStatistics statistics = new ArchiveStatistics();
+		Path localPath = archive(increment, statistics);
+		
+		if (localPath == null || !Files.exists(localPath)) {
+			logger.info("Could not find local file copy (" + localPath + ")! Aborting FTP session..");
 			return null;
 		}
 
-        Session session = null;
-        Channel channel = null;
-        ChannelSftp channelSftp = null;
-
-        logger.info("Connecting to SFTP " + credentials.getServer() + ":" + credentials.getPort() + "..");
-        
+		TransferStatistics transfers = new TransferStatistics();
+		try {
+			if (!uploadDelta(localPath, statistics.getArchiveHash(), transfers))
+				upload(localPath, statistics.getArchiveHash(), transfers);
+			upload(LocalArchiveAsset.getManifest(localPath), null, transfers);
+			saveSignature(localPath);
+			commitIncrement(increment);
+			logger.info("Upload for \"" + name + "\" was successful! (" + transfers + ")");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return localPath;
+	}
+	
+	@Override
+	public Set<String> getResources() {
+		Set<String> resources = super.getResources();
+		resources.add("sftp:" + credentials.getServer() + ":" + credentials.getPort());
+		return resources;
+	}
+	
+	@Override
+	public boolean usesSsh() {
+		return true;
+	}
+	
+	/**
+	 * Archives straight into the upload through a bounded pipe, so compression and transfer overlap
+	 * and no local copy is written. Only the verification manifest is kept locally.
+	 * @return The remote path of the archive, {@code null} if unsuccessful.
+	 */
+	private Path stream() {
+		logger.info("Starting streaming backup for \"" + name + "\"..");
+		
+		String remote = new File(formatter.toDirectory(null)).getName() + asset.getFormat().getExtension();
+		
+		final IncrementalFilter increment;
+		try {
+			increment = openIncrement();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		final ArchiveManifest manifest;
+		try {
+			manifest = new ArchiveManifest(LocalArchiveAsset.getManifest(Paths.get(destination, remote)), remote);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		final ArchiveStatistics statistics = new ArchiveStatistics();
+		TransferStatistics transfers = new TransferStatistics();
+		final BoundedPipe pipe = new BoundedPipe(GlobalConfiguration.PIPE_CHUNK_SIZE, GlobalConfiguration.PIPE_CAPACITY);
+		
+		final CancellationToken token = CancellationToken.current();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread producer = Threads.start("archiver-" + name, new Runnable() {
+			@Override
+			public void run() {
+				CancellationToken.bind(token);
+				try {
+					asset.write(pipe.getOutputStream(), increment, statistics, manifest);
+					pipe.complete();
+				} catch (Throwable t) {
+					failure.set(t);
+					pipe.fail(t);
+				}
+			}
+		});
+		
+		InputStream inputStream = pipe.getInputStream();
+		try {
+			upload(inputStream, remote, statistics, transfers);
+			producer.join();
+			if (failure.get() != null)
+				throw new IOException("Archiving for \"" + name + "\" failed", failure.get());
+			manifest.commit();
+			upload(manifest.getPath(), null, transfers);
+			commitIncrement(increment);
+			logger.info("Streaming backup for \"" + name + "\" was successful! (" + statistics + "; " + transfers + "; " + LocalArchiveAsset.getBufferPool() + ")");
+			return Paths.get(remoteDestination, remote);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				inputStream.close();
+				producer.join();
+				manifest.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Archives into volumes and uploads every volume as soon as it is complete, over several channels,
+	 * while later volumes are still being written. The checksum file is uploaded last, once every volume arrived.
+	 * Volumes are deleted locally once uploaded unless the task keeps local copies.
+	 * @return The local path of the checksum file listing the volumes, {@code null} if unsuccessful.
+	 */
+	private Path volumes() {
+		logger.info("Starting volume backup for \"" + name + "\"..");
+		
+		String directory = formatter.toDirectory(destination);
+		SessionPool.Lease lease = null;
+		VolumeUploader uploader = null;
+		
 		try {
-			JSch jsch = new JSch();
-	        session = jsch.getSession(credentials.getUsername(), credentials.getServer(), 22);
-	        session.setPassword(credentials.getPassword());
-	        java.util.Properties config = new java.util.Properties();
-	        config.put("StrictHostKeyChecking", "no");
-	        session.setConfig(config);
-	        session.connect();
-	        channel = session.openChannel("sftp");
-	        channel.connect();
-	        logger.info("Connected to " + credentials.getServer() + ":" + credentials.getPort() + "! Uploading file..");
-	        channelSftp = (ChannelSftp) channel;
-	        channelSftp.cd(remoteDestination);
-	        File localFile = new File(directory);
-	        String remote = localFile.getName();
-	        InputStream inputStream = new FileInputStream(localFile);
-	        channelSftp.put(inputStream, remote);
-	        logger.info("File transfered successfully to SFTP server " + credentials.getServer() + ":" + credentials.getPort() + " (" + remote + ")!");
-			inputStream.close();
+			IncrementalFilter increment = openIncrement();
+			ArchiveStatistics statistics = new ArchiveStatistics();
+			TransferStatistics transfers = new TransferStatistics();
+			
+			lease = SessionPool.getDefault().acquire(credentials);
+			uploader = new VolumeUploader(lease.getSession(), remoteDestination, channels, !local, uploadLimiter);
+			uploader.setRetryPolicy(retryPolicy);
+			uploader.setStatistics(transfers);
+			Path checksums = asset.copy(directory, increment, statistics, uploader);
+			uploader.finish();
+			uploader.upload(LocalArchiveAsset.getManifest(Paths.get(directory + asset.getFormat().getExtension())), null);
+			uploader.upload(checksums, null);
+			uploader.finish();
+			
+			commitIncrement(increment);
+			logger.info("Volume backup for \"" + name + "\" was successful! Checksums: " + checksums + " (" + statistics + "; " + transfers + "; " + LocalArchiveAsset.getBufferPool() + ")");
+			return checksums;
 		} catch (Exception e) {
 			e.printStackTrace();
+			// Leave no partial backup without a checksum file on the server
+			if (uploader != null)
+				uploader.discard();
 		} finally {
-			if (!local) {
-	        	try {
-					Files.delete(localPath);
-				} catch (IOException e) {
-					e.printStackTrace();
+			if (uploader != null)
+				uploader.close();
+			if (lease != null)
+				lease.close();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Uploads a local file next to the archive over pooled sessions, striped across channels when it is large.
+	 * Failed attempts are retried with backoff and resume from what already reached the server.
+	 * @param file The local file.
+	 * @param hash The SHA-256 hash the remote copy is verified against, {@code null} to only compare its size.
+	 * @param transfers The counters of the run.
+	 * @throws IOException If the file could not be uploaded within the retries.
+	 */
+	private void upload(Path file, String hash, TransferStatistics transfers) throws IOException {
+		uploader(transfers).upload(file, file.getFileName().toString(), hash);
+	}
+	
+	/**
+	 * Uploads an archive as a delta against the last uploaded archive, which the server rebuilds it from.
+	 * @param file The archive.
+	 * @param hash The SHA-256 hash the rebuilt archive is verified against.
+	 * @param transfers The counters of the run.
+	 * @return {@code true} if the archive was rebuilt on the server, {@code false} if it has to be uploaded whole.
+	 */
+	private boolean uploadDelta(Path file, String hash, TransferStatistics transfers) {
+		if (signature == null)
+			return false;
+		
+		try {
+			BlockSignature base = BlockSignature.load(signature);
+			if (base == null)
+				return false;
+			DeltaUploader uploader = new DeltaUploader(SessionPool.getDefault(), credentials, remoteDestination, uploader(transfers), GlobalConfiguration.DELTA_MAX_LITERAL);
+			return uploader.upload(file, file.getFileName().toString(), hash, base);
+		} catch (IOException e) {
+			logger.warning("Delta upload for \"" + name + "\" failed, uploading the whole archive: " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Saves the block signatures of an uploaded archive, making it the base of the next delta upload.
+	 * @param file The archive.
+	 */
+	private void saveSignature(Path file) {
+		if (signature == null)
+			return;
+		
+		try {
+			BlockSignature.compute(file, file.getFileName().toString(), deltaBlockSize).save(signature);
+		} catch (IOException e) {
+			logger.warning("Could not save the block signatures of " + file + ": " + e);
+		}
+	}
+	
+	/**
+	 * Creates an uploader for local files next to the archive.
+	 * @param transfers The counters of the run.
+	 * @return The uploader.
+	 */
+	private StripedUploader uploader(TransferStatistics transfers) {
+		StripedUploader uploader = new StripedUploader(SessionPool.getDefault(), credentials, remoteDestination, channels, chunkSize, uploadLimiter);
+		uploader.setRetryPolicy(retryPolicy);
+		uploader.setStatistics(transfers);
+		return uploader;
+	}
+	
+	/**
+	 * Uploads a stream to the remote destination over a pooled session and verifies the remote copy.
+	 * The stream is written under a temporary name ending in {@value StripedUploader#PART}, which is renamed
+	 * once verified and removed on failure, so an existing archive of that name is never left truncated.
+	 * The stream is read once, so a failed upload is not retried.
+	 * @param inputStream The stream to upload.
+	 * @param remote The name of the remote file.
+	 * @param statistics The statistics of the archive being uploaded, holding its size and hash once the stream
+	 * ended, {@code null} to skip verification.
+	 * @param transfers The counters of the run.
+	 * @throws Exception If the connection, transfer or verification is unsuccessful.
+	 */
+	private void upload(InputStream inputStream, String remote, ArchiveStatistics statistics, TransferStatistics transfers) throws Exception {
+		try (SessionPool.Lease lease = SessionPool.getDefault().acquire(credentials)) {
+			ChannelSftp channelSftp = lease.openSftp();
+			try {
+				logger.info("Connected to " + credentials.getServer() + ":" + credentials.getPort() + "! Uploading file..");
+				channelSftp.cd(remoteDestination);
+				
+				String part = remote + StripedUploader.PART;
+				try {
+					channelSftp.put(new ThrottledInputStream(inputStream, uploadLimiter), part);
+					if (statistics != null)
+						transfers.addSent(statistics.getArchiveSize());
+					transfers.addFile();
+					if (statistics != null)
+						RemoteVerifier.verify(lease.getSession(), channelSftp, remoteDestination, part, statistics.getArchiveSize(), statistics.getArchiveHash());
+					StripedUploader.rename(channelSftp, part, remote);
+				} catch (SftpException | IOException e) {
+					try {
+						channelSftp.rm(part);
+					} catch (SftpException ignored) {
+					}
+					throw e;
 				}
-	        	logger.info("Deleted local tmp file: " + directory);
-	        }
+			} finally {
+				channelSftp.disconnect();
+			}
 		}
 		
-		return localPath;
+		logger.info("File transfered successfully to SFTP server " + credentials.getServer() + ":" + credentials.getPort() + " (" + remote + ")!");
 	}
 	
 	/**
@@ -120,4 +401,55 @@ public class SFTPBackupTask extends LocalFileTask {
 	public void setLocal(boolean local) {
 		this.local = local;
 	}
+	
+	/**
+	 * Gets the limit on uploads shared by every SFTP task.
+	 * @return The global upload limiter.
+	 */
+	public static RateLimiter getGlobalUploadLimiter() {
+		return UPLOAD_LIMITER;
+	}
+	
+	/**
+	 * Sets the limiter uploaded bytes are taken from. It should have the global upload limiter as its parent.
+	 * @param uploadLimiter The limiter.
+	 */
+	public void setUploadLimiter(RateLimiter uploadLimiter) {
+		this.uploadLimiter = uploadLimiter;
+	}
+	
+	/**
+	 * Sets the number of channels a large archive, or its volumes, are uploaded over at once.
+	 * @param channels The number of SFTP channels.
+	 */
+	public void setChannels(int channels) {
+		this.channels = Math.max(1, channels);
+	}
+	
+	/**
+	 * Sets the smallest byte range of an archive uploaded over its own channel.
+	 * @param chunkSize The size in bytes.
+	 */
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+	
+	/**
+	 * Sets how failed uploads are retried.
+	 * @param retryPolicy The retry policy.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Enables delta uploads of locally kept archives. Only the parts of an archive that changed since the
+	 * last uploaded one are sent, and the server rebuilds the archive from the previous one.
+	 * @param signature The file holding the block signatures of the last uploaded archive.
+	 * @param blockSize The block size of the deltas.
+	 */
+	public void setDelta(Path signature, int blockSize) {
+		this.signature = signature;
+		this.deltaBlockSize = Math.max(DeltaPatcher.UNIT, blockSize);
+	}
 }
@@ -1,9 +1,15 @@
 package com.sysbuddy.backup.task.impl;
 
+import java.io.File;
+import java.nio.file.Paths;
+
 import com.sysbuddy.backup.asset.impl.LocalArchiveAsset;
+import com.sysbuddy.backup.remote.RetryPolicy;
 import com.sysbuddy.backup.task.BackupTask;
 import com.sysbuddy.backup.task.BackupTaskLoader;
+import com.sysbuddy.config.GlobalConfiguration;
 import com.sysbuddy.io.Node;
+import com.sysbuddy.io.RateLimiter;
 import com.sysbuddy.util.FTPCredentials;
 
 public class SFTPBackupTaskLoader extends BackupTaskLoader {
@@ -16,14 +22,7 @@ public class SFTPBackupTaskLoader extends BackupTaskLoader {
 	public BackupTask load() throws Exception {
 		String name = node.getChild("name").getValue();
 		String localDestination = node.getChild("local_destination").getValue();
-		long delay = Long.parseLong(node.getChild("delay").getValue());
-
-		Node[] directoryNodes = node.getChildren("directory");
-		String[] directories = new String[directoryNodes.length];
-		
-		for (int i = 0; i < directories.length; i++) {
-			directories[i] = directoryNodes[i].getValue();
-		}
+		long delay = getDelay();
 
 		boolean local = true;
 		
@@ -37,12 +36,62 @@ public class SFTPBackupTaskLoader extends BackupTaskLoader {
 		String user = remote.getChild("user").getValue();
 		String pass = remote.getChild("pass").getValue();
 		String remoteDestination = remote.getChild("destination").getValue();
+		int port = 22;
 		
-		LocalArchiveAsset asset = new LocalArchiveAsset(directories);
-		FTPCredentials credentials = new FTPCredentials(address, user, pass);
+		if (remote.getChild("port") != null) {
+			port = Integer.parseInt(remote.getChild("port").getValue());
+		}
+		
+		LocalArchiveAsset asset = LocalFileTaskLoader.loadAsset(node);
+		FTPCredentials credentials = new FTPCredentials(address, port, user, pass);
 		
 		SFTPBackupTask task = new SFTPBackupTask(name, credentials, asset, localDestination, remoteDestination, delay);
 		task.setLocal(local);
+		
+		if (node.getChild("upload_channels") != null) {
+			task.setChannels(Integer.parseInt(node.getChild("upload_channels").getValue()));
+		}
+		
+		if (node.getChild("upload_chunk_size") != null) {
+			task.setChunkSize(LocalFileTaskLoader.parseSize(node.getChild("upload_chunk_size").getValue()));
+		}
+		
+		if (node.getChild("upload_limit") != null) {
+			long rate = LocalFileTaskLoader.parseSize(node.getChild("upload_limit").getValue());
+			task.setUploadLimiter(new RateLimiter(name + " upload", rate, SFTPBackupTask.getGlobalUploadLimiter()).register());
+		}
+		
+		if (node.getChild("upload_retries") != null || node.getChild("retry_delay") != null) {
+			int retries = GlobalConfiguration.UPLOAD_RETRIES;
+			long retryDelay = GlobalConfiguration.UPLOAD_RETRY_DELAY;
+			
+			if (node.getChild("upload_retries") != null) {
+				retries = Integer.parseInt(node.getChild("upload_retries").getValue());
+			}
+			
+			if (node.getChild("retry_delay") != null) {
+				retryDelay = Long.parseLong(node.getChild("retry_delay").getValue());
+			}
+			
+			task.setRetryPolicy(new RetryPolicy(retries, retryDelay, GlobalConfiguration.UPLOAD_RETRY_MAX_DELAY));
+		}
+		
+		if (node.getChild("delta") != null && Boolean.parseBoolean(node.getChild("delta").getValue())) {
+			String signature = localDestination + File.separator + "." + name.replaceAll("[^A-Za-z0-9._-]", "_") + ".signature";
+			int blockSize = GlobalConfiguration.DELTA_BLOCK_SIZE;
+			
+			if (node.getChild("signature") != null) {
+				signature = node.getChild("signature").getValue();
+			}
+			
+			if (node.getChild("delta_block_size") != null) {
+				blockSize = (int) LocalFileTaskLoader.parseSize(node.getChild("delta_block_size").getValue());
+			}
+			
+			task.setDelta(Paths.get(signature), blockSize);
+		}
+		
+		LocalFileTaskLoader.configure(task, node, localDestination);
 		return task;
 	}
 
@@ -0,0 +1,99 @@
+package com.sysbuddy.backup.task.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.sysbuddy.backup.asset.impl.SnapshotAsset;
+import com.sysbuddy.backup.task.BackupTask;
+
+/**
+ * Backs up local files as hard-linked snapshots.
+ * Each run creates a browsable directory tree that only copies the files that changed.
+ * @author darius
+ */
+public class SnapshotTask extends BackupTask {
+
+	/**
+	 * The logger of the backup task.
+	 */
+	private final static Logger logger = Logger.getLogger(SnapshotTask.class.getName());
+	
+	/**
+	 * The asset that will be backed up.
+	 */
+	private final SnapshotAsset asset;
+	
+	/**
+	 * The directory holding the snapshots.
+	 */
+	private final String destination;
+	
+	/**
+	 * The number of most recent snapshots kept, {@code 0} to keep every snapshot.
+	 */
+	private int retain;
+	
+	/**
+	 * Creates a snapshot backup task.
+	 * @param name The name of the task.
+	 * @param asset The asset being backed up.
+	 * @param destination The directory holding the snapshots.
+	 * @param delay The time, in milliseconds, between each routine backup.
+	 */
+	public SnapshotTask(String name, SnapshotAsset asset, String destination, long delay) {
+		super(name, delay);
+		this.asset = asset;
+		this.destination = destination;
+	}
+
+	@Override
+	public Set<String> getResources() {
+		return volumes(asset.getSources());
+	}
+
+	@Override
+	public void recover() {
+		try {
+			asset.deletePartial();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public Path backup() {
+		logger.info("Starting snapshot for \"" + name + "\"..");
+		
+		long linked = asset.getLinkedBytes();
+		long copied = asset.getCopiedBytes();
+		
+		try {
+			Files.createDirectories(Paths.get(destination));
+			Path snapshot = asset.copy(formatter.toDirectory(destination));
+			logger.info("Snapshot for \"" + name + "\" was successful! Directory: " + snapshot + " ("
+					+ (asset.getCopiedBytes() - copied) + " bytes copied, " + (asset.getLinkedBytes() - linked) + " bytes hard-linked)");
+			
+			if (retain > 0) {
+				asset.prune(retain);
+			}
+			
+			return snapshot;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Sets the number of most recent snapshots kept. Older snapshots are deleted.
+	 * @param retain The number of snapshots, {@code 0} to keep every snapshot.
+	 */
+	public void setRetain(int retain) {
+		this.retain = retain;
+	}
+}
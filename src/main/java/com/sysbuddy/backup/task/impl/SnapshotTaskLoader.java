@@ -0,0 +1,48 @@
+package com.sysbuddy.backup.task.impl;
+
+import java.nio.file.Paths;
+
+import com.sysbuddy.backup.asset.impl.SnapshotAsset;
+import com.sysbuddy.backup.task.BackupTask;
+import com.sysbuddy.backup.task.BackupTaskLoader;
+import com.sysbuddy.io.Node;
+
+/**
+ * The loader for {@link SnapshotTask}
+ * @author darius
+ */
+public class SnapshotTaskLoader extends BackupTaskLoader {
+
+	public SnapshotTaskLoader(Node node) {
+		super(node);
+	}
+
+	@Override
+	public BackupTask load() {
+		String name = node.getChild("name").getValue();
+		String destination = node.getChild("destination").getValue();
+		long delay = getDelay();
+
+		Node[] directoryNodes = node.getChildren("directory");
+		String[] directories = new String[directoryNodes.length];
+		
+		for (int i = 0; i < directories.length; i++) {
+			directories[i] = directoryNodes[i].getValue();
+		}
+		
+		SnapshotAsset asset = new SnapshotAsset(directories, Paths.get(destination));
+		
+		if (node.getChild("follow_links") != null) {
+			asset.setFollowLinks(Boolean.parseBoolean(node.getChild("follow_links").getValue()));
+		}
+		
+		SnapshotTask task = new SnapshotTask(name, asset, destination, delay);
+		
+		if (node.getChild("retain") != null) {
+			task.setRetain(Integer.parseInt(node.getChild("retain").getValue()));
+		}
+		
+		return task;
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.sysbuddy.config;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Global configuration settings for the program.
  * TODO: Have these read from a configuration/properties file
@@ -7,4 +12,189 @@ package com.sysbuddy.config;
  */
 public class GlobalConfiguration {
 	public final static boolean LAUNCH_TASKS_IMMEDIATELY = true;
+	
+	/**
+	 * If tasks run at fixed times within their delay, placed by a hash of their name, rather than all
+	 * starting at once and one delay after their previous run. Set with the {@code sysbuddy.stagger} system property.
+	 */
+	public final static boolean STAGGER_TASKS = Boolean.parseBoolean(System.getProperty("sysbuddy.stagger", "true"));
+	
+	/**
+	 * The default longest random wait (milliseconds) added to each run of a task.
+	 */
+	public final static long TASK_JITTER = 0;
+	
+	/**
+	 * The default longest time (milliseconds) a task run may take before it is cancelled, {@code 0} for no limit.
+	 * Set with the {@code sysbuddy.task_timeout} system property.
+	 */
+	public final static long TASK_TIMEOUT = Long.getLong("sysbuddy.task_timeout", 0);
+	
+	/**
+	 * The wait (milliseconds) before a failed or cancelled task run is retried, doubled with every further failure.
+	 */
+	public final static long TASK_RETRY_DELAY = 60 * 1000;
+	
+	/**
+	 * The longest wait (milliseconds) before a failed task run is retried. Tasks running every delay wait at most their delay.
+	 */
+	public final static long TASK_RETRY_MAX_DELAY = 60 * 60 * 1000;
+	
+	/**
+	 * The default time (milliseconds) running tasks get to finish on shutdown before they are cancelled.
+	 * Set with the {@code sysbuddy.shutdown_grace} system property.
+	 */
+	public final static long SHUTDOWN_GRACE = Long.getLong("sysbuddy.shutdown_grace", 60 * 1000);
+	
+	/**
+	 * The time (milliseconds) cancelled tasks get to wind down on shutdown.
+	 */
+	public final static long SHUTDOWN_CANCEL_WAIT = 15 * 1000;
+	
+	/**
+	 * The default path of the journal of finished task runs, which lets tasks resume their schedule after
+	 * a restart. Set with the {@code sysbuddy.journal} system property, empty to not keep a journal.
+	 */
+	public final static String SCHEDULER_JOURNAL = System.getProperty("sysbuddy.journal", "./config/scheduler.journal");
+	
+	/**
+	 * The default maximum number of backup tasks running at once.
+	 * Set with the {@code sysbuddy.max_tasks} system property.
+	 */
+	public final static int MAX_TASKS = Integer.getInteger("sysbuddy.max_tasks", 4);
+	
+	/**
+	 * The default maximum number of running backup tasks that read the same volume or upload to the same server.
+	 */
+	public final static int TASKS_PER_RESOURCE = 2;
+	
+	/**
+	 * If backup tasks and their file and network helper threads run on virtual threads, on Java 21 or later.
+	 * Set with the {@code sysbuddy.virtual_threads} system property.
+	 */
+	public final static boolean VIRTUAL_THREADS = Boolean.getBoolean("sysbuddy.virtual_threads");
+	
+	/**
+	 * The default number of threads compressing an archive.
+	 */
+	public final static int ARCHIVE_WORKERS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The size of the pooled read buffers, which is also the size of the blocks large files are split into
+	 * for parallel compression. Set with the {@code sysbuddy.buffer_size} system property.
+	 */
+	public final static int ARCHIVE_BLOCK_SIZE = Integer.getInteger("sysbuddy.buffer_size", 1 << 20);
+	
+	/**
+	 * The maximum number of pooled read buffers shared by all running tasks.
+	 * Set with the {@code sysbuddy.buffer_pool_capacity} system property.
+	 */
+	public final static int BUFFER_POOL_CAPACITY = Integer.getInteger("sysbuddy.buffer_pool_capacity", 64);
+	
+	/**
+	 * Files at least this large are memory-mapped instead of read into pooled buffers.
+	 * Set with the {@code sysbuddy.mmap_threshold} system property.
+	 */
+	public final static long MMAP_THRESHOLD = Long.getLong("sysbuddy.mmap_threshold", 256L << 20);
+	
+	/**
+	 * The extensions of already compressed files, which are stored in archives rather than deflated.
+	 */
+	public final static Set<String> STORED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			"jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "mp4", "m4a", "m4v", "mkv", "mov", "avi", "webm",
+			"ogg", "flac", "aac", "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "lz4", "jar", "war",
+			"docx", "xlsx", "pptx")));
+	
+	/**
+	 * The maximum number of directory listings fetched ahead of a directory walk.
+	 */
+	public final static int WALKER_PREFETCH = 64;
+	
+	/**
+	 * The size of the chunks handed from the archiver to a streaming upload.
+	 */
+	public final static int PIPE_CHUNK_SIZE = 1 << 18;
+	
+	/**
+	 * The maximum number of chunks buffered between the archiver and a streaming upload.
+	 */
+	public final static int PIPE_CAPACITY = 16;
+	
+	/**
+	 * The default number of archive volumes uploaded at once.
+	 */
+	public final static int UPLOAD_CHANNELS = 4;
+	
+	/**
+	 * The global limit (bytes per second) on files read by archivers, {@code 0} for unlimited.
+	 * Set with the {@code sysbuddy.read_limit} system property; adjustable at runtime over JMX.
+	 */
+	public final static long READ_LIMIT = Long.getLong("sysbuddy.read_limit", 0);
+	
+	/**
+	 * The global limit (bytes per second) on uploads, {@code 0} for unlimited.
+	 * Set with the {@code sysbuddy.upload_limit} system property; adjustable at runtime over JMX.
+	 */
+	public final static long UPLOAD_LIMIT = Long.getLong("sysbuddy.upload_limit", 0);
+	
+	/**
+	 * The default smallest byte range uploaded over its own channel. Archives smaller than two chunks
+	 * are uploaded over a single channel.
+	 */
+	public final static long UPLOAD_CHUNK_SIZE = 64L << 20;
+	
+	/**
+	 * The default number of times a failed upload is retried.
+	 */
+	public final static int UPLOAD_RETRIES = 5;
+	
+	/**
+	 * The default wait (milliseconds) before the first retry of an upload, doubled with every further failure.
+	 */
+	public final static long UPLOAD_RETRY_DELAY = 2 * 1000;
+	
+	/**
+	 * The longest wait (milliseconds) before a retry of an upload.
+	 */
+	public final static long UPLOAD_RETRY_MAX_DELAY = 2 * 60 * 1000;
+	
+	/**
+	 * The default block size of delta uploads. Smaller blocks find more unchanged data at the cost of larger signatures.
+	 */
+	public final static int DELTA_BLOCK_SIZE = 64 << 10;
+	
+	/**
+	 * The largest share of an archive a delta may send as literal data before the whole archive is uploaded instead.
+	 */
+	public final static double DELTA_MAX_LITERAL = 0.5;
+	
+	/**
+	 * The maximum number of SSH sessions kept open to one server.
+	 */
+	public final static int SSH_SESSIONS_PER_SERVER = 4;
+	
+	/**
+	 * The time (milliseconds) after which an idle SSH session is closed.
+	 */
+	public final static long SSH_IDLE_TIMEOUT = 5 * 60 * 1000;
+	
+	/**
+	 * The time (milliseconds) between keep-alives on open SSH sessions.
+	 */
+	public final static int SSH_KEEPALIVE_INTERVAL = 30 * 1000;
+	
+	/**
+	 * The time (milliseconds) allowed for an SSH handshake.
+	 */
+	public final static int SSH_CONNECT_TIMEOUT = 30 * 1000;
+	
+	/**
+	 * The default number of entries extracted at once by a restore.
+	 */
+	public final static int RESTORE_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The default average chunk size of deduplicating chunk stores.
+	 */
+	public final static int CHUNK_AVERAGE_SIZE = 1 << 20;
 }
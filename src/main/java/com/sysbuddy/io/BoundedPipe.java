@@ -0,0 +1,237 @@
+package com.sysbuddy.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipe between a producer and a consumer thread that holds at most a fixed number of chunks.
+ * Unlike {@link java.io.PipedInputStream} it hands over whole chunks instead of single bytes,
+ * and failures on either end are passed to the other end instead of leaving it blocked.
+ * <p>
+ * Closing the writing end only flushes it. The reader sees the end of the stream once the producer
+ * calls {@link #complete()}, so a producer that fails after closing its stream, for example in a
+ * {@code finally} block, can never hand the reader a clean but truncated stream.
+ * @author darius
+ */
+public class BoundedPipe {
+
+	/**
+	 * Marks the end of the stream.
+	 */
+	private final static byte[] EOF = new byte[0];
+
+	/**
+	 * How often a blocked end checks whether the other end has gone away (milliseconds).
+	 */
+	private final static long POLL_INTERVAL = 100;
+
+	/**
+	 * The chunks written but not yet read.
+	 */
+	private final BlockingQueue<byte[]> queue;
+
+	/**
+	 * The size of each chunk.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The writing end of the pipe.
+	 */
+	private final Sink sink = new Sink();
+
+	/**
+	 * The reading end of the pipe.
+	 */
+	private final Source source = new Source();
+
+	/**
+	 * The reason the producer failed, {@code null} if it has not.
+	 */
+	private volatile Throwable failure;
+
+	/**
+	 * If the consumer closed its end.
+	 */
+	private volatile boolean sourceClosed;
+
+	/**
+	 * Creates a bounded pipe.
+	 * @param chunkSize The size of each chunk.
+	 * @param capacity The maximum number of chunks held by the pipe.
+	 */
+	public BoundedPipe(int chunkSize, int capacity) {
+		this.chunkSize = chunkSize;
+		this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+	}
+
+	/**
+	 * Gets the writing end of the pipe.
+	 * @return The output stream.
+	 */
+	public OutputStream getOutputStream() {
+		return sink;
+	}
+
+	/**
+	 * Gets the reading end of the pipe.
+	 * @return The input stream.
+	 */
+	public InputStream getInputStream() {
+		return source;
+	}
+
+	/**
+	 * Ends the stream after the producer succeeded. The consumer reads the remaining data, then the end of the stream.
+	 * @throws IOException If the consumer closed its end, or the thread was interrupted.
+	 */
+	public void complete() throws IOException {
+		sink.close();
+		sink.offer(EOF);
+	}
+
+	/**
+	 * Aborts the pipe from the producer side. The consumer receives an {@link IOException}
+	 * with the given cause on its next read, even if data or the end of the stream are still queued.
+	 * @param cause The reason the producer failed.
+	 */
+	public void fail(Throwable cause) {
+		failure = cause;
+	}
+
+	private final class Sink extends OutputStream {
+
+		private byte[] chunk = new byte[chunkSize];
+		private int count;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == chunk.length)
+				push();
+			chunk[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == chunk.length)
+					push();
+				int n = Math.min(len, chunk.length - count);
+				System.arraycopy(b, off, chunk, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0)
+				push();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			flush();
+		}
+
+		private void push() throws IOException {
+			byte[] full = count == chunk.length ? chunk : Arrays.copyOf(chunk, count);
+			offer(full);
+			chunk = new byte[chunkSize];
+			count = 0;
+		}
+
+		private void offer(byte[] data) throws IOException {
+			try {
+				while (!queue.offer(data, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					if (sourceClosed)
+						throw new IOException("Pipe closed by the reader");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing to pipe");
+			}
+		}
+	}
+
+	private final class Source extends InputStream {
+
+		private byte[] chunk;
+		private int position;
+		private boolean ended;
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return chunk[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return chunk == null ? 0 : chunk.length - position;
+		}
+
+		@Override
+		public void close() {
+			sourceClosed = true;
+			queue.clear();
+		}
+
+		/**
+		 * Makes sure the current chunk has unread data.
+		 * @return {@code false} at the end of the stream.
+		 */
+		private boolean fill() throws IOException {
+			while (!ended && (chunk == null || position == chunk.length)) {
+				if (failure != null)
+					throw new IOException("Pipe producer failed", failure);
+
+				byte[] next;
+				try {
+					next = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while reading from pipe");
+				}
+
+				if (next == null) {
+					continue;
+				} else if (next == EOF) {
+					ended = true;
+				} else {
+					chunk = next;
+					position = 0;
+				}
+			}
+
+			if (failure != null)
+				throw new IOException("Pipe producer failed", failure);
+
+			return !ended;
+		}
+	}
+}
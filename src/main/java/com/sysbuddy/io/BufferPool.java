@@ -0,0 +1,185 @@
+package com.sysbuddy.io;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized direct buffers, shared by every task that reads files.
+ * Buffers are allocated lazily up to the capacity and reused afterwards, so reads neither
+ * create garbage nor go through the JDK's temporary direct buffers.
+ * @author darius
+ */
+public class BufferPool {
+
+	/**
+	 * The size of each buffer.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * The maximum number of buffers.
+	 */
+	private final int capacity;
+
+	/**
+	 * One permit per buffer that may be handed out.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * The buffers that were allocated and returned.
+	 */
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * The number of buffers allocated so far.
+	 */
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * The number of buffers currently handed out.
+	 */
+	private final AtomicInteger inUse = new AtomicInteger();
+
+	/**
+	 * The highest number of buffers handed out at once.
+	 */
+	private final AtomicInteger peak = new AtomicInteger();
+
+	/**
+	 * The number of buffers handed out.
+	 */
+	private final AtomicLong acquisitions = new AtomicLong();
+
+	/**
+	 * The number of times a caller had to wait for a buffer.
+	 */
+	private final AtomicLong waits = new AtomicLong();
+
+	/**
+	 * Creates a buffer pool.
+	 * @param bufferSize The size of each buffer.
+	 * @param capacity The maximum number of buffers.
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		this.permits = new Semaphore(capacity);
+	}
+
+	/**
+	 * Takes a buffer if one is available right away.
+	 * @return The cleared buffer, {@code null} if the pool is exhausted.
+	 */
+	public ByteBuffer tryAcquire() {
+		if (!permits.tryAcquire())
+			return null;
+		return take();
+	}
+
+	/**
+	 * Takes a buffer, waiting for one to be released if the pool is exhausted.
+	 * @return The cleared buffer.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	public ByteBuffer acquire() throws InterruptedIOException {
+		if (!permits.tryAcquire()) {
+			waits.incrementAndGet();
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a buffer");
+			}
+		}
+		return take();
+	}
+
+	/**
+	 * Takes several buffers at once if they are all available right away.
+	 * @param count The number of buffers.
+	 * @return The cleared buffers, {@code null} if fewer than {@code count} are available.
+	 */
+	public ByteBuffer[] tryAcquire(int count) {
+		if (!permits.tryAcquire(count))
+			return null;
+		return take(count);
+	}
+
+	/**
+	 * Takes several buffers at once, waiting until all of them are available. Nothing is held
+	 * while waiting, so callers that need more than one buffer cannot starve each other.
+	 * @param count The number of buffers, at most the capacity of the pool.
+	 * @return The cleared buffers.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	public ByteBuffer[] acquire(int count) throws InterruptedIOException {
+		if (count > capacity)
+			throw new IllegalArgumentException("Cannot take " + count + " buffers from a pool of " + capacity);
+		if (!permits.tryAcquire(count)) {
+			waits.incrementAndGet();
+			try {
+				permits.acquire(count);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for buffers");
+			}
+		}
+		return take(count);
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 * @param buffer The buffer, ignored if {@code null}.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		buffer.clear();
+		free.offer(buffer);
+		inUse.decrementAndGet();
+		permits.release();
+	}
+
+	/**
+	 * Gets the size of each buffer.
+	 * @return The size.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	private ByteBuffer[] take(int count) {
+		ByteBuffer[] taken = new ByteBuffer[count];
+		for (int i = 0; i < count; i++)
+			taken[i] = take();
+		return taken;
+	}
+
+	private ByteBuffer take() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			allocated.incrementAndGet();
+		}
+
+		acquisitions.incrementAndGet();
+		int used = inUse.incrementAndGet();
+		int max;
+		while (used > (max = peak.get()) && !peak.compareAndSet(max, used));
+
+		buffer.clear();
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return "buffer pool: " + allocated.get() + "/" + capacity + " buffers of " + (bufferSize >> 10) + " KB allocated, "
+				+ inUse.get() + " in use, peak " + peak.get() + ", " + acquisitions.get() + " acquisitions, " + waits.get() + " waits";
+	}
+}
@@ -0,0 +1,294 @@
+package com.sysbuddy.io;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Walks directory trees and hands every regular file to a {@link Visitor}, in a deterministic order
+ * (children sorted by name, depth first). Each directory is read with a {@link DirectoryStream} into
+ * the sorted names of its children only; the attributes of each child are read once, a bounded number
+ * of children ahead of the visitor. The listings of subdirectories found that way are fetched ahead on
+ * a pool while the visitor works through earlier entries, so sibling subtrees are scanned in parallel,
+ * yet only the names along the current path and a bounded number of prefetched listings are held in memory.
+ * Symbolic links are either skipped or followed; a followed link that leads back to one of its own
+ * ancestors is reported and skipped rather than walked forever. Special files are skipped.
+ * @author darius
+ */
+public class DirectoryWalker {
+
+	/**
+	 * The logger of the directory walker.
+	 */
+	private final static Logger logger = Logger.getLogger(DirectoryWalker.class.getName());
+
+	/**
+	 * The number of children of a directory whose attributes are read ahead of the visitor, so that
+	 * their subdirectories are listed in parallel.
+	 */
+	private final static int LOOKAHEAD = 32;
+
+	/**
+	 * The pool the listings of subdirectories are fetched on.
+	 */
+	private final ExecutorService pool;
+
+	/**
+	 * One permit per directory listing that may be fetched ahead.
+	 */
+	private final Semaphore prefetch;
+
+	/**
+	 * If symbolic links are followed.
+	 */
+	private final boolean followLinks;
+
+	/**
+	 * Creates a directory walker.
+	 * @param pool The pool the listings of subdirectories are fetched on.
+	 * @param prefetch The maximum number of directory listings fetched ahead of the walk.
+	 * @param followLinks If symbolic links are followed, otherwise they are skipped.
+	 */
+	public DirectoryWalker(ExecutorService pool, int prefetch, boolean followLinks) {
+		this.pool = pool;
+		this.prefetch = new Semaphore(prefetch);
+		this.followLinks = followLinks;
+	}
+
+	/**
+	 * Walks a file or directory. Entries are named after the root, so walking {@code /home/a} names
+	 * its files {@code a/...}. A missing root is ignored, a root that is a symbolic link is always followed.
+	 * @param root The file or directory.
+	 * @param visitor Receives every regular file in order.
+	 * @throws IOException If the visitor failed.
+	 */
+	public void walk(Path root, Visitor visitor) throws IOException {
+		Path name = root.getFileName();
+		Child child;
+		try {
+			child = new Child(name == null ? root.toString() : name.toString(), root, Files.readAttributes(root, BasicFileAttributes.class));
+		} catch (NoSuchFileException e) {
+			return;
+		}
+
+		if (child.attributes.isDirectory()) {
+			Set<Object> ancestors = new HashSet<Object>();
+			walk(child, child.name, ancestors, visitor);
+		} else if (child.attributes.isRegularFile()) {
+			visitor.visit(child.name, child.path, child.attributes);
+		}
+	}
+
+	/**
+	 * Walks a directory. This method works recursively.
+	 * @param directory The directory.
+	 * @param entry The entry name of the directory.
+	 * @param ancestors The keys of the directories on the current path, for loop detection.
+	 * @param visitor Receives every regular file in order.
+	 * @throws IOException If the visitor failed.
+	 */
+	private void walk(Child directory, String entry, Set<Object> ancestors, Visitor visitor) throws IOException {
+		Object key = key(directory);
+		if (!ancestors.add(key)) {
+			logger.warning("Skipping " + directory.path + ", it links back to one of its parent directories");
+			cancel(directory);
+			return;
+		}
+
+		ArrayDeque<Child> ahead = new ArrayDeque<Child>();
+		try {
+			String[] names = listing(directory);
+			if (names == null)
+				return;
+
+			int read = 0;
+			while (true) {
+				while (read < names.length && ahead.size() < LOOKAHEAD) {
+					Child child = read(directory.path.resolve(names[read]), names[read]);
+					names[read++] = null;
+					if (child == null)
+						continue;
+					if (child.attributes.isDirectory())
+						fetchAhead(child);
+					ahead.add(child);
+				}
+
+				Child child = ahead.poll();
+				if (child == null)
+					break;
+
+				if (child.attributes.isDirectory())
+					walk(child, entry + "/" + child.name, ancestors, visitor);
+				else if (child.attributes.isRegularFile())
+					visitor.visit(entry + "/" + child.name, child.path, child.attributes);
+			}
+		} finally {
+			ancestors.remove(key);
+			for (Child child : ahead)
+				cancel(child);
+		}
+	}
+
+	/**
+	 * Starts fetching the listing of a directory on the pool, if a prefetch permit is free.
+	 * @param directory The directory.
+	 */
+	private void fetchAhead(final Child directory) {
+		if (!prefetch.tryAcquire())
+			return;
+
+		directory.listing = pool.submit(new Callable<String[]>() {
+			@Override
+			public String[] call() {
+				return list(directory.path);
+			}
+		});
+	}
+
+	/**
+	 * Drops the listing fetched ahead for a directory that will not be walked, returning its permit.
+	 * @param directory The directory.
+	 */
+	private void cancel(Child directory) {
+		Future<String[]> future = directory.listing;
+		if (future == null)
+			return;
+		directory.listing = null;
+		future.cancel(true);
+		prefetch.release();
+	}
+
+	/**
+	 * Gets the listing of a directory, waiting for it if it was fetched ahead.
+	 * @param directory The directory.
+	 * @return The sorted names of the children, {@code null} if the directory could not be read.
+	 * @throws IOException If the thread was interrupted.
+	 */
+	private String[] listing(Child directory) throws IOException {
+		Future<String[]> future = directory.listing;
+		if (future == null)
+			return list(directory.path);
+
+		directory.listing = null;
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while listing " + directory.path, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not list " + directory.path, e.getCause());
+		} finally {
+			prefetch.release();
+		}
+	}
+
+	/**
+	 * Lists the names of the children of a directory.
+	 * @param directory The directory.
+	 * @return The sorted names, {@code null} if the directory could not be read.
+	 */
+	private String[] list(Path directory) {
+		List<String> names = new ArrayList<String>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream)
+				names.add(path.getFileName().toString());
+		} catch (IOException e) {
+			logger.warning("Skipping directory " + directory + ", it could not be read: " + e);
+			return null;
+		}
+
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Reads the attributes of a path, resolving symbolic links if they are followed.
+	 * @param path The path.
+	 * @param name The name of the path in its directory.
+	 * @return The child, {@code null} if it vanished, could not be read or is a skipped symbolic link.
+	 */
+	private Child read(Path path, String name) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attributes.isSymbolicLink()) {
+				if (!followLinks)
+					return null;
+				attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			}
+			return new Child(name, path, attributes);
+		} catch (NoSuchFileException e) {
+			if (Files.isSymbolicLink(path))
+				logger.warning("Skipping broken symbolic link " + path);
+			return null;
+		} catch (IOException e) {
+			logger.warning("Skipping " + path + ", its attributes could not be read: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the key identifying a directory, its inode where the platform provides one.
+	 * @param directory The directory.
+	 * @return The key.
+	 */
+	private static Object key(Child directory) {
+		Object key = directory.attributes.fileKey();
+		if (key != null)
+			return key;
+		try {
+			return directory.path.toRealPath();
+		} catch (IOException e) {
+			return directory.path.toAbsolutePath().normalize();
+		}
+	}
+
+	/**
+	 * A listed file or directory.
+	 */
+	private final static class Child {
+
+		final String name;
+		final Path path;
+		final BasicFileAttributes attributes;
+		Future<String[]> listing;
+
+		Child(String name, Path path, BasicFileAttributes attributes) {
+			this.name = name;
+			this.path = path;
+			this.attributes = attributes;
+		}
+	}
+
+	/**
+	 * Receives the files found by a {@link DirectoryWalker}.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Handles one regular file.
+		 * @param entry The path of the file relative to the parent of the walked root, separated by {@code /}.
+		 * @param file The file.
+		 * @param attributes The attributes read while listing the file.
+		 * @throws IOException If the file could not be handled.
+		 */
+		public void visit(String entry, Path file, BasicFileAttributes attributes) throws IOException;
+	}
+}
@@ -0,0 +1,182 @@
+package com.sysbuddy.io;
+
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A token bucket limiting the throughput of reads or uploads, shared by every thread that does them.
+ * The bucket holds up to one second worth of bytes. Callers take what they need and may run it into
+ * debt; a caller that finds the bucket in debt sleeps, outside of any lock, until its share has been
+ * refilled, so requests larger than the bucket are paced rather than refused. A limiter may have a
+ * parent, so a task limit and the global limit both apply. An unlimited limiter costs a volatile read.
+ * @author darius
+ */
+public class RateLimiter implements RateLimiterMBean {
+
+	/**
+	 * The logger of the rate limiter.
+	 */
+	private final static Logger logger = Logger.getLogger(RateLimiter.class.getName());
+
+	/**
+	 * The name of the limiter, shown in the management console.
+	 */
+	private final String name;
+
+	/**
+	 * The limiter applied after this one, {@code null} if there is none.
+	 */
+	private final RateLimiter parent;
+
+	/**
+	 * The rate in bytes per second, {@code 0} if unlimited.
+	 */
+	private volatile long rate;
+
+	/**
+	 * The bytes available right away, negative while callers are in debt.
+	 */
+	private double tokens;
+
+	/**
+	 * The time (nanoseconds) the bucket was last refilled.
+	 */
+	private long refilled = System.nanoTime();
+
+	/**
+	 * The number of bytes that passed the limiter.
+	 */
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * The number of times a caller was held back.
+	 */
+	private final LongAdder waits = new LongAdder();
+
+	/**
+	 * Creates a rate limiter.
+	 * @param name The name of the limiter, shown in the management console.
+	 * @param rate The rate in bytes per second, {@code 0} for unlimited.
+	 * @param parent The limiter applied after this one, {@code null} if there is none.
+	 */
+	public RateLimiter(String name, long rate, RateLimiter parent) {
+		this.name = name;
+		this.parent = parent;
+		this.rate = Math.max(0, rate);
+	}
+
+	/**
+	 * Takes bytes from the bucket, waiting while it is in debt, then from the parent.
+	 * @param count The number of bytes.
+	 * @throws InterruptedIOException If the thread was interrupted while waiting.
+	 */
+	public void acquire(long count) throws InterruptedIOException {
+		if (count <= 0)
+			return;
+
+		bytes.add(count);
+		if (rate > 0) {
+			long wait = reserve(count);
+			if (wait > 0) {
+				waits.increment();
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled by " + name);
+				}
+			}
+		}
+
+		if (parent != null)
+			parent.acquire(count);
+	}
+
+	/**
+	 * Takes bytes from the bucket.
+	 * @param count The number of bytes.
+	 * @return The time (nanoseconds) the caller has to wait for the bucket to cover them.
+	 */
+	private synchronized long reserve(long count) {
+		long current = rate;
+		if (current <= 0)
+			return 0;
+
+		refill(current);
+		tokens -= count;
+		return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / current);
+	}
+
+	/**
+	 * Adds the bytes earned since the last refill, up to one second worth.
+	 * @param current The rate in bytes per second.
+	 */
+	private void refill(long current) {
+		long now = System.nanoTime();
+		tokens = Math.min(current, tokens + (double) (now - refilled) * current / TimeUnit.SECONDS.toNanos(1));
+		refilled = now;
+	}
+
+	@Override
+	public synchronized void setRate(long rate) {
+		long current = this.rate;
+		if (current > 0)
+			refill(current);
+		else
+			refilled = System.nanoTime();
+
+		this.rate = Math.max(0, rate);
+		logger.info("Rate limit \"" + name + "\" set to " + (rate <= 0 ? "unlimited" : rate + " bytes/s"));
+	}
+
+	@Override
+	public long getRate() {
+		return rate;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getWaits() {
+		return waits.sum();
+	}
+
+	/**
+	 * Registers the limiter with the platform MBean server, replacing a limiter registered under the same name.
+	 * Failures are logged, since the limiter works without it.
+	 * @return This limiter.
+	 */
+	public RateLimiter register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("com.sysbuddy:type=RateLimiter,name=" + ObjectName.quote(name));
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+		} catch (JMException | RuntimeException e) {
+			logger.log(Level.WARNING, "Could not register rate limit \"" + name + "\" for management", e);
+		}
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + (rate <= 0 ? "unlimited" : rate + " bytes/s") + ", " + bytes.sum() + " bytes, " + waits.sum() + " waits";
+	}
+}
@@ -0,0 +1,39 @@
+package com.sysbuddy.io;
+
+/**
+ * The management interface of a {@link RateLimiter}, through which limits are changed at runtime
+ * with any JMX console ({@code com.sysbuddy:type=RateLimiter}).
+ * @author darius
+ */
+public interface RateLimiterMBean {
+
+	/**
+	 * Gets the name of the limiter.
+	 * @return The name.
+	 */
+	public String getName();
+
+	/**
+	 * Gets the rate.
+	 * @return The rate in bytes per second, {@code 0} if unlimited.
+	 */
+	public long getRate();
+
+	/**
+	 * Sets the rate. Takes effect for every byte requested afterwards.
+	 * @param rate The rate in bytes per second, {@code 0} for unlimited.
+	 */
+	public void setRate(long rate);
+
+	/**
+	 * Gets the number of bytes that passed the limiter.
+	 * @return The number of bytes.
+	 */
+	public long getBytes();
+
+	/**
+	 * Gets the number of times a caller was held back.
+	 * @return The number of waits.
+	 */
+	public long getWaits();
+}
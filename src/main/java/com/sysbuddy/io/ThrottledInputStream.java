@@ -0,0 +1,43 @@
+package com.sysbuddy.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream whose reads are paced by a {@link RateLimiter}.
+ * @author darius
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+	/**
+	 * The limiter the bytes read are taken from.
+	 */
+	private final RateLimiter limiter;
+
+	/**
+	 * Creates a throttled input stream.
+	 * @param in The stream being read.
+	 * @param limiter The limiter the bytes read are taken from.
+	 */
+	public ThrottledInputStream(InputStream in, RateLimiter limiter) {
+		super(in);
+		this.limiter = limiter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value = in.read();
+		if (value >= 0)
+			limiter.acquire(1);
+		return value;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = in.read(buffer, offset, length);
+		if (read > 0)
+			limiter.acquire(read);
+		return read;
+	}
+}
@@ -0,0 +1,293 @@
+package com.sysbuddy.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An output stream cut into fixed-size volume files named {@code <base>.001}, {@code <base>.002}, ...
+ * The SHA-256 hash of every volume is computed while it is written, so each volume can be verified on
+ * its own, and a {@link Listener} is told about every volume as soon as it is complete.
+ * The original file is the concatenation of the volumes in order ({@code cat base.0* > base}).
+ * @author darius
+ */
+public class VolumeOutputStream extends OutputStream {
+
+	/**
+	 * The file extension of the checksum file listing every volume.
+	 */
+	public final static String CHECKSUMS = ".sha256";
+
+	/**
+	 * The path the volume names are derived from.
+	 */
+	private final Path base;
+
+	/**
+	 * The size of every volume except the last.
+	 */
+	private final long volumeSize;
+
+	/**
+	 * Receives every complete volume, {@code null} if nobody is listening.
+	 */
+	private final Listener listener;
+
+	/**
+	 * The complete volumes.
+	 */
+	private final List<Volume> volumes = new ArrayList<Volume>();
+
+	/**
+	 * The digest of the current volume.
+	 */
+	private final MessageDigest digest;
+
+	/**
+	 * The current volume, {@code null} until the next byte is written.
+	 */
+	private OutputStream current;
+
+	/**
+	 * The number of bytes written to the current volume.
+	 */
+	private long written;
+
+	/**
+	 * If the stream was closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * If the volumes were discarded.
+	 */
+	private boolean aborted;
+
+	/**
+	 * Creates a volume output stream.
+	 * @param base The path the volume names are derived from.
+	 * @param volumeSize The size of every volume except the last.
+	 * @param listener Receives every complete volume, {@code null} if nobody is listening.
+	 * @throws IOException If SHA-256 is not available.
+	 */
+	public VolumeOutputStream(Path base, long volumeSize, Listener listener) throws IOException {
+		this.base = base;
+		this.volumeSize = volumeSize;
+		this.listener = listener;
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (aborted)
+			return;
+		if (closed)
+			throw new IOException("Stream closed");
+
+		while (length > 0) {
+			if (current == null) {
+				current = Files.newOutputStream(path(volumes.size() + 1));
+				written = 0;
+			}
+
+			int count = (int) Math.min(length, volumeSize - written);
+			current.write(data, offset, count);
+			digest.update(data, offset, count);
+			written += count;
+			offset += count;
+			length -= count;
+
+			if (written == volumeSize)
+				finishVolume();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (current != null && !aborted)
+			current.flush();
+	}
+
+	/**
+	 * Completes the last volume.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		if (current != null)
+			finishVolume();
+	}
+
+	/**
+	 * Discards the volumes after a failure: the current volume is closed without being handed to the
+	 * listener, the listener is told to drop the volumes it received, and every volume still on disk is
+	 * deleted. Later writes are discarded and closing does nothing.
+	 * @throws IOException If a volume could not be closed or deleted.
+	 */
+	public void abort() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		aborted = true;
+		try {
+			if (current != null)
+				current.close();
+		} finally {
+			if (listener != null)
+				listener.volumesAborted();
+			current = null;
+			for (int i = 1; i <= volumes.size() + 1; i++)
+				Files.deleteIfExists(path(i));
+		}
+	}
+
+	/**
+	 * Writes the checksum file listing every volume with its SHA-256 hash, in the format of {@code sha256sum}.
+	 * @return The path of the checksum file, {@code <base>.sha256}.
+	 * @throws IOException If the file could not be written.
+	 */
+	public Path writeChecksums() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (Volume volume : volumes)
+			lines.add(volume.getHash() + "  " + volume.getPath().getFileName());
+
+		Path checksums = base.resolveSibling(base.getFileName() + CHECKSUMS);
+		Path temporary = base.resolveSibling(base.getFileName() + CHECKSUMS + ".tmp");
+		Files.write(temporary, lines, StandardCharsets.UTF_8);
+		Files.move(temporary, checksums, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return checksums;
+	}
+
+	/**
+	 * Gets the complete volumes.
+	 * @return The volumes, in order.
+	 */
+	public List<Volume> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+
+	private void finishVolume() throws IOException {
+		OutputStream out = current;
+		current = null;
+		out.close();
+
+		Volume volume = new Volume(volumes.size() + 1, path(volumes.size() + 1), written, toHex(digest.digest()));
+		volumes.add(volume);
+		if (listener != null)
+			listener.volumeFinished(volume);
+	}
+
+	private Path path(int index) {
+		return base.resolveSibling(base.getFileName() + String.format(".%03d", index));
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return builder.toString();
+	}
+
+	/**
+	 * A complete volume.
+	 */
+	public final static class Volume {
+
+		/**
+		 * The number of the volume, starting at {@code 1}.
+		 */
+		private final int index;
+
+		/**
+		 * The volume file.
+		 */
+		private final Path path;
+
+		/**
+		 * The size of the volume.
+		 */
+		private final long size;
+
+		/**
+		 * The SHA-256 hash of the volume, in hexadecimal.
+		 */
+		private final String hash;
+
+		Volume(int index, Path path, long size, String hash) {
+			this.index = index;
+			this.path = path;
+			this.size = size;
+			this.hash = hash;
+		}
+
+		/**
+		 * Gets the number of the volume.
+		 * @return The number, starting at {@code 1}.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Gets the volume file.
+		 * @return The path.
+		 */
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * Gets the size of the volume.
+		 * @return The size in bytes.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Gets the SHA-256 hash of the volume.
+		 * @return The hash, in hexadecimal.
+		 */
+		public String getHash() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Receives the volumes of a {@link VolumeOutputStream} as they are completed.
+	 */
+	public interface Listener {
+
+		/**
+		 * Handles a complete volume. Called on the writing thread, so blocking here holds back the writer.
+		 * @param volume The volume.
+		 * @throws IOException If the volume could not be handled, which fails the write.
+		 */
+		public void volumeFinished(Volume volume) throws IOException;
+
+		/**
+		 * Drops the volumes received so far, as the stream was aborted. Called before the volumes are
+		 * deleted, and must not return while anything still reads them.
+		 */
+		public void volumesAborted();
+	}
+}
@@ -0,0 +1,135 @@
+package com.sysbuddy.util;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signals that a task run should stop. Long loops, such as the archiver walking directories, check the
+ * token and give up with an {@link InterruptedIOException}; blocking work that does not notice a check,
+ * such as an SSH channel waiting on the network, registers an action that breaks it, for example by
+ * disconnecting the session.
+ * <p>
+ * A token is bound to the thread running a task, so code deep in a run finds it with {@link #current()}
+ * without it being passed along. Threads a run starts bind the token themselves.
+ * @author darius
+ */
+public final class CancellationToken {
+
+	/**
+	 * A token that is never cancelled, for threads that run no task.
+	 */
+	private final static CancellationToken NONE = new CancellationToken();
+
+	/**
+	 * The token bound to each thread.
+	 */
+	private final static ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<CancellationToken>();
+
+	/**
+	 * The actions run on cancellation.
+	 */
+	private final List<Runnable> actions = new ArrayList<Runnable>();
+
+	/**
+	 * Why the run was cancelled, {@code null} while it was not.
+	 */
+	private volatile String reason;
+
+	/**
+	 * Gets the token bound to the current thread.
+	 * @return The token, one that is never cancelled if none is bound.
+	 */
+	public static CancellationToken current() {
+		CancellationToken token = CURRENT.get();
+		return token != null ? token : NONE;
+	}
+
+	/**
+	 * Binds a token to the current thread.
+	 * @param token The token, {@code null} to unbind.
+	 */
+	public static void bind(CancellationToken token) {
+		if (token == null)
+			CURRENT.remove();
+		else
+			CURRENT.set(token);
+	}
+
+	/**
+	 * Cancels the run, running every registered action once. Later calls do nothing.
+	 * @param reason Why the run is cancelled.
+	 */
+	public synchronized void cancel(String reason) {
+		if (this == NONE || this.reason != null)
+			return;
+		this.reason = reason;
+		for (Runnable action : actions)
+			action.run();
+		actions.clear();
+	}
+
+	/**
+	 * Checks if the run was cancelled.
+	 * @return {@code true} if it was cancelled.
+	 */
+	public boolean isCancelled() {
+		return reason != null;
+	}
+
+	/**
+	 * Gets why the run was cancelled.
+	 * @return The reason, {@code null} if it was not cancelled.
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Stops if the run was cancelled.
+	 * @throws InterruptedIOException If the run was cancelled.
+	 */
+	public void check() throws InterruptedIOException {
+		String reason = this.reason;
+		if (reason != null)
+			throw new InterruptedIOException("Cancelled: " + reason);
+	}
+
+	/**
+	 * Registers an action run on cancellation, at once if the run already was cancelled. Once the returned
+	 * registration is closed the action is no longer run, even by a cancellation in progress on another thread.
+	 * @param action The action, which must not block.
+	 * @return The registration, closed when the action is no longer needed.
+	 */
+	public Registration onCancel(final Runnable action) {
+		synchronized (this) {
+			if (reason != null) {
+				action.run();
+			} else if (this != NONE) {
+				actions.add(action);
+			}
+		}
+
+		return new Registration() {
+			@Override
+			public void close() {
+				synchronized (CancellationToken.this) {
+					actions.remove(action);
+				}
+			}
+		};
+	}
+
+	/**
+	 * An action registered with a token.
+	 */
+	public interface Registration extends Closeable {
+
+		/**
+		 * Removes the action from the token.
+		 */
+		@Override
+		public void close();
+	}
+}
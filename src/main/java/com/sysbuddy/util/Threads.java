@@ -0,0 +1,120 @@
+package com.sysbuddy.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sysbuddy.config.GlobalConfiguration;
+
+/**
+ * Creates the threads backup work runs on. With {@code sysbuddy.virtual_threads} set, blocking file and
+ * network work runs on virtual threads where the running JVM offers them (Java 21 or later), so thousands of
+ * tasks cost no more than their memory; otherwise, and for compression, platform threads are used.
+ * <p>
+ * Virtual threads are created through reflection, so the program still builds for and runs on older JVMs.
+ * JSch blocks inside {@code synchronized} methods, which pins a virtual thread to its carrier before Java 24,
+ * so threads that mostly wait on SSH channels only become virtual from Java 24 on.
+ * @author darius
+ */
+public final class Threads {
+
+	/**
+	 * The logger of the thread factories.
+	 */
+	private final static Logger logger = Logger.getLogger(Threads.class.getName());
+
+	/**
+	 * The first Java version whose virtual threads do not pin their carrier while blocked in a monitor.
+	 */
+	private final static int UNPINNED_MONITORS = 24;
+
+	/**
+	 * Creates a virtual thread builder named with a prefix and a counter, {@code null} if there is none.
+	 */
+	private final static Method VIRTUAL = findVirtual();
+
+	/**
+	 * If blocking work runs on virtual threads.
+	 */
+	private final static boolean ENABLED = GlobalConfiguration.VIRTUAL_THREADS && VIRTUAL != null;
+
+	private Threads() {
+	}
+
+	/**
+	 * Creates a factory for threads doing blocking file or network work.
+	 * @param name The prefix of the thread names.
+	 * @return The factory, of virtual threads if enabled.
+	 */
+	public static ThreadFactory factory(String name) {
+		return ENABLED ? virtual(name) : platform(name);
+	}
+
+	/**
+	 * Creates a factory for threads that mostly block on SSH channels.
+	 * @param name The prefix of the thread names.
+	 * @return The factory, of virtual threads if enabled and they do not pin on the monitors of JSch.
+	 */
+	public static ThreadFactory sshFactory(String name) {
+		return ENABLED && Runtime.version().feature() >= UNPINNED_MONITORS ? virtual(name) : platform(name);
+	}
+
+	/**
+	 * Starts a thread doing blocking file or network work.
+	 * @param name The name of the thread.
+	 * @param runnable The work.
+	 * @return The started thread.
+	 */
+	public static Thread start(String name, Runnable runnable) {
+		Thread thread = factory(name).newThread(runnable);
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Checks if blocking work runs on virtual threads.
+	 * @return {@code true} if virtual threads are enabled and available.
+	 */
+	public static boolean isVirtual() {
+		return ENABLED;
+	}
+
+	private static ThreadFactory platform(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, name + "-" + count.incrementAndGet());
+			}
+		};
+	}
+
+	private static ThreadFactory virtual(String name) {
+		try {
+			Object builder = VIRTUAL.invoke(null);
+			Class<?> type = Class.forName("java.lang.Thread$Builder");
+			builder = type.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			return (ThreadFactory) type.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.warning("Could not create virtual threads, using platform threads: " + e);
+			return platform(name);
+		}
+	}
+
+	private static Method findVirtual() {
+		if (!GlobalConfiguration.VIRTUAL_THREADS)
+			return null;
+
+		try {
+			Method method = Thread.class.getMethod("ofVirtual");
+			method.invoke(null);
+			logger.info("Running blocking work on virtual threads");
+			return method;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.warning("Virtual threads need Java 21 or later, using platform threads");
+			return null;
+		}
+	}
+}
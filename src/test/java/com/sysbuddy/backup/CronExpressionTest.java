@@ -0,0 +1,68 @@
+package com.sysbuddy.backup;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the fire times of cron expressions, in particular across daylight saving transitions.
+ * @author darius
+ */
+public class CronExpressionTest extends TestCase {
+
+	/**
+	 * A zone that moves its clocks forward on 8 March 2026 and back on 1 November 2026.
+	 */
+	private final static ZoneId NEW_YORK = ZoneId.of("America/New_York");
+
+	public void testDaily() {
+		CronExpression cron = CronExpression.parse("30 1 * * *", NEW_YORK);
+		assertEquals(time("2026-06-01T01:30-04:00"), cron.next(time("2026-06-01T00:00-04:00")));
+		assertEquals(time("2026-06-02T01:30-04:00"), cron.next(time("2026-06-01T01:30-04:00")));
+	}
+
+	public void testWeekly() {
+		CronExpression cron = CronExpression.parse("@weekly", NEW_YORK);
+		assertEquals(time("2026-06-07T00:00-04:00"), cron.next(time("2026-06-01T12:00-04:00")));
+		assertEquals(time("2026-06-14T00:00-04:00"), cron.next(time("2026-06-07T00:00-04:00")));
+	}
+
+	public void testOverlapFiresOnce() {
+		CronExpression cron = CronExpression.parse("30 1 * * *", NEW_YORK);
+		assertEquals(time("2026-11-01T01:30-04:00"), cron.next(time("2026-11-01T00:00-04:00")));
+		assertEquals(time("2026-11-02T01:30-05:00"), cron.next(time("2026-11-01T01:30-04:00")));
+		// A run that finished in the repeated hour must not fire the same wall-clock time again
+		assertEquals(time("2026-11-02T01:30-05:00"), cron.next(time("2026-11-01T01:15-05:00")));
+	}
+
+	public void testOverlapHourly() {
+		CronExpression cron = CronExpression.parse("0 * * * *", NEW_YORK);
+		assertEquals(time("2026-11-01T01:00-04:00"), cron.next(time("2026-11-01T00:30-04:00")));
+		assertEquals(time("2026-11-01T02:00-05:00"), cron.next(time("2026-11-01T01:00-04:00")));
+	}
+
+	public void testGapFiresAtTransition() {
+		CronExpression cron = CronExpression.parse("30 2 * * *", NEW_YORK);
+		assertEquals(time("2026-03-08T03:00-04:00"), cron.next(time("2026-03-08T01:00-05:00")));
+		assertEquals(time("2026-03-09T02:30-04:00"), cron.next(time("2026-03-08T03:00-04:00")));
+	}
+
+	public void testGapFiresOnce() {
+		CronExpression cron = CronExpression.parse("0,30 2,3 * * *", NEW_YORK);
+		assertEquals(time("2026-03-08T03:00-04:00"), cron.next(time("2026-03-08T01:59-05:00")));
+		assertEquals(time("2026-03-08T03:30-04:00"), cron.next(time("2026-03-08T03:00-04:00")));
+	}
+
+	public void testNeverFires() {
+		try {
+			CronExpression.parse("0 0 31 2 *", NEW_YORK);
+			fail("February 31st was accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static long time(String time) {
+		return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+	}
+}
@@ -0,0 +1,173 @@
+package com.sysbuddy.backup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the scheduler journal replays its runs, cuts off torn records, keeps the latest
+ * successful run of every task through compaction and keeps appending whether compaction succeeds or not.
+ * @author darius
+ */
+public class SchedulerJournalTest extends TestCase {
+
+	/**
+	 * The directory the journal is written in.
+	 */
+	private Path directory;
+
+	/**
+	 * The journal file.
+	 */
+	private Path path;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal");
+		path = directory.resolve("scheduler.journal");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".tmp"));
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(directory);
+	}
+
+	public void testReplay() throws IOException {
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		journal.record("a", 1, 2, true);
+		journal.record("b", 3, 4, true);
+		journal.record("a", 5, 6, false);
+		journal.close();
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(6, journal.get("a").getFinish());
+			assertFalse(journal.get("a").isSuccess());
+			assertEquals(2, journal.getLastSuccess("a").getFinish());
+			assertEquals(4, journal.get("b").getFinish());
+			assertEquals(4, journal.getLastSuccess("b").getFinish());
+			assertNull(journal.get("c"));
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void testTornTailIsCutOff() throws IOException {
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		journal.record("a", 1, 2, true);
+		journal.close();
+		long size = Files.size(path);
+
+		// A record header promising more bytes than were written
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer torn = ByteBuffer.allocate(12);
+			torn.putInt(100).putInt(0).putInt(7).flip();
+			channel.write(torn);
+		}
+
+		journal = SchedulerJournal.open(path);
+		assertEquals(size, Files.size(path));
+		assertEquals(2, journal.get("a").getFinish());
+		journal.record("a", 3, 4, true);
+		journal.close();
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(4, journal.get("a").getFinish());
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void testCorruptRecordIsCutOff() throws IOException {
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		journal.record("a", 1, 2, true);
+		journal.close();
+		long size = Files.size(path);
+
+		journal = SchedulerJournal.open(path);
+		journal.record("a", 3, 4, true);
+		journal.close();
+
+		// Flip the success flag of the second record without updating its checksum
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer flag = ByteBuffer.allocate(1);
+			flag.put((byte) 0).flip();
+			channel.write(flag, channel.size() - 1);
+		}
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(size, Files.size(path));
+			assertEquals(2, journal.get("a").getFinish());
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void testCompactionKeepsLastSuccess() throws IOException {
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		journal.record("a", 1, 2, true);
+		journal.record("b", 1, 2, true);
+		for (int i = 0; i < 2000; i++)
+			journal.record("a", 10 + i, 11 + i, false);
+		journal.close();
+		assertTrue("journal was not compacted", Files.size(path) < 2000 * 20);
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(2010, journal.get("a").getFinish());
+			assertFalse(journal.get("a").isSuccess());
+			assertEquals(2, journal.getLastSuccess("a").getFinish());
+			assertEquals(2, journal.get("b").getFinish());
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void testAppendsAfterCompaction() throws IOException {
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		for (int i = 0; i < 2000; i++)
+			journal.record("a", i, i + 1, true);
+		journal.close();
+
+		journal = SchedulerJournal.open(path);
+		for (int i = 0; i < 2000; i++)
+			journal.record("b", i, i + 1, true);
+		journal.record("c", 1, 2, true);
+		journal.close();
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(2000, journal.get("a").getFinish());
+			assertEquals(2000, journal.get("b").getFinish());
+			assertEquals(2, journal.get("c").getFinish());
+		} finally {
+			journal.close();
+		}
+	}
+
+	public void testFailedCompactionKeepsAppending() throws IOException {
+		// The rewritten journal cannot be created where a directory is in the way
+		Path temporary = Files.createDirectory(path.resolveSibling(path.getFileName() + ".tmp"));
+		SchedulerJournal journal = SchedulerJournal.open(path);
+		for (int i = 0; i < 3000; i++)
+			journal.record("a", i, i + 1, true);
+		journal.close();
+		Files.delete(temporary);
+
+		journal = SchedulerJournal.open(path);
+		try {
+			assertEquals(3000, journal.get("a").getFinish());
+		} finally {
+			journal.close();
+		}
+	}
+}
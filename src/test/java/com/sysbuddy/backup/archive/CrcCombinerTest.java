@@ -0,0 +1,50 @@
+package com.sysbuddy.backup.archive;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that combined checksums equal the checksum of the concatenated ranges.
+ * @author darius
+ */
+public class CrcCombinerTest extends TestCase {
+
+	public void testAgainstCrc32() {
+		Random random = new Random(42);
+		byte[] data = new byte[1 << 20];
+		random.nextBytes(data);
+
+		int[] splits = {0, 1, 7, 512, 65535, 65536, 300000, data.length - 1, data.length};
+		for (int split : splits) {
+			long first = crc(data, 0, split);
+			long second = crc(data, split, data.length - split);
+			assertEquals("split at " + split, crc(data, 0, data.length), CrcCombiner.combine(first, second, data.length - split));
+		}
+	}
+
+	public void testManyBlocks() {
+		Random random = new Random(7);
+		byte[] data = new byte[3 * 100000 + 123];
+		random.nextBytes(data);
+
+		int block = 100000;
+		long combined = crc(data, 0, Math.min(block, data.length));
+		for (int offset = block; offset < data.length; offset += block) {
+			int length = Math.min(block, data.length - offset);
+			combined = CrcCombiner.combine(combined, crc(data, offset, length), length);
+		}
+		assertEquals(crc(data, 0, data.length), combined);
+	}
+
+	public void testEmptySecondRange() {
+		assertEquals(0x12345678L, CrcCombiner.combine(0x12345678L, 0, 0));
+	}
+
+	private static long crc(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,109 @@
+package com.sysbuddy.backup.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a delta rebuilds the new version through both the local patcher and the shell script
+ * run on servers.
+ * @author darius
+ */
+public class DeltaRoundTripTest extends TestCase {
+
+	/**
+	 * The block size of the deltas, a multiple of the data alignment as on servers.
+	 */
+	private final static int BLOCK_SIZE = 4 * DeltaPatcher.UNIT;
+
+	/**
+	 * The directory the files are written in.
+	 */
+	private Path directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("delta");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for (File file : directory.toFile().listFiles())
+			Files.delete(file.toPath());
+		Files.delete(directory);
+	}
+
+	public void testUnchanged() throws IOException, InterruptedException {
+		byte[] base = random(1, 50 * BLOCK_SIZE);
+		DeltaEncoder encoder = roundTrip(base, base);
+		assertEquals(0, encoder.getLiteralBytes());
+	}
+
+	public void testEdits() throws IOException, InterruptedException {
+		byte[] base = random(2, 300000);
+		ByteArrayOutputStream changed = new ByteArrayOutputStream();
+		changed.write(base, 0, 50000);
+		changed.write(random(3, 777), 0, 777);
+		changed.write(base, 50000, 100000);
+		changed.write(base, 200000, 90001);
+		changed.write(random(4, 10), 0, 10);
+
+		DeltaEncoder encoder = roundTrip(base, changed.toByteArray());
+		assertTrue("too little was copied: " + encoder.getCopiedBytes(), encoder.getCopiedBytes() > 200000);
+	}
+
+	public void testShorterAndUnaligned() throws IOException, InterruptedException {
+		byte[] base = random(5, 100001);
+		roundTrip(base, Arrays.copyOfRange(base, 3, 60003));
+	}
+
+	public void testEmptyBase() throws IOException, InterruptedException {
+		roundTrip(new byte[0], random(6, 5000));
+	}
+
+	public void testEmptyTarget() throws IOException, InterruptedException {
+		roundTrip(random(7, 5000), new byte[0]);
+	}
+
+	/**
+	 * Encodes the change from one version to the next, and checks that both patchers rebuild the next version.
+	 * @param previous The previous version.
+	 * @param next The new version.
+	 * @return The encoder, holding its counters.
+	 */
+	private DeltaEncoder roundTrip(byte[] previous, byte[] next) throws IOException, InterruptedException {
+		Path base = Files.write(directory.resolve("base"), previous);
+		Path file = Files.write(directory.resolve("file"), next);
+		Path data = directory.resolve("data");
+		Path patch = directory.resolve("patch");
+
+		DeltaEncoder encoder = new DeltaEncoder(BlockSignature.compute(base, "base", BLOCK_SIZE));
+		encoder.encode(file, data, patch);
+		assertEquals(next.length, encoder.getCopiedBytes() + encoder.getLiteralBytes());
+
+		Path local = directory.resolve("local");
+		DeltaPatcher.apply(base, data, patch, local);
+		assertTrue("local patcher", Arrays.equals(next, Files.readAllBytes(local)));
+
+		Path shell = directory.resolve("shell");
+		Process process = new ProcessBuilder("sh", "-c", DeltaPatcher.SCRIPT, "sysbuddy-patch", base.toString(), data.toString(),
+				patch.toString(), shell.toString()).redirectErrorStream(true).start();
+		process.getOutputStream().close();
+		assertEquals("shell patcher exit status", 0, process.waitFor());
+		assertTrue("shell patcher", Arrays.equals(next, Files.readAllBytes(shell)));
+
+		return encoder;
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
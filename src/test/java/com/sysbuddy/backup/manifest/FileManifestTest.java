@@ -0,0 +1,105 @@
+package com.sysbuddy.backup.manifest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that manifests survive a round trip through their on-disk format.
+ * @author darius
+ */
+public class FileManifestTest extends TestCase {
+
+	/**
+	 * The directory the manifest is written in.
+	 */
+	private Path directory;
+
+	/**
+	 * The manifest file.
+	 */
+	private Path path;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("manifest");
+		path = directory.resolve("files.manifest");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".tmp"));
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(directory);
+	}
+
+	public void testRoundTrip() throws IOException {
+		StringBuilder longName = new StringBuilder("deep/");
+		while (longName.length() < 1000)
+			longName.append("directory/");
+		longName.append("file.txt");
+
+		byte[] hash = new byte[32];
+		for (int i = 0; i < hash.length; i++)
+			hash[i] = (byte) (i * 7);
+
+		FileManifest manifest = new FileManifest(42, 8);
+		manifest.put("a/b/c.txt", new FileManifest.Record(0, 0, null));
+		manifest.put("a/b/d.txt", new FileManifest.Record(127, 128, hash));
+		manifest.put("a/bc", new FileManifest.Record(Long.MAX_VALUE, -1, null));
+		manifest.put("été/日本.txt", new FileManifest.Record(1L << 40, 1700000000000L, new byte[0]));
+		manifest.put(longName.toString(), new FileManifest.Record(5, 6, hash));
+		manifest.save(path);
+
+		FileManifest loaded = FileManifest.load(path);
+		assertEquals(42, loaded.getGeneration());
+		assertEquals(manifest.getNames(), loaded.getNames());
+		for (String name : manifest.getNames()) {
+			FileManifest.Record expected = manifest.get(name);
+			FileManifest.Record actual = loaded.get(name);
+			assertEquals(name, expected.getSize(), actual.getSize());
+			assertEquals(name, expected.getLastModified(), actual.getLastModified());
+			if (expected.getHash() == null || expected.getHash().length == 0)
+				assertNull(name, actual.getHash());
+			else
+				assertTrue(name, Arrays.equals(expected.getHash(), actual.getHash()));
+		}
+	}
+
+	public void testEmpty() throws IOException {
+		new FileManifest().save(path);
+		FileManifest loaded = FileManifest.load(path);
+		assertEquals(0, loaded.size());
+		assertEquals(0, loaded.getGeneration());
+	}
+
+	public void testMissing() throws IOException {
+		assertNull(FileManifest.load(path));
+	}
+
+	public void testTruncated() throws IOException {
+		FileManifest manifest = new FileManifest(1, 1);
+		manifest.put("file", new FileManifest.Record(1000, 2000, new byte[32]));
+		manifest.save(path);
+
+		byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 10));
+		try {
+			FileManifest.load(path);
+			fail("A truncated manifest was loaded");
+		} catch (IOException expected) {
+		}
+	}
+
+	public void testNotAManifest() throws IOException {
+		Files.write(path, new byte[] {1, 2, 3, 4, 5, 6});
+		try {
+			FileManifest.load(path);
+			fail("A file without the magic number was loaded");
+		} catch (IOException expected) {
+		}
+	}
+}